@@ -0,0 +1,143 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import grammar.Expression;
+import grammar.Expression.MacroRule;
+import parser.CompactMatchTree;
+import parser.Match;
+import source.SourceString;
+
+/**
+ * The expansion of a pure macro call, as cached by {@link MacroExpander}: the
+ * text of the expansion, and the shape of its match tree (the expression and
+ * the range of each match, relative to the text).
+ *
+ * The cached form holds no match and no source, so that it neither ties later
+ * calls to the file of the first call, nor keeps that file's sources alive.
+ * Each call gets a fresh tree (see {@link #instantiate()}), whose source is
+ * the text alone.
+ */
+final class CachedExpansion
+{
+  /****************************************************************************/
+  private final String text;
+
+  /****************************************************************************/
+  private final Expression[] exprs;
+
+  /****************************************************************************/
+  private final int[] exprIds, begins, ends, childCounts;
+
+  /****************************************************************************/
+  private CachedExpansion(String text, Expression[] exprs, int[] exprIds,
+    int[] begins, int[] ends, int[] childCounts)
+  {
+    this.text        = text;
+    this.exprs       = exprs;
+    this.exprIds     = exprIds;
+    this.begins      = begins;
+    this.ends        = ends;
+    this.childCounts = childCounts;
+  }
+
+  /*****************************************************************************
+   * Returns the cached form of $expansion, an expansion of $macro; or null if
+   * it can't be cached: if some of its matches lie outside of its text (e.g.
+   * the child of a lookahead), or if it holds calls to other macros, which the
+   * cache (held by $macro) would keep alive, with their class loaders.
+   *
+   * The matches of the tree may have different sources. The positions of a
+   * match are made relative to the text of the root: children sharing the
+   * source of their parent keep their offset within the parent, while the
+   * others (the children of composed matches, see {@link
+   * compiler.util.MatchCreator}) follow their preceding sibling.
+   */
+  static CachedExpansion of(Macro macro, Match expansion)
+  {
+    String text = expansion.originalString();
+
+    Map<Expression, Integer> indices = new IdentityHashMap<>();
+    List<Expression> exprs = new ArrayList<>();
+    List<Match> nodes = new ArrayList<>();
+    List<Integer> positions = new ArrayList<>();
+
+    // Pre-order walk, without recursion.
+    List<Match> stack = new ArrayList<>();
+    List<Integer> stackPositions = new ArrayList<>();
+    stack.add(expansion);
+    stackPositions.add(0);
+
+    while (!stack.isEmpty())
+    {
+      Match match = stack.remove(stack.size() - 1);
+      int position = stackPositions.remove(stackPositions.size() - 1);
+
+      if (position < 0 || position + match.end - match.begin > text.length()
+      ||  match.expr instanceof MacroRule
+      &&  ((MacroRule) match.expr).macro != macro) {
+        return null;
+      }
+
+      nodes.add(match);
+      positions.add(position);
+
+      if (!indices.containsKey(match.expr)) {
+        indices.put(match.expr, exprs.size());
+        exprs.add(match.expr);
+      }
+
+      List<Match> children = match.children();
+      int[] childPositions = new int[children.size()];
+      int cursor = position;
+
+      for (int i = 0 ; i < children.size() ; ++i)
+      {
+        Match child = children.get(i);
+
+        childPositions[i] = child.source == match.source
+          ? position + child.begin - match.begin
+          : cursor;
+
+        cursor = childPositions[i] + child.end - child.begin;
+      }
+
+      for (int i = children.size() - 1 ; i >= 0 ; --i) {
+        stack.add(children.get(i));
+        stackPositions.add(childPositions[i]);
+      }
+    }
+
+    int count = nodes.size();
+    int[] exprIds     = new int[count];
+    int[] begins      = new int[count];
+    int[] ends        = new int[count];
+    int[] childCounts = new int[count];
+
+    for (int i = 0 ; i < count ; ++i)
+    {
+      Match match = nodes.get(i);
+      exprIds[i]     = indices.get(match.expr);
+      begins[i]      = positions.get(i);
+      ends[i]        = positions.get(i) + match.end - match.begin;
+      childCounts[i] = match.children().size();
+    }
+
+    return new CachedExpansion(text,
+      exprs.toArray(new Expression[exprs.size()]),
+      exprIds, begins, ends, childCounts);
+  }
+
+  /*****************************************************************************
+   * Returns a new match tree for the expansion, with the same shape as the
+   * cached one, over a new source holding the text of the expansion.
+   */
+  Match instantiate()
+  {
+    return new CompactMatchTree(SourceString.raw(text), exprs, exprIds,
+      begins, ends, childCounts).root();
+  }
+}
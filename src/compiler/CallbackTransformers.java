@@ -10,6 +10,10 @@ class PostParseTransformer extends MatchTreeTransformer
 {
   @Override public Match transform(Match match)
   {
+    if (inert(match)) {
+      return match;
+    }
+
     match = (match.expr instanceof Rule)
       ? ((Rule) match.expr).callbacks().postParseTopDown(match)
       : match;
@@ -32,6 +36,10 @@ class PostExpansionTransformer extends MatchTreeTransformer
 {
   @Override public Match transform(Match match)
   {
+    if (inert(match)) {
+      return match;
+    }
+
     match = (match.expr instanceof Rule)
       ? ((Rule) match.expr).callbacks().postExpansionTopDown(match)
       : match;
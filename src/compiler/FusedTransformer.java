@@ -0,0 +1,125 @@
+package compiler;
+
+import driver.Config;
+import grammar.Expression.Rule;
+import grammar.MatchCallbacks;
+import parser.Match;
+
+/**
+ * Applies the post-parse callbacks, expands macros and applies the
+ * post-expansion callbacks in a single traversal of the match tree. The result
+ * is the same as running {@link PostParseTransformer}, {@link MacroExpander}
+ * and {@link PostExpansionTransformer} in sequence.
+ *
+ * The subtrees that hold no match of an expression with callbacks nor of a
+ * macro rule are skipped (see {@link MatchTreeTransformer#inert}).
+ *
+ * The three phases can be fused on a match when its expression has no
+ * callbacks for {@link MatchCallbacks#postParseBottomUp} and {@link
+ * MatchCallbacks#postExpansionTopDown} (those would observe the children in
+ * the wrong phase), and when it is not a macro call (whose input must be
+ * entirely processed by the post-parse callbacks before expansion). The other
+ * matches are processed by the three transformers in sequence. Fusing assumes
+ * the callbacks don't turn matches into macro calls, and don't depend on the
+ * side effects of macro expansions.
+ */
+class FusedTransformer extends MatchTreeTransformer
+{
+  /****************************************************************************/
+  private final PostParseTransformer postParse = new PostParseTransformer();
+
+  /****************************************************************************/
+  private final MacroExpander expander = new MacroExpander();
+
+  /****************************************************************************/
+  private final PostExpansionTransformer postExpansion =
+    new PostExpansionTransformer();
+
+  /*****************************************************************************
+   * Indicates, for classes of callbacks, whether the phases can be fused on
+   * matches having those callbacks. A class value rather than a map, so that it
+   * doesn't keep the classes (nor their class loaders) alive.
+   */
+  private static final ClassValue<Boolean> fusable = new ClassValue<Boolean>() {
+    @Override protected Boolean computeValue(Class<?> klass) {
+      return !overrides(klass, "postParseBottomUp")
+        && !overrides(klass, "postExpansionTopDown");
+    }
+  };
+
+  /****************************************************************************/
+  FusedTransformer()
+  {
+    super(Config.get().expanderThreads(), Config.get().expansionThreshold());
+  }
+
+  /****************************************************************************/
+  @Override public Match transform(Match match)
+  {
+    if (inert(match)) {
+      return match;
+    }
+
+    if (!fusable(match)) {
+      return phased(match);
+    }
+
+    Match original = match;
+
+    if (match.expr instanceof Rule) {
+      match = ((Rule) match.expr).callbacks().postParseTopDown(match);
+    }
+
+    if (match != original && !fusable(match)) {
+      // $match is a rule match: other matches are fusable.
+      match = postParse.transformChilds(match);
+      match = ((Rule) match.expr).callbacks().postParseBottomUp(match);
+      match = expander.transform(match);
+      return postExpansion.transform(match);
+    }
+
+    match = transformChilds(match);
+
+    return (match.expr instanceof Rule)
+      ? ((Rule) match.expr).callbacks().postExpansionBottomUp(match)
+      : match;
+  }
+
+  /*****************************************************************************
+   * Runs the three phases on $match, one after the other.
+   */
+  private Match phased(Match match)
+  {
+    match = postParse.transform(match);
+    match = expander.transform(match);
+    return postExpansion.transform(match);
+  }
+
+  /****************************************************************************/
+  private static boolean fusable(Match match)
+  {
+    if (!(match.expr instanceof Rule)) {
+      return true;
+    }
+
+    if (MacroExpander.isMacroCall(match)) {
+      return false;
+    }
+
+    return fusable.get(match.expr.callbacks().getClass());
+  }
+
+  /*****************************************************************************
+   * Does the callbacks class $klass override the method named $name?
+   */
+  private static boolean overrides(Class<?> klass, String name)
+  {
+    try {
+      return klass.getMethod(name, Match.class).getDeclaringClass()
+        != MatchCallbacks.class;
+    }
+    catch (NoSuchMethodException e) {
+      throw new Error(e);
+    }
+  }
+}
@@ -1,11 +1,16 @@
 package compiler;
 
+import java.util.List;
+import java.util.Set;
+
 import compiler.macros.MacroInterface;
+import compiler.util.Captures;
 import grammar.Expression;
 import grammar.Expression.MacroRule;
 import grammar.Expression.Rule;
 import grammar.Grammar;
 import parser.Match;
+import util.LruCache;
 
 import static util.ListUtils.list;
 
@@ -23,6 +28,12 @@ public class Macro
   /****************************************************************************/
   public final Rule rule;
 
+  /*****************************************************************************
+   * The expressions of the macro syntax whose matches hold no capture (see
+   * {@link Captures}), computed when the macro is defined.
+   */
+  public final Set<Expression> barren;
+
   /****************************************************************************/
   private boolean enabled;
 
@@ -32,6 +43,24 @@ public class Macro
   /****************************************************************************/
   public final boolean prioritary;
 
+  /*****************************************************************************
+   * A pure macro is one whose expansion only depends on the text of the macro
+   * call (and on the grammar). Its expansions are cached by {@link
+   * MacroExpander}.
+   */
+  public final boolean pure;
+
+  /*****************************************************************************
+   * The cached expansions of the macro, if it is pure (see {@link
+   * MacroExpander}), keyed by grammar fingerprint and text of the macro call.
+   */
+  final LruCache<List<Object>, CachedExpansion> expansions;
+
+  /*****************************************************************************
+   * Maximum number of cached expansions per pure macro.
+   */
+  private static final int EXPANSIONS = 256;
+
   /****************************************************************************/
   private final MacroInterface expander;
 
@@ -50,7 +79,8 @@ public class Macro
     MacroInterface expander,
     Strategy       strategy,
     boolean        raw,
-    boolean        prioritary)
+    boolean        prioritary,
+    boolean        pure)
   {
     this.parentRule        = parentRule;
     this.grammar           = grammar;
@@ -58,6 +88,9 @@ public class Macro
     this.strategy          = strategy;
     this.raw               = raw;
     this.prioritary        = prioritary;
+    this.pure              = pure;
+    this.expansions        = pure ? new LruCache<List<Object>, CachedExpansion>(
+      EXPANSIONS) : null;
     this.enabled           = false;
 
     if (expander == null && strategy != Strategy.CALLED)
@@ -78,6 +111,7 @@ public class Macro
       : new MacroRule(ruleName, this, syntax);
 
     this.rule = grammar.cleanUnregisteredRule(dirty);
+    this.barren = Captures.plan(rule);
   }
 
   /****************************************************************************/
@@ -89,10 +123,11 @@ public class Macro
     MacroInterface expander,
     Strategy       strategy,
     boolean        raw,
-    boolean        prioritary)
+    boolean        prioritary,
+    boolean        pure)
   {
     this(ruleName, parentRule == null ? null : grammar.rule(parentRule),
-      grammar, syntax, expander, strategy, raw, prioritary);
+      grammar, syntax, expander, strategy, raw, prioritary, pure);
   }
 
   /****************************************************************************/
@@ -143,6 +178,31 @@ public class Macro
     if (enabled) { disable(); }
   }
 
+  /*****************************************************************************
+   * Makes the grammar forget about the macro, which must not be used anymore:
+   * disables it, drops the canonical expressions holding its rule (see {@link
+   * Grammar#forget}) and its cached expansions. Used when the file defining the
+   * macro is invalidated, so that the expander (and its class loader) can be
+   * garbage collected.
+   */
+  public void unload()
+  {
+    ensureDisabled();
+    grammar.forget(rule);
+
+    if (expansions != null) {
+      expansions.clear();
+    }
+  }
+
+  /*****************************************************************************
+   * Returns the class loader of the expander, or null if there is none.
+   */
+  public ClassLoader expanderLoader()
+  {
+    return expander == null ? null : expander.getClass().getClassLoader();
+  }
+
   /****************************************************************************/
   public Strategy strategy()
   {
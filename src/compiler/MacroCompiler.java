@@ -66,11 +66,16 @@ public class MacroCompiler
     code.append("Macro implements MacroInterface {\n  ");
     code.append("public Match expand(Match input) {\n");
 
+    if (!captures.isEmpty()) {
+      code.append("    compiler.util.Captures captures$ = "
+        + "compiler.util.Captures.of(input);\n");
+    }
+
     for (String captureName : captures)
     {
       builderAppend(code,
         "    Match[] ", captureName,
-        " = input.getCaptures(\"", captureName, "\");\n");
+        " = captures$.get(\"", captureName, "\");\n");
     }
 
     builderAppend(code, macroBody, "\n  }\n}");
@@ -2,9 +2,13 @@ package compiler;
 
 import static compiler.util.MatchCreator.new_match;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import driver.Config;
 import grammar.Expression.MacroRule;
 import grammar.Expression.Rule;
 import parser.Match;
@@ -13,9 +17,54 @@ import parser.Match;
  * See the sections of my thesis titled "How does caxap expand macros?",
  * "Expansion Strategies" and "Macro Expansion Order & Raw Macros" to learn more
  * about how macro are expanded.
+ *
+ * Optionally, the expander can expand independent subtrees in parallel (see
+ * {@link MatchTreeTransformer}). This requires the macro expanders to be
+ * thread-safe, and not to use the mutable parts of {@link driver.Context}.
  */
 public class MacroExpander extends MatchTreeTransformer
 {
+  /*****************************************************************************
+   * Creates an expander configured according to {@link Config#expanderThreads}
+   * and {@link Config#expansionThreshold}.
+   */
+  public MacroExpander()
+  {
+    this(Config.get().expanderThreads(), Config.get().expansionThreshold());
+  }
+
+  /*****************************************************************************
+   * Creates an expander that expands subtrees whose source is at least
+   * $threshold characters long in parallel, on $threads threads. With zero
+   * threads, the expansion is sequential.
+   */
+  public MacroExpander(int threads, int threshold)
+  {
+    super(threads, threshold);
+  }
+
+  /****************************************************************************/
+  private static final AtomicLong pureCacheHits = new AtomicLong();
+
+  /****************************************************************************/
+  private static final AtomicLong pureCacheMisses = new AtomicLong();
+
+  /*****************************************************************************
+   * Number of pure macro calls whose expansion was found in the cache.
+   */
+  public static long pureCacheHits()
+  {
+    return pureCacheHits.get();
+  }
+
+  /*****************************************************************************
+   * Number of pure macro calls that had to be expanded.
+   */
+  public static long pureCacheMisses()
+  {
+    return pureCacheMisses.get();
+  }
+
   /*****************************************************************************
    * Macro-expand the given match. Returns the expanded match. There is no
    * guarantee that the supplied match will not be modified. The current
@@ -24,14 +73,26 @@ public class MacroExpander extends MatchTreeTransformer
    */
   @Override public Match transform(Match match)
   {
-    if (match.expr instanceof Rule && !match.expr.atomic
-    &&  match.child().expr instanceof MacroRule)
-    {
+    if (inert(match)) {
+      return match;
+    }
+
+    if (isMacroCall(match)) {
       return expandMacro(match, match.child());
     }
     return transformChilds(match);
   }
 
+  /*****************************************************************************
+   * Indicates if $match is the match of a rule for a macro call: its child is
+   * the match of a macro rule.
+   */
+  static boolean isMacroCall(Match match)
+  {
+    return match.expr instanceof Rule && !match.expr.atomic
+      && match.child().expr instanceof MacroRule;
+  }
+
   /****************************************************************************/
   private Match expandMacro(Match parent, Match macroMatch)
   {
@@ -42,7 +103,7 @@ public class MacroExpander extends MatchTreeTransformer
       macroMatch = transformChilds(macroMatch);
     }
 
-    Match expansion = macro.expand(macroMatch);
+    Match expansion = expand(macro, macroMatch);
     expansion = transform(expansion); // recursive expansion
 
     if (!macro.isCalled()) {
@@ -63,6 +124,42 @@ public class MacroExpander extends MatchTreeTransformer
     }
   }
 
+  /*****************************************************************************
+   * Returns the expansion of $macro for $input, from the cache if the macro is
+   * pure. Only the macro's own expansion is cached: the macros it expands to are
+   * expanded anew.
+   *
+   * The cache is held by the macro (see {@link Macro#expansions}), so that it
+   * goes away with the macro and its class loader. Cached expansions are
+   * instantiated anew for each call (see {@link CachedExpansion}).
+   */
+  private Match expand(Macro macro, Match input)
+  {
+    if (!macro.pure) {
+      return macro.expand(input);
+    }
+
+    List<Object> key = Arrays.<Object>asList(
+      ByteBuffer.wrap(macro.grammar.fingerprint()), input.string());
+
+    CachedExpansion cached = macro.expansions.get(key);
+
+    if (cached != null) {
+      pureCacheHits.incrementAndGet();
+      return cached.instantiate();
+    }
+
+    pureCacheMisses.incrementAndGet();
+    Match expansion = macro.expand(input);
+    cached = CachedExpansion.of(macro, expansion);
+
+    if (cached != null) {
+      macro.expansions.put(key, cached);
+    }
+
+    return expansion;
+  }
+
   /****************************************************************************/
   private void checkParent(Rule parent, Macro macro)
   {
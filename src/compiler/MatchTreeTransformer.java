@@ -3,8 +3,14 @@ package compiler;
 import static compiler.util.MatchCreator.new_match;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+import driver.Context;
 import parser.Match;
 
 /**
@@ -12,18 +18,105 @@ import parser.Match;
  * recursive transformation on a match tree, and rebuild only the parts of the
  * tree which have changed. The subtrees that have not changed are shared
  * between the new and the old tree.
+ *
+ * Optionally, a transformer can transform independent subtrees in parallel, on
+ * a fork/join pool. When a match has at least two children whose source is at
+ * least as long as a threshold, those children are transformed in separate
+ * tasks, while the other children are transformed by the current thread. The
+ * transformed children are assembled in order, so the result doesn't depend on
+ * thread scheduling. If transforming multiple children fails, the error for the
+ * first child is reported, as in a sequential transformation.
+ *
+ * Transformers with the same number of threads share a pool. The pools are
+ * never shut down; their threads are daemons and expire when idle.
  */
 public abstract class MatchTreeTransformer
 {
+  /*****************************************************************************
+   * The pool used for parallel transformation, or null to transform
+   * sequentially.
+   */
+  private final ForkJoinPool pool;
+
+  /*****************************************************************************
+   * Minimum source length of a subtree for it to be transformed in its own
+   * task.
+   */
+  private final int threshold;
+
+  /*****************************************************************************
+   * The pools shared by the parallel transformers, keyed by number of threads.
+   */
+  private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
+  /****************************************************************************/
+  protected MatchTreeTransformer()
+  {
+    this(0, 0);
+  }
+
+  /*****************************************************************************
+   * Creates a transformer that transforms subtrees whose source is at least
+   * $threshold characters long in parallel, on $threads threads. With zero
+   * threads, the transformation is sequential.
+   */
+  protected MatchTreeTransformer(int threads, int threshold)
+  {
+    this.pool = threads > 0 ? pool(threads) : null;
+    this.threshold = threshold;
+  }
+
+  /*****************************************************************************
+   * Returns the pool shared by the parallel transformers with $threads threads,
+   * creating it if needed.
+   */
+  private static ForkJoinPool pool(int threads)
+  {
+    synchronized (pools)
+    {
+      ForkJoinPool pool = pools.get(threads);
+
+      if (pool == null) {
+        pool = new ForkJoinPool(threads);
+        pools.put(threads, pool);
+      }
+
+      return pool;
+    }
+  }
+
   /****************************************************************************/
   public abstract Match transform(Match match);
 
+  /*****************************************************************************
+   * Indicates that $match holds no match of an expression with callbacks, nor
+   * of a macro rule (see {@link grammar.Grammar#inert()}): the post-parse
+   * callbacks, the macro expansion and the post-expansion callbacks leave it
+   * unchanged.
+   */
+  protected boolean inert(Match match)
+  {
+    return Context.get().grammar().inert().contains(match.expr);
+  }
+
   /*****************************************************************************
    * Usually called from {@link #transform(Match)} to enable recursion.
    */
   protected Match transformChilds(Match match)
   {
     List<Match> childs1 = match.children();
+    int large = 0;
+
+    if (pool != null) {
+      for (Match child : childs1) {
+        if (child.length() >= threshold) { ++large; }
+      }
+    }
+
+    if (large >= 2) {
+      return transformChildsInParallel(match);
+    }
+
     List<Match> childs2 = null;
 
     for (int i = 0 ; i < childs1.size() ; ++i)
@@ -41,4 +134,99 @@ public abstract class MatchTreeTransformer
       ? new_match(match.expr, childs2)
       : match;
   }
+
+  /*****************************************************************************
+   * Like {@link #transformChilds}, but forks a task for each large child.
+   */
+  private Match transformChildsInParallel(Match match)
+  {
+    if (!ForkJoinTask.inForkJoinPool())
+    {
+      Transformation task = new Transformation(match, true);
+      pool.invoke(task);
+      return task.result();
+    }
+
+    List<Match> childs1 = match.children();
+    Transformation[] tasks = new Transformation[childs1.size()];
+
+    for (int i = 0 ; i < tasks.length ; ++i) {
+      if (childs1.get(i).length() >= threshold) {
+        tasks[i] = new Transformation(childs1.get(i), false);
+        tasks[i].fork();
+      }
+    }
+
+    List<Match> childs2 = null;
+
+    try {
+      for (int i = 0 ; i < tasks.length ; ++i)
+      {
+        Match original  = childs1.get(i);
+        Match expansion = tasks[i] == null
+          ? transform(original)
+          : tasks[i].result();
+
+        if (original != expansion) {
+          childs2 = (childs2 != null) ? childs2 : new ArrayList<>(childs1);
+          childs2.set(i, expansion);
+        }
+      }
+    }
+    finally {
+      // After an error, don't leave tasks behind.
+      for (Transformation task : tasks) {
+        if (task != null && !task.cancel(false)) {
+          task.quietlyJoin();
+        }
+      }
+    }
+
+    return childs2 != null
+      ? new_match(match.expr, childs2)
+      : match;
+  }
+
+  /*****************************************************************************
+   * The transformation of a match (or of its children only) as a fork/join
+   * task. Errors are held until {@link #result()} is called, in order to
+   * rethrow them as they are.
+   */
+  private class Transformation extends RecursiveAction
+  {
+    final Match match;
+    final boolean childsOnly;
+    Match result;
+    RuntimeException exception;
+    Error error;
+
+    Transformation(Match match, boolean childsOnly)
+    {
+      this.match = match;
+      this.childsOnly = childsOnly;
+    }
+
+    @Override protected void compute()
+    {
+      try {
+        result = childsOnly ? transformChilds(match) : transform(match);
+      }
+      catch (RuntimeException e) {
+        exception = e;
+      }
+      catch (Error e) {
+        error = e;
+      }
+    }
+
+    Match result()
+    {
+      quietlyJoin();
+
+      if (exception != null) { throw exception; }
+      if (error != null)     { throw error;     }
+
+      return result;
+    }
+  }
 }
@@ -10,15 +10,14 @@ import parser.Match;
  * - expands macros
  * - applies post macro expansion callbacks
  * </pre>
+ *
+ * The three phases are performed in a single traversal of the match tree (see
+ * {@link FusedTransformer}).
  */
 public class PostParser
 {
   public Match run(Match match)
   {
-    match = new PostParseTransformer()      .transform(match);
-    match = new MacroExpander()             .transform(match);
-    match = new PostExpansionTransformer()  .transform(match);
-
-    return match;
+    return new FusedTransformer().transform(match);
   }
 }
@@ -92,6 +92,11 @@ class QuotationMacroImplem
 
     replaceUnquotations(quotation, 0);
 
+    /* Locate the insert markers now rather than at the first expansion. */
+    if (!inserts.isEmpty()) {
+      Quoter.template(ruleName, expansion.toString());
+    }
+
     /* Escape the expansion to make it suitable to appear within a string
      * literal. */
     expansion.replace(0, expansion.length(), escape(expansion.toString()));
@@ -102,7 +107,7 @@ class QuotationMacroImplem
 
     for (Match insert : inserts) {
       expansion.append(", (Object)"); // avoids ambiguity with only one insert
-      expansion.append(insert.string());
+      insert.text().appendTo(expansion);
     }
     expansion.append(")");
 
@@ -194,8 +199,7 @@ class QuotationMacroImplem
 
     inserts.add(unary);
 
-    String str = unquot.string();
-    boolean isSplice = str.startsWith("#@");
+    boolean isSplice = unquot.text().startsWith("#@");
 
     String hashLike = isSplice
       ? "#@" + unquot.first(rule("spliceDelimiters")).string()
@@ -32,9 +32,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
@@ -46,12 +53,14 @@ import javax.tools.StandardLocation;
 
 import files.RelativeSourcePath;
 import files.Package;
+import util.FileUtils;
 import util.Multimap;
 
 /**
  * A JavaFileManager that collects the name and bytecode of compiled classes
  * into {@link CompiledClass} objects. Also allow the compiler to find classes
- * that were previously compiled via the {@link #list()} method.
+ * that were previously compiled via the {@link #list()} method, including
+ * classes read back from an archive (see {@link #addArchive}).
  *
  * Based on the original work by A. Sundararajan.
  */
@@ -60,23 +69,32 @@ extends ForwardingJavaFileManager<JavaFileManager>
 {
   /*****************************************************************************
    * A file object that stores the bytecode into a new {@link CompiledClass}
-   * object it adds to $classes.
+   * object it adds to $classes. It replaces any previous class with the same
+   * name.
    */
   private class ByteClass extends SimpleJavaFileObject
   {
     private final String name;
 
+    private byte[] bytecode;
+
     ByteClass(String name)
     {
       super(URI.create("string:///" + name), Kind.CLASS);
       this.name = name;
+      forget(Collections.singleton(name));
       byteclasses.add(RelativeSourcePath.make(name).pkg(), this);
     }
 
+    ByteClass(String name, byte[] bytecode)
+    {
+      this(name);
+      this.bytecode = bytecode;
+    }
+
     @Override public InputStream openInputStream()
     {
-      return new ByteArrayInputStream(
-        MemoryClassLoader.get().getBytecode(name));
+      return new ByteArrayInputStream(bytecode);
     }
 
     @Override public OutputStream openOutputStream()
@@ -87,7 +105,8 @@ extends ForwardingJavaFileManager<JavaFileManager>
         {
           out.close();
           ByteArrayOutputStream bos = (ByteArrayOutputStream) out;
-          classes.add(new CompiledClass(name, bos.toByteArray()));
+          bytecode = bos.toByteArray();
+          classes.add(new CompiledClass(name, bytecode));
         }
       };
     }
@@ -146,6 +165,58 @@ extends ForwardingJavaFileManager<JavaFileManager>
     return out;
   }
 
+  /*****************************************************************************
+   * Makes the compiler forget about the previously compiled classes whose names
+   * are in $classNames. To be used when the classes are unloaded.
+   */
+  public void forget(Collection<String> classNames)
+  {
+    for (String name : classNames)
+    {
+      Set<JavaFileObject> set =
+        byteclasses.get(RelativeSourcePath.make(name).pkg());
+
+      if (set == null) { continue; }
+
+      Iterator<JavaFileObject> iter = set.iterator();
+
+      while (iter.hasNext()) {
+        if (((ByteClass) iter.next()).name.equals(name)) {
+          iter.remove();
+        }
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * Makes the classes in the jar or zip archive at $archive available to the
+   * compiler, unless classes with the same names are compiled later.
+   */
+  public void addArchive(Path archive) throws IOException
+  {
+    try (ZipFile zip = new ZipFile(archive.toFile()))
+    {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+
+      while (entries.hasMoreElements())
+      {
+        ZipEntry entry = entries.nextElement();
+        String path = entry.getName();
+
+        if (entry.isDirectory() || !path.endsWith(".class")) {
+          continue;
+        }
+
+        String name = path.substring(0, path.length() - ".class".length())
+          .replace('/', '.');
+
+        try (InputStream stream = zip.getInputStream(entry)) {
+          new ByteClass(name, FileUtils.readAll(stream));
+        }
+      }
+    }
+  }
+
   /****************************************************************************/
   @Override public void close() throws IOException
   {
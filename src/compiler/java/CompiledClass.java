@@ -58,15 +58,29 @@ public class CompiledClass
   }
 
   /*****************************************************************************
-   * Dump the bytecode into a file whose matches the structure of the class
-   * name, under the $root directory.
+   * Returns the path of the class file for this class, under the $root
+   * directory.
    */
-  public void dump(Path root)
+  public Path path(Path root)
   {
     String relative = name.replaceAll("\\.",
       Matcher.quoteReplacement(File.separator)) + ".class";
 
-    File output = root.resolve(relative).toFile();
+    return root.resolve(relative);
+  }
+
+  /*****************************************************************************
+   * Dump the bytecode into a file whose matches the structure of the class
+   * name, under the $root directory. If the file already holds the same
+   * bytecode, it is left untouched. Returns true if the file was written.
+   */
+  public boolean dump(Path root)
+  {
+    File output = path(root).toFile();
+
+    if (FileUtils.hasContent(output, bytecode)) {
+      return false;
+    }
 
     try {
       FileUtils.create(output);
@@ -74,6 +88,7 @@ public class CompiledClass
         new FileOutputStream(output), bytecode.length);
       stream.write(bytecode);
       stream.close();
+      return true;
     }
     catch (IOException e){
       throw new Error("I/O error when trying to dump bytecode for class "
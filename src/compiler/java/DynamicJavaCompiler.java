@@ -2,6 +2,10 @@ package compiler.java;
 
 import static util.ListUtils.list;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.tools.JavaCompiler;
@@ -39,13 +43,41 @@ public class DynamicJavaCompiler
 
   /*****************************************************************************
    * Compile the supplied source objects. A source object represents
-   * a source file.
+   * a source file. Returns the classes resulting from this compilation only.
    */
   public List<CompiledClass> compile(List<JavaFileObject> sources)
   {
+    fm.classes.clear();
+
     compiler.getTask(null, fm, new ThrowingDiagnosticListener(),
       null, null, sources).call();
 
-    return fm.classes;
+    // Don't keep the classes: once loaded, they would keep their loader alive.
+    List<CompiledClass> classes = new ArrayList<>(fm.classes);
+    fm.classes.clear();
+    return classes;
+  }
+
+  /*****************************************************************************
+   * Makes the compiler forget about the previously compiled classes whose names
+   * are in $classNames, so that later compilations can't refer to them.
+   */
+  public void forget(Collection<String> classNames)
+  {
+    fm.forget(classNames);
+  }
+
+  /*****************************************************************************
+   * Makes the classes in the jar or zip archive at $archive (e.g. the classes
+   * output by a previous run) available to later compilations.
+   */
+  public void addArchive(Path archive)
+  {
+    try {
+      fm.addArchive(archive);
+    }
+    catch (IOException e) {
+      throw new Error("I/O error when reading classes from " + archive + ".", e);
+    }
   }
 }
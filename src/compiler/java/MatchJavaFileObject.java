@@ -0,0 +1,56 @@
+package compiler.java;
+
+import java.io.Reader;
+import java.net.URI;
+
+import javax.tools.SimpleJavaFileObject;
+
+import compiler.util.MatchEmitter;
+import files.RelativeSourcePath;
+import parser.Match;
+
+/**
+ * A JavaFileObject whose code is the original string of a match. The code is
+ * not held as a string: it is produced from the match tree whenever the
+ * compiler asks for it.
+ */
+public class MatchJavaFileObject extends SimpleJavaFileObject
+{
+  /****************************************************************************/
+  private final Match match;
+
+  /****************************************************************************/
+  private final RelativeSourcePath path;
+
+  /****************************************************************************/
+  public MatchJavaFileObject(RelativeSourcePath path, Match match)
+  {
+    super(URI.create("string:///" + path.fileName()), Kind.SOURCE);
+    this.match = match;
+    this.path = path;
+  }
+
+  /****************************************************************************/
+  @Override public CharSequence getCharContent(boolean ignoreEncErrors)
+  {
+    return match.originalText();
+  }
+
+  /****************************************************************************/
+  @Override public Reader openReader(boolean ignoreEncErrors)
+  {
+    return MatchEmitter.reader(match);
+  }
+
+  /****************************************************************************/
+  public Match match()
+  {
+    return match;
+  }
+
+  /****************************************************************************/
+  public RelativeSourcePath path()
+  {
+    return path;
+  }
+}
@@ -1,8 +1,11 @@
 package compiler.java;
 
 import java.security.SecureClassLoader;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A class loader that exposes a function to define classes from bytecode.
@@ -13,17 +16,39 @@ import java.util.Map;
  * The class names supplied to the functions should the full class names as
  * returned by {@link Class#getName()} (e.g. "java.util.List" or
  * "java.util.AbstractMap$SimpleEntry").
+ *
+ * Besides the process-wide root instance returned by {@link #get()}, loaders
+ * can be scoped to a single source file (see
+ * {@link driver.SourceFile#classLoader()}). Such a loader delegates to the root
+ * loader, then to the loaders of the files it depends upon. Dropping all
+ * references to a scoped loader makes the classes it defined unreachable, so
+ * that they can be garbage collected.
  */
 public class MemoryClassLoader extends SecureClassLoader
 {
   /****************************************************************************/
   private static final MemoryClassLoader instance = new MemoryClassLoader();
-  private MemoryClassLoader() {}
+  private MemoryClassLoader() { this.dependencies = null; }
   public static MemoryClassLoader get() { return instance; }
 
   /****************************************************************************/
   private Map<String, byte[]> bytecodes = new HashMap<>();
 
+  /*****************************************************************************
+   * Loaders of the files the classes defined by this loader may depend upon.
+   */
+  private final Collection<MemoryClassLoader> dependencies;
+
+  /*****************************************************************************
+   * Creates a loader whose parent is the root loader, and which can resolve
+   * classes defined by the loaders in $dependencies.
+   */
+  public MemoryClassLoader(Collection<MemoryClassLoader> dependencies)
+  {
+    super(instance);
+    this.dependencies = dependencies;
+  }
+
   /****************************************************************************/
   public Class<?> defineClass(String name, byte[] bytecode)
   {
@@ -49,4 +74,52 @@ public class MemoryClassLoader extends SecureClassLoader
   {
     return bytecodes.get(name);
   }
+
+  /*****************************************************************************
+   * Returns the names of the classes defined by this loader.
+   */
+  public Set<String> classNames()
+  {
+    return Collections.unmodifiableSet(bytecodes.keySet());
+  }
+
+  /*****************************************************************************
+   * Called when the parent loaders cannot find the class: looks for the class
+   * in the loaders of the dependencies.
+   */
+  @Override protected Class<?> findClass(String name)
+  throws ClassNotFoundException
+  {
+    Class<?> klass = findInDependencies(name);
+
+    if (klass == null) {
+      throw new ClassNotFoundException(name);
+    }
+
+    return klass;
+  }
+
+  /*****************************************************************************
+   * Returns the class with the given name if it was defined by one of the
+   * (transitive) dependency loaders, or null.
+   */
+  private Class<?> findInDependencies(String name)
+  {
+    if (dependencies == null) {
+      return null;
+    }
+
+    for (MemoryClassLoader dependency : dependencies)
+    {
+      Class<?> klass = dependency.bytecodes.containsKey(name)
+        ? dependency.findLoadedClass(name)
+        : dependency.findInDependencies(name);
+
+      if (klass != null) {
+        return klass;
+      }
+    }
+
+    return null;
+  }
 }
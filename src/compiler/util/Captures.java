@@ -0,0 +1,155 @@
+package compiler.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import grammar.Expression;
+import grammar.Expression.Capture;
+import grammar.Expression.MacroRule;
+import grammar.Expression.Rule;
+import parser.Match;
+
+/**
+ * The captures of a macro input, collected in a single traversal of its match
+ * tree. {@link #get} returns the same matches as {@link Match#getCaptures},
+ * without traversing the tree for each capture name.
+ *
+ * The traversal skips the matches of expressions that cannot hold a capture.
+ * Those are determined once per macro, from its syntax (see {@link #plan} and
+ * {@link compiler.Macro#barren}). Matches whose expression does not belong to
+ * the syntax (e.g. the expansion of a nested macro) are searched entirely.
+ *
+ * The macro compiler generates expanders that use this class.
+ */
+public class Captures
+{
+  /****************************************************************************/
+  private final Map<String, List<Match>> captures = new HashMap<>();
+
+  /*****************************************************************************
+   * Collects the captures of $input, the match of a macro rule (or of another
+   * rule, in which case its syntax is analyzed on the spot).
+   */
+  public static Captures of(Match input)
+  {
+    Set<Expression> barren = input.expr instanceof MacroRule
+      ? ((MacroRule) input.expr).macro.barren
+      : plan(input.expr);
+
+    Captures captures = new Captures();
+
+    /* As in Match#getCaptures(), do the first step here, so that the recursion
+     * isn't cut off at the input. */
+    for (Match child : input.children()) {
+      captures.collect(child, barren, Collections.<String>emptyList());
+    }
+
+    return captures;
+  }
+
+  /*****************************************************************************
+   * Returns the captures with name $name.
+   */
+  public Match[] get(String name)
+  {
+    List<Match> matches = captures.get(name);
+
+    return matches == null
+      ? new Match[0]
+      : matches.toArray(new Match[matches.size()]);
+  }
+
+  /*****************************************************************************
+   * Collects the captures in $match, unless its expression is in $barren.
+   * Captures whose name is in $blocked are not collected (nor is the content of
+   * captures searched for captures of the same name).
+   */
+  private void collect(Match match, Set<Expression> barren,
+    List<String> blocked)
+  {
+    if (barren.contains(match.expr) || match.expr instanceof Rule) {
+      return;
+    }
+
+    if (match.expr instanceof Capture)
+    {
+      String name = ((Capture) match.expr).captureName;
+
+      if (!blocked.contains(name))
+      {
+        List<Match> matches = captures.get(name);
+
+        if (matches == null) {
+          captures.put(name, matches = new ArrayList<>());
+        }
+
+        matches.add(match.child());
+        blocked = new ArrayList<>(blocked);
+        blocked.add(name);
+      }
+    }
+
+    for (Match child : match.children()) {
+      collect(child, barren, blocked);
+    }
+  }
+
+  /*****************************************************************************
+   * Returns the expressions of the syntax of $rule whose matches cannot hold a
+   * capture of the rule. The content of other rules doesn't count, as captures
+   * are not searched there.
+   */
+  public static Set<Expression> plan(Expression rule)
+  {
+    Map<Expression, Boolean> fertile = new IdentityHashMap<>();
+
+    for (Expression child : rule.children()) {
+      fertile(child, fertile);
+    }
+
+    Set<Expression> barren =
+      Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+    for (Map.Entry<Expression, Boolean> entry : fertile.entrySet()) {
+      if (!entry.getValue()) {
+        barren.add(entry.getKey());
+      }
+    }
+
+    return Collections.unmodifiableSet(barren);
+  }
+
+  /*****************************************************************************
+   * Indicates if the matches of $expr can hold a capture, recording the answer
+   * for $expr and its descendants in $fertile.
+   */
+  private static boolean fertile(Expression expr,
+    Map<Expression, Boolean> fertile)
+  {
+    Boolean known = fertile.get(expr);
+
+    if (known != null) {
+      return known;
+    }
+
+    // Rules (whose content is not searched) hold no capture.
+    boolean result = expr instanceof Capture;
+    fertile.put(expr, result);
+
+    if (!(expr instanceof Rule))
+    {
+      for (Expression child : expr.children()) {
+        result |= fertile(child, fertile);
+      }
+
+      fertile.put(expr, result);
+    }
+
+    return result;
+  }
+}
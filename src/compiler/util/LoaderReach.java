@@ -0,0 +1,107 @@
+package compiler.util;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import grammar.Expression;
+import grammar.Expression.MacroRule;
+import parser.Match;
+
+/**
+ * Tells whether expressions and match trees can reach the classes defined by a
+ * class loader: through macro rules, whose expanders are instances of such
+ * classes, or through callbacks that are.
+ *
+ * Expressions form a graph, which is walked from each queried expression. The
+ * expressions found not to reach the loader are remembered, so that a series
+ * of queries walks each expression at most once.
+ */
+final class LoaderReach
+{
+  /****************************************************************************/
+  private final ClassLoader loader;
+
+  /*****************************************************************************
+   * Expressions known not to reach the loader.
+   */
+  private final Set<Expression> clean =
+    Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+  /****************************************************************************/
+  LoaderReach(ClassLoader loader)
+  {
+    this.loader = loader;
+  }
+
+  /*****************************************************************************
+   * Indicates if $expr, or an expression reachable from it, refers to a class
+   * defined by the loader.
+   */
+  boolean reaches(Expression expr)
+  {
+    if (clean.contains(expr)) {
+      return false;
+    }
+
+    Set<Expression> visited =
+      Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+    Deque<Expression> todo = new ArrayDeque<>();
+    todo.push(expr);
+    visited.add(expr);
+
+    while (!todo.isEmpty())
+    {
+      Expression current = todo.pop();
+
+      if (refers(current)) {
+        return true;
+      }
+
+      for (Expression child : current.children()) {
+        if (!clean.contains(child) && visited.add(child)) {
+          todo.push(child);
+        }
+      }
+    }
+
+    // None of the visited expressions reaches the loader, or $expr would.
+    clean.addAll(visited);
+    return false;
+  }
+
+  /*****************************************************************************
+   * Indicates if the expression of a match of the tree rooted at $match reaches
+   * the loader.
+   */
+  boolean reaches(Match match)
+  {
+    if (reaches(match.expr)) {
+      return true;
+    }
+
+    for (Match child : match.children()) {
+      if (reaches(child)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /*****************************************************************************
+   * Indicates if $expr itself refers to a class defined by the loader.
+   */
+  private boolean refers(Expression expr)
+  {
+    if (expr.callbacks != null
+    &&  expr.callbacks.getClass().getClassLoader() == loader) {
+      return true;
+    }
+
+    return expr instanceof MacroRule
+      && ((MacroRule) expr).macro.expanderLoader() == loader;
+  }
+}
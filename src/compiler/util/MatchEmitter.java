@@ -0,0 +1,62 @@
+package compiler.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import parser.Match;
+
+/**
+ * Emits the text of a match (its original string) without building it in
+ * memory: the text is read from the source of the match in chunks of bounded
+ * size. For matches resulting from macro expansion, the source is composed (see
+ * {@link source.SourceComposed}), and each chunk is gathered from the leaves of
+ * its rope.
+ */
+public class MatchEmitter
+{
+  /*****************************************************************************
+   * Maximum number of characters read from a source at once.
+   */
+  public static final int CHUNK_SIZE = 8192;
+
+  /*****************************************************************************
+   * Writes the original string of $match to $writer. Does not flush nor close
+   * the writer.
+   */
+  public static void emit(Match match, Writer writer) throws IOException
+  {
+    for (int p = match.begin ; p < match.end ; p += CHUNK_SIZE) {
+      writer.write(match.source.at(p, Math.min(p + CHUNK_SIZE, match.end)));
+    }
+  }
+
+  /*****************************************************************************
+   * Returns a reader for the original string of $match.
+   */
+  public static Reader reader(final Match match)
+  {
+    return new Reader()
+    {
+      /** Position of the next character to read in the source. */
+      int position = match.begin;
+
+      @Override public int read(char[] buffer, int offset, int length)
+      {
+        if (position == match.end) {
+          return -1;
+        }
+
+        int end = Math.min(position + Math.min(length, CHUNK_SIZE), match.end);
+        match.source.at(position, end).getChars(0, end - position, buffer,
+          offset);
+
+        int read = end - position;
+        position = end;
+        return read;
+      }
+
+      @Override public void close() {}
+    };
+  }
+}
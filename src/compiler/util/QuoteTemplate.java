@@ -0,0 +1,356 @@
+package compiler.util;
+
+import static trees.MatchSpec.expr;
+import static trees.MatchSpec.hasMatchAtPos;
+import static trees.MatchSpec.rule;
+import static util.StringUtils.unescape;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import driver.Context;
+import grammar.Expression;
+import grammar.Expression.Rule;
+import grammar.Grammar;
+import parser.Match;
+import parser.Matcher;
+import parser.Skeleton;
+import source.Source;
+import source.SourceString;
+import trees.MatchSpec;
+
+/**
+ * A quotation template, as used by {@link Quoter#dynamicQuote}: code following
+ * the syntax of {@link grammar.java._E_MacroDefinitions#dynamicSourceFragment},
+ * whose insert markers are replaced by inserts before parsing it according to a
+ * rule.
+ *
+ * The insert markers are located once, when the template is created (which
+ * {@link compiler.QuotationMacro} does when compiling a macro). An expansion
+ * then only pastes the inserts between the fragments of code.
+ *
+ * Expansions yielding the same code as a recent quotation reuse its match tree
+ * (see {@link Quoter#cacheHits()}).
+ *
+ * The template also keeps the match tree of a previous expansion, as a {@link
+ * Skeleton} whose holes are the inserts. As long as the grammar doesn't change
+ * (as indicated by {@link Grammar#fingerprint()} and by the identity of the
+ * rule), expansions refill the skeleton with their inserts, which only reparses
+ * the inserts and what depends on them. When this is not possible (e.g. an insert changes the way
+ * the code around it parses), the code is parsed anew.
+ */
+public class QuoteTemplate
+{
+  /****************************************************************************/
+  public final String rule;
+
+  /****************************************************************************/
+  public final String code;
+
+  /*****************************************************************************
+   * The insert markers, in order. Escaped markers are not included.
+   */
+  private final Marker[] markers;
+
+  /*****************************************************************************
+   * The last reusable skeleton.
+   */
+  private volatile Parse last;
+
+  /****************************************************************************/
+  QuoteTemplate(String rule, String code)
+  {
+    this.rule = rule;
+    this.code = code;
+
+    Matcher matcher = new Matcher(new SourceString(code));
+
+    // The rule can match any string.
+    matcher.matches(Context.get().grammar().rule("dynamicSourceFragment"));
+
+    List<Marker> markers = new ArrayList<>();
+
+    for (Match marker : matcher.match().all(rule("insertMarker")))
+    if (!marker.has(rule("backslash"))) // escaped marker
+    {
+      markers.add(new Marker(marker));
+    }
+
+    this.markers = markers.toArray(new Marker[markers.size()]);
+  }
+
+  /*****************************************************************************
+   * Returns the match obtained by parsing the code, with the markers replaced by
+   * $inserts. Verifies that inserted matches do parse back.
+   */
+  public Match quote(Object... inserts)
+  {
+    Expansion expansion = new Expansion(inserts);
+    String text = expansion.text.toString();
+
+    Grammar grammar = Context.get().grammar();
+    Rule rule = grammar.rule(this.rule);
+    byte[] fingerprint = grammar.fingerprint();
+    Match cached = Quoter.cached(rule, fingerprint, text);
+
+    if (cached != null && expansion.parsedBack(grammar, cached)) {
+      return cached.first(expr(rule));
+    }
+
+    Source source = new SourceString(text);
+    Parse last = this.last;
+
+    if (last != null && last.rule == rule
+    &&  Arrays.equals(last.fingerprint, fingerprint))
+    {
+      Match result = last.skeleton.refill(
+        source, expansion.begins, expansion.ends);
+
+      if (result != null && expansion.parsedBack(grammar, result)) {
+        Quoter.cache(rule, fingerprint, text, result);
+        return result.first(expr(rule));
+      }
+    }
+
+    Skeleton skeleton = Skeleton.parse(Quoter.wrap(grammar, rule, fingerprint),
+      source, expansion.begins, expansion.ends);
+
+    if (skeleton == null) {
+      throw Quoter.invalidQuotation(rule, text);
+    }
+
+    Match result = Quoter.verify(rule, text, skeleton.match(), expansion.specs);
+    Quoter.cache(rule, fingerprint, text, skeleton.match());
+
+    if (skeleton.reusable()) {
+      this.last = new Parse(rule, fingerprint, skeleton);
+    }
+
+    return result;
+  }
+
+  /*****************************************************************************
+   * Drops the reusable skeleton if it can reach the classes of the loader of
+   * $reach (see {@link Quoter#forget}).
+   */
+  void forget(LoaderReach reach)
+  {
+    Parse last = this.last;
+
+    if (last != null
+    && (reach.reaches(last.rule) || reach.reaches(last.skeleton.match()))) {
+      this.last = null;
+    }
+  }
+
+  /*****************************************************************************
+   * An insert marker.
+   */
+  private static class Marker
+  {
+    final String string;    // source of the marker
+    final int begin, end;   // position of the marker in the template
+    final int number;       // insert index (1-based)
+    final String[] delims;  // delimiters, for splice markers; null otherwise
+
+    Marker(Match marker)
+    {
+      string = marker.string();
+      begin  = marker.begin;
+      end    = marker.end;
+      number = Integer.parseInt(marker.first(rule("parseIntNumber")).string());
+      delims = string.startsWith("#@") ? getDelimiters(marker) : null;
+    }
+
+    /**************************************************************************
+     * Returns the delimiters of a spliced inserts.
+     */
+    private static String[] getDelimiters(Match marker)
+    {
+      Match[] delimMatches = marker.all(rule("spliceDelimiter"));
+      String[] delimiters = new String[3];
+
+      for (int i = 0; i < 3; ++i)
+      {
+        delimiters[i] = unescape(delimMatches[i].string());
+        delimiters[i] = delimiters[i].replaceAll("\\\\\\|", "|");
+        // We replace \|, but this is a regexp inside a java string.
+      }
+
+      return delimiters;
+    }
+  }
+
+  /*****************************************************************************
+   * A skeleton, the rule it was parsed for, and the fingerprint of the grammar
+   * it was parsed with. The skeleton holds expressions of that grammar: a
+   * different grammar with the same rules doesn't qualify (nor does a grammar
+   * whose rule of that name was replaced).
+   */
+  private static class Parse
+  {
+    final Rule rule;
+    final byte[] fingerprint;
+    final Skeleton skeleton;
+
+    Parse(Rule rule, byte[] fingerprint, Skeleton skeleton)
+    {
+      this.rule = rule;
+      this.fingerprint = fingerprint;
+      this.skeleton = skeleton;
+    }
+  }
+
+  /*****************************************************************************
+   * The code of the template, with the markers replaced by inserts.
+   */
+  private class Expansion
+  {
+    final Object[] inserts;
+    final StringBuilder text = new StringBuilder(code.length());
+
+    // Positions of the inserts in $text (the holes of the skeleton).
+    final int[] begins = new int[markers.length];
+    final int[] ends = new int[markers.length];
+
+    // Verify that inserted matches do parse back.
+    final List<MatchSpec> specs = new ArrayList<>();
+    final List<Match> matches = new ArrayList<>();
+    final List<Integer> positions = new ArrayList<>();
+
+    Expansion(Object[] inserts)
+    {
+      this.inserts = inserts;
+      int copied = 0; // index in $code up to which it was copied to $text
+
+      for (int i = 0 ; i < markers.length ; ++i)
+      {
+        Marker marker = markers[i];
+        text.append(code, copied, marker.begin);
+        copied = marker.end;
+
+        checkNumber(marker);
+        Object insert = inserts[marker.number - 1];
+        checkType(marker, insert);
+
+        begins[i] = text.length();
+
+        if (marker.delims == null) {
+          appendInsert(insert);
+        }
+        else {
+          appendSplice((Object[]) insert, marker.delims);
+        }
+
+        ends[i] = text.length();
+      }
+
+      text.append(code, copied, code.length());
+    }
+
+    /**************************************************************************/
+    void checkType(Marker marker, Object insert)
+    {
+      if (marker.delims != null && !insert.getClass().isArray()) {
+        throw new Error("The parameter supplied to dynamicQuote() for the "
+          + "splice marker " + marker.string + " should be an array, in ["
+          + code + "].");
+      }
+    }
+
+    /**************************************************************************/
+    void checkNumber(Marker marker)
+    {
+      if (marker.number > inserts.length) {
+        throw new Error("Insert number in source fragment is too high: "
+          + marker.number + " when the max is " + inserts.length + ".");
+      }
+    }
+
+    /***************************************************************************
+     * Appends an inserted object to the text. Uses {@link Match#string()} for
+     * matches, {@link Object#toString()} otherwise.
+     */
+    void appendInsert(Object insert)
+    {
+      if (insert instanceof Match) {
+        Match match = (Match) insert;
+        specs.add(hasMatchAtPos(match, text.length()));
+        matches.add(match);
+        positions.add(text.length());
+        match.text().appendTo(text);
+      }
+      else {
+        text.append(insert.toString());
+      }
+    }
+
+    /***************************************************************************
+     * Like {@link #appendInsert}, but for match splices.
+     */
+    void appendSplice(Object[] inserts, String[] seps)
+    {
+      if (inserts.length == 0) {
+        return;
+      }
+
+      text.append(seps[0]);
+
+      for (int i = 0 ; i < inserts.length ; ++i)
+      {
+        if (i > 0) {
+          text.append(seps[1]);
+        }
+
+        appendInsert(inserts[i]);
+      }
+
+      text.append(seps[2]);
+    }
+
+    /***************************************************************************
+     * Equivalent to checking $specs against $result, but only descends along
+     * the position of each inserted match, instead of searching the whole tree.
+     */
+    boolean parsedBack(Grammar grammar, Match result)
+    {
+      for (int i = 0 ; i < matches.size() ; ++i)
+      {
+        Match match = matches.get(i);
+
+        if (!hasMatchAt(result, positions.get(i),
+          grammar.clean(match.expr), match.text()))
+        {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  /*****************************************************************************
+   * Does $tree have a sub-match (possibly itself) for $expr, beginning at
+   * $position, whose string is $string?
+   */
+  private static boolean hasMatchAt(
+    Match tree, int position, Expression expr, CharSequence string)
+  {
+    if (tree.begin == position && tree.expr == expr
+      && tree.text().contentEquals(string))
+    {
+      return true;
+    }
+
+    for (Match child : tree.children()) {
+      if (child.begin <= position && position <= child.end
+        && hasMatchAt(child, position, expr, string))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
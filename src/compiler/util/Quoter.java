@@ -3,12 +3,11 @@ package compiler.util;
 import static grammar.GrammarDSL.endOfInput;
 import static grammar.GrammarDSL.seq;
 import static trees.MatchSpec.expr;
-import static trees.MatchSpec.hasMatchAtPos;
-import static trees.MatchSpec.rule;
-import static util.StringUtils.unescape;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import driver.Context;
 import driver.Hints;
@@ -17,10 +16,10 @@ import grammar.Expression.Rule;
 import grammar.Grammar;
 import parser.Match;
 import parser.Matcher;
-import source.Source;
 import source.SourceString;
 import trees.MatchSpec;
 import util.ArraySlice;
+import util.LruCache;
 
 /**
  * See the section of my thesis titled "(Quasi)quotation" to learn more about
@@ -36,167 +35,138 @@ public class Quoter
    */
   public static Match dynamicQuote(String rule, String code, Object... inserts)
   {
-    return new DynamicQuoteMethod().dynamicQuote(rule, code, inserts);
+    return template(rule, code).quote(inserts);
   }
 
-  /****************************************************************************/
-  private static class DynamicQuoteMethod
-  {
-    // // GLOBALS
-    // ===============================================================
-
-    String code;            // [final] original quote string
-    Object[] inserts;       // [final] objects to be inserted
-    List<MatchSpec> specs;  // verify that inserted matches do parse back
-
-    // index diff for current marker between $code and $expansion
-    int diff = 0;
-
-    // // PER MARKER
-    // ============================================================
-
-    Match marker;       // current marker
-    int number;         // insert (of $inserts) index by $marker
-    boolean isSplice;   // is the marker for splicing (match array insertion)?
-    Object insert;      // $inserts[$number]
-    String insertion;   // $insert, converted to string according to $marker
-
-    /******************************************************************h********/
-    Match dynamicQuote(String rule, String code, Object... inserts)
-    {
-      StringBuffer expansion = new StringBuffer(code);
-      Matcher matcher = new Matcher(new SourceString(code));
+  /*****************************************************************************
+   * Templates used with {@link #dynamicQuote}, keyed by rule name and code.
+   */
+  private static final LruCache<List<String>, QuoteTemplate> templates =
+    new LruCache<>(1024);
 
-      this.code = code;
-      this.inserts = inserts;
-      this.specs = new ArrayList<>(inserts.length);
+  /*****************************************************************************
+   * Cleaned wrapper expressions (see {@link #wrap}), keyed by rule and grammar
+   * fingerprint.
+   */
+  private static final LruCache<List<Object>, Expression> wraps =
+    new LruCache<>(64);
 
-      // The rule can match any string.
-      matcher.matches(Context.get().grammar().rule("dynamicSourceFragment"));
+  /*****************************************************************************
+   * Match trees of recent quotations (for the expression returned by {@link
+   * #wrap}), keyed by rule, grammar fingerprint and quoted code. Quoting the
+   * same code again (e.g. when a macro is called repeatedly with the same
+   * arguments) reuses the tree instead of parsing it again. Match trees are
+   * immutable, so sharing them is safe.
+   */
+  private static final LruCache<List<Object>, Match> results =
+    new LruCache<>(256);
 
-      for (Match marker : matcher.match().all(rule("insertMarker")))
-      if (!marker.has(rule("backslash"))) // escaped marker
-      {
-        updatePerMarkerVariables(marker);
-        expansion.replace(marker.begin + diff, marker.end + diff, insertion);
-        diff = diff - marker.length() + insertion.length();
-      }
+  /*****************************************************************************
+   * Returns the template for quoting $code (which follows the syntax of
+   * dynamicSourceFragment) according to the rule named $rule. The insert
+   * markers are only looked up the first time a template is requested.
+   */
+  public static QuoteTemplate template(String rule, String code)
+  {
+    List<String> key = Arrays.asList(rule, code);
+    QuoteTemplate template = templates.get(key);
 
-      return primitiveQuote(rule, expansion.toString(), specs);
+    if (template == null) {
+      template = new QuoteTemplate(rule, code);
+      templates.put(key, template);
     }
 
-    /**************************************************************************/
-    void updatePerMarkerVariables(Match marker)
-    {
-      number = Integer.parseInt(marker.first(rule("parseIntNumber")).string());
-
-      this.marker = marker;
-      checkNumber();
-      String str = marker.string();
-
-      isSplice = str.startsWith("#@");
-      insert = inserts[number - 1];
+    return template;
+  }
 
-      checkType();
-      insertion = getInsertionString();
-    }
+  /*****************************************************************************
+   * Removes from the caches the wrapper expressions and match trees that can
+   * reach classes defined by $loader (through the rules of its macros, or
+   * through callbacks), and the reusable parses of the templates that can. Must
+   * be called when the classes of a file are unloaded (see {@link
+   * driver.SourceFile#unloadClasses()}), lest the caches keep the loader alive.
+   * The other entries are kept.
+   */
+  public static void forget(ClassLoader loader)
+  {
+    LoaderReach reach = new LoaderReach(loader);
 
-    /**************************************************************************/
-    void checkType()
-    {
-      if (isSplice && !insert.getClass().isArray()) {
-        throw new Error("The parameter supplied to dynamicQuote() for the "
-          + "splice marker " + marker.string() + " should be an array, in ["
-          + code + "].");
+    for (Map.Entry<List<Object>, Expression> entry : wraps.entries()) {
+      if (reach.reaches(entry.getValue())) {
+        wraps.remove(entry.getKey());
       }
     }
 
-    /**************************************************************************/
-    void checkNumber()
-    {
-      if (number > inserts.length) {
-        throw new Error("Insert number in source fragment is too high: "
-          + number + " when the max is " + inserts.length + ".");
+    for (Map.Entry<List<Object>, Match> entry : results.entries()) {
+      if (reach.reaches((Rule) entry.getKey().get(0))
+      ||  reach.reaches(entry.getValue())) {
+        results.remove(entry.getKey());
       }
     }
 
-    /*****************************************************************************
-     * Returns $insert, converted to string according to $marker. Adds items in
-     * $specs for $insert.
-     */
-    String getInsertionString()
-    {
-      return isSplice
-        ? getSpliceString((Object[]) insert, getDelimiters(marker))
-        : insertToString(insert);
+    for (Map.Entry<List<String>, QuoteTemplate> entry : templates.entries()) {
+      entry.getValue().forget(reach);
     }
+  }
 
-    /***************************************************************************
-     * Returns the delimiters of a spliced inserts.
-     */
-    private String[] getDelimiters(Match marker)
-    {
-      assert isSplice;
-
-      Match[] delimMatches = marker.all(rule("spliceDelimiter"));
-      String[] delimiters = new String[3];
+  /*****************************************************************************
+   * Number of quotations whose match tree was found in the cache.
+   */
+  public static long cacheHits()
+  {
+    return results.hits();
+  }
 
-      for (int i = 0; i < 3; ++i)
-      {
-        delimiters[i] = unescape(delimMatches[i].string());
-        delimiters[i] = delimiters[i].replaceAll("\\\\\\|", "|");
-        // We replace \|, but this is a regexp inside a java string.
-      }
+  /*****************************************************************************
+   * Number of quotations whose match tree had to be built.
+   */
+  public static long cacheMisses()
+  {
+    return results.misses();
+  }
 
-      return delimiters;
-    }
+  /*****************************************************************************
+   * Returns the cached match tree for quoting $code according to $rule, in a
+   * grammar with the given fingerprint; or null if there is none.
+   */
+  static Match cached(Rule rule, byte[] fingerprint, String code)
+  {
+    return results.get(resultKey(rule, fingerprint, code));
+  }
 
-    /***************************************************************************
-     * Converts an inserted object to a string holding the code it represents.
-     * Uses {@link Match#string()} for matches, {@link Object#toString()}
-     * otherwise.
-     */
-    private String insertToString(Object insert)
-    {
-      if (insert instanceof Match) {
-        Match match = (Match) insert;
-        specs.add(hasMatchAtPos(match, marker.begin + diff));
-        return match.string();
-      }
-      else {
-        return insert.toString();
-      }
+  /*****************************************************************************
+   * Caches $result as the match tree for quoting $code according to $rule, in a
+   * grammar with the given fingerprint. Trees holding matches whose expression
+   * has callbacks are not cached, since parsing them has side effects.
+   */
+  static void cache(Rule rule, byte[] fingerprint, String code, Match result)
+  {
+    if (!hasCallbacks(result)) {
+      results.put(resultKey(rule, fingerprint, code), result);
     }
+  }
 
-    /***************************************************************************
-     * Like {@link #getInsertionString()}, but specialized for match splices.
-     */
-    String getSpliceString(Object[] inserts, String[] seps)
-    {
-      if (inserts.length == 0) {
-        return "";
-      }
-
-      // Keep $diff accurate for $specs.
-      int old_diff = diff;
-      diff += seps[0].length();
+  /****************************************************************************/
+  private static List<Object> resultKey(Rule rule, byte[] fingerprint,
+    String code)
+  {
+    return Arrays.<Object>asList(rule, ByteBuffer.wrap(fingerprint), code);
+  }
 
-      StringBuilder builder = new StringBuilder(seps[0]);
+  /****************************************************************************/
+  private static boolean hasCallbacks(Match match)
+  {
+    if (match.expr.callbacks != null) {
+      return true;
+    }
 
-      for (Object insert : inserts)
-      {
-        String str = insertToString(insert);
-        builder.append(str);
-        builder.append(seps[1]);
-        diff += str.length() + seps[1].length();
+    for (Match child : match.children()) {
+      if (hasCallbacks(child)) {
+        return true;
       }
-
-      diff = old_diff;
-
-      builder.delete(builder.length() - seps[1].length(), builder.length());
-      builder.append(seps[2]);
-      return builder.toString();
     }
+
+    return false;
   }
 
   /*****************************************************************************
@@ -209,17 +179,57 @@ public class Quoter
   {
     Grammar grammar = Context.get().grammar();
     Rule rule = grammar.rule(ruleName);
-    Expression wrap = grammar.clean(seq(rule, endOfInput));
-    Source source = new SourceString(code);
-    Matcher matcher = new Matcher(source);
+    byte[] fingerprint = grammar.fingerprint();
+    Match result = cached(rule, fingerprint, code);
+
+    if (result == null)
+    {
+      Matcher matcher = new Matcher(new SourceString(code));
+
+      if (!matcher.matches(wrap(grammar, rule, fingerprint))) {
+        throw invalidQuotation(rule, code);
+      }
+
+      result = matcher.match();
+      cache(rule, fingerprint, code, result);
+    }
+
+    return verify(rule, code, result, specs);
+  }
+
+  /*****************************************************************************
+   * The expression used to parse quotations for $rule: the whole quoted code
+   * must match the rule. $fingerprint is the fingerprint of $grammar.
+   */
+  static Expression wrap(Grammar grammar, Rule rule, byte[] fingerprint)
+  {
+    List<Object> key = Arrays.<Object>asList(rule, ByteBuffer.wrap(fingerprint));
+    Expression wrap = wraps.get(key);
 
-    if (!matcher.matches(wrap)) {
-      throw new Error("The quotation '" + rule + " [" + code
-        + "]' does not yield a valid parse.");
+    if (wrap == null) {
+      wrap = grammar.clean(seq(rule, endOfInput));
+      wraps.put(key, wrap);
     }
 
-    Match result = matcher.match();
-    Hints.get().hintSource(source);
+    return wrap;
+  }
+
+  /****************************************************************************/
+  static Error invalidQuotation(Rule rule, String code)
+  {
+    return new Error("The quotation '" + rule + " [" + code
+      + "]' does not yield a valid parse.");
+  }
+
+  /*****************************************************************************
+   * Verifies that $result (the match of $code for the expression returned by
+   * {@link #wrap}) satisfies the specifications in $specs, and returns its
+   * match for $rule.
+   */
+  static Match verify(Rule rule, String code, Match result,
+    List<MatchSpec> specs)
+  {
+    Hints.get().hintSource(result.source);
 
     for (MatchSpec spec : specs) {
       if (!spec.matches(result)) {
@@ -1,15 +1,17 @@
 package driver;
 
-import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 
 import files.BackedRequire;
+import compiler.MacroExpander;
 import compiler.PostParser;
 import compiler.java.CompiledClass;
 import compiler.java.DynamicJavaCompiler;
 import compiler.java.MemoryClassLoader;
-import compiler.java.StringJavaFileObject;
+import compiler.java.MatchJavaFileObject;
+import compiler.util.Quoter;
 import parser.Match;
 import util.FileUtils;
 
@@ -33,15 +35,121 @@ public class CompilationDriver
   /****************************************************************************/
   private static final DynamicJavaCompiler compiler = DynamicJavaCompiler.get();
 
+  /*****************************************************************************
+   * Writes the output files (generated sources and dumped classes) during
+   * {@link #run}. Null outside of it, in which case the output files are
+   * written synchronously.
+   */
+  private static OutputWriter output;
+
   /****************************************************************************/
   private void run(List<SourceFile> files)
+  {
+    OutputWriter writer = new OutputWriter(
+      Config.get().writerThreads(), Config.get().writeBufferSize());
+
+    output = writer;
+    useArchives(writer);
+
+    Throwable failure = null;
+
+    try {
+      compileFiles(files);
+    }
+    catch (Error | RuntimeException e) {
+      failure = e;
+      throw e;
+    }
+    finally {
+      output = null;
+      close(writer, failure);
+    }
+
+    printStats(writer);
+  }
+
+  /*****************************************************************************
+   * Closes $writer. If the compilation failed with $failure (null otherwise),
+   * an error while closing the writer doesn't replace it: it is added to
+   * $failure as a suppressed exception.
+   */
+  private static void close(OutputWriter writer, Throwable failure)
+  {
+    try {
+      writer.close();
+    }
+    catch (Error | RuntimeException e) {
+      if (failure == null) {
+        throw e;
+      }
+
+      failure.addSuppressed(e);
+    }
+  }
+
+  /*****************************************************************************
+   * Prints statistics about the output of the compilation, when files were left
+   * unchanged, and about its caches, if asked to (see {@link Config#stats}).
+   */
+  private static void printStats(OutputWriter writer)
+  {
+    if (writer.unchangedFiles() > 0) {
+      System.out.println("Wrote " + writer.writtenFiles() + " file(s), "
+        + "skipped " + writer.unchangedFiles() + " unchanged file(s).");
+    }
+
+    if (!Config.get().stats()) {
+      return;
+    }
+
+    if (Quoter.cacheHits() > 0) {
+      System.out.println("Reused the match tree of " + Quoter.cacheHits()
+        + " out of " + (Quoter.cacheHits() + Quoter.cacheMisses())
+        + " quotation(s).");
+    }
+
+    if (MacroExpander.pureCacheHits() > 0) {
+      System.out.println("Reused the expansion of "
+        + MacroExpander.pureCacheHits() + " out of "
+        + (MacroExpander.pureCacheHits() + MacroExpander.pureCacheMisses())
+        + " pure macro call(s).");
+    }
+  }
+
+  /*****************************************************************************
+   * If the class or generated source output locations designate archives,
+   * directs the output there. Makes the classes of an existing class archive
+   * available to the compiler.
+   */
+  private void useArchives(OutputWriter writer)
+  {
+    Path targetDir = Config.get().targetDir();
+    Path generatedSrcDir = Config.get().generatedSrcDir();
+
+    if (FileUtils.isArchive(targetDir))
+    {
+      // The classes reused from the archive are not written again.
+      writer.archive(targetDir, Config.get().cache());
+
+      if (Config.get().cache() && Files.isRegularFile(targetDir)) {
+        compiler.addArchive(targetDir);
+      }
+    }
+
+    if (FileUtils.isArchive(generatedSrcDir)) {
+      writer.archive(generatedSrcDir);
+    }
+  }
+
+  /****************************************************************************/
+  private void compileFiles(List<SourceFile> files)
   {
     for (SourceFile file : files)
     {
       Context.get().currentFile = file;
       enableRequiredMacros(file);
 
-      String code = expandFile(file);
+      Match code = expandFile(file);
 
       /* Macros defined in the file are compiled during the parse, via
        * callbacks. This is needed because subsequent macros in the file might
@@ -65,12 +173,14 @@ public class CompilationDriver
   }
 
   /*****************************************************************************
-   * Returns the macro-expansion of $file.
+   * Returns the macro-expansion of $file. Its code is the original string of
+   * the returned match: it is emitted from the match tree when needed, rather
+   * than built as a string.
    */
-  private String expandFile(SourceFile file)
+  private Match expandFile(SourceFile file)
   {
     Match match = file.parser().parse();
-    return postParser.run(match).originalString();
+    return postParser.run(match);
   }
 
   /*****************************************************************************
@@ -78,17 +188,27 @@ public class CompilationDriver
    * be the result of macro-expanding the code from $file. $file should not be a
    * macro file.
    */
-  private List<CompiledClass> compileFile(SourceFile file, String code)
+  private List<CompiledClass> compileFile(SourceFile file, Match code)
   {
     return
-      compiler.compile(new StringJavaFileObject(file.path(), code));
+      compiler.compile(new MatchJavaFileObject(file.path(), code));
   }
 
 
+  /*****************************************************************************
+   * Returns the class loader of the file currently being compiled, or the root
+   * class loader if there is none.
+   */
+  private static MemoryClassLoader currentLoader()
+  {
+    SourceFile file = Context.get().currentFile;
+    return file != null ? file.classLoader() : MemoryClassLoader.get();
+  }
+
   /****************************************************************************/
   public static void dumpAndOrLoadClasses(List<CompiledClass> classes)
   {
-    dumpAndOrLoadClasses(classes, MemoryClassLoader.get(),
+    dumpAndOrLoadClasses(classes, currentLoader(),
       Config.get().targetDir(), true, Config.get().cache());
   }
 
@@ -106,7 +226,7 @@ public class CompilationDriver
   /****************************************************************************/
   public static void dumpAndOrLoadClass(CompiledClass klass)
   {
-    dumpAndOrLoadClass(klass, MemoryClassLoader.get(),
+    dumpAndOrLoadClass(klass, currentLoader(),
       Config.get().targetDir(), true, Config.get().cache());
   }
 
@@ -115,16 +235,35 @@ public class CompilationDriver
     MemoryClassLoader loader, Path targetDir, boolean load, boolean dump)
   {
     if (load) { klass.load(loader); }
-    if (dump) { klass.dump(targetDir); }
+    if (dump && output != null) {
+      output.write(klass.path(targetDir), klass.bytecode);
+    }
+    else if (dump) {
+      klass.dump(targetDir);
+    }
+  }
+
+  /*****************************************************************************
+   * Writes $bytes to the file at $path, through the output writer during
+   * {@link #run}, and synchronously otherwise.
+   */
+  static void writeOutput(Path path, byte[] bytes)
+  {
+    if (output != null) {
+      output.write(path, bytes);
+    }
+    else {
+      FileUtils.writeIfChanged(path.toFile(), bytes);
+    }
   }
 
   /****************************************************************************/
-  private void writeGeneratedSource(SourceFile file, String code)
+  private void writeGeneratedSource(SourceFile file, Match code)
   {
-    File dest = Config.get().generatedSrcDir()
-      .resolve(file.path().relativePath()).toFile();
+    Path dest = Config.get().generatedSrcDir()
+      .resolve(file.path().relativePath());
 
-    FileUtils.write(dest, code);
+    output.write(dest, code);
   }
 
   /****************************************************************************/
@@ -58,15 +58,74 @@ public class Config
   /*****************************************************************************
    * Where output .class files (if $cache == true). Can be customized with the
    * command line option "-target".
+   *
+   * If the path ends with ".jar" or ".zip", the classes are written into an
+   * archive at that path instead, and the classes from the archive written by
+   * the previous run are made available to the compiler.
    */
   Path targetDir = null;
 
   /*****************************************************************************
    * Root source directory for generated java source (if $outputSource == true).
    * Can be customized with the command line option "-generated".
+   *
+   * If the path ends with ".jar" or ".zip", the sources are written into an
+   * archive at that path instead.
    */
   Path generatedSrcDir = null;
 
+  /*****************************************************************************
+   * Directory in which the match trees of parsed files are cached (see
+   * {@link ParseCache}), or null to disable the cache. Can be customized with
+   * the command line option "-parseCache".
+   */
+  Path parseCacheDir = null;
+
+  /*****************************************************************************
+   * Number of threads used to write output files. With zero threads, the files
+   * are written synchronously. Can be customized with the command line option
+   * "-writers".
+   */
+  int writerThreads = 2;
+
+  /*****************************************************************************
+   * Maximum number of bytes handed to the operating system per write call when
+   * writing output files. Can be customized with the command line option
+   * "-writeBuffer".
+   */
+  int writeBufferSize = 64 * 1024;
+
+  /*****************************************************************************
+   * Number of threads used to read and decode source files ahead of time (see
+   * {@link SourceRepository}). With zero threads, files are read when needed.
+   * Can be customized with the command line option "-readers".
+   */
+  int readerThreads = 4;
+
+  /*****************************************************************************
+   * Number of threads used to expand independent macro calls in parallel (see
+   * {@link compiler.MacroExpander}). With zero threads, macros are expanded
+   * sequentially. Can be customized with the command line option "-expanders".
+   *
+   * Only use this if the macro expanders are thread-safe.
+   */
+  int expanderThreads = 0;
+
+  /*****************************************************************************
+   * Minimum length (in characters) of the source of a subtree for it to be
+   * expanded in parallel with its siblings, when {@link #expanderThreads} is
+   * not zero. Can be customized with the command line option
+   * "-expansionThreshold".
+   */
+  int expansionThreshold = 1024;
+
+  /*****************************************************************************
+   * Print how often the quotation and pure expansion caches were hit, at the
+   * end of the compilation. Can be customized with the command line option
+   * "-stats".
+   */
+  boolean stats = false;
+
   /****************************************************************************/
   public boolean cache()
   {
@@ -90,4 +149,46 @@ public class Config
   {
     return charset;
   }
+
+  /****************************************************************************/
+  public Path parseCacheDir()
+  {
+    return parseCacheDir;
+  }
+
+  /****************************************************************************/
+  public int writerThreads()
+  {
+    return writerThreads;
+  }
+
+  /****************************************************************************/
+  public int writeBufferSize()
+  {
+    return writeBufferSize;
+  }
+
+  /****************************************************************************/
+  public int readerThreads()
+  {
+    return readerThreads;
+  }
+
+  /****************************************************************************/
+  public int expanderThreads()
+  {
+    return expanderThreads;
+  }
+
+  /****************************************************************************/
+  public int expansionThreshold()
+  {
+    return expansionThreshold;
+  }
+
+  /****************************************************************************/
+  public boolean stats()
+  {
+    return stats;
+  }
 }
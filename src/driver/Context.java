@@ -1,5 +1,6 @@
 package driver;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Stack;
@@ -19,6 +20,13 @@ public class Context
   /****************************************************************************/
   public static final Grammar MACRO_GRAMMAR = new Grammar(JavaGrammar.class);
 
+  /*****************************************************************************
+   * Fingerprint of $MACRO_GRAMMAR before any macro extends it (macros extend it
+   * in place).
+   */
+  private static final byte[] MACRO_GRAMMAR_FINGERPRINT =
+    MACRO_GRAMMAR.fingerprint();
+
   /*****************************************************************************
    * (Must be after other static members.)
    */
@@ -30,6 +38,15 @@ public class Context
     return instance;
   }
 
+  /*****************************************************************************
+   * Indicates if $grammar has the same rules as {@link #MACRO_GRAMMAR} before
+   * any macro was enabled, see {@link grammar.Grammar#fingerprint()}.
+   */
+  public static boolean isUnextendedMacroGrammar(Grammar grammar)
+  {
+    return Arrays.equals(grammar.fingerprint(), MACRO_GRAMMAR_FINGERPRINT);
+  }
+
   /****************************************************************************/
   public final SourceRepository repo = new SourceRepository();
 
@@ -71,6 +71,20 @@ public class DependencyResolver
     repo.hint(macroPaths);
     repo.hint(sourcePaths);
 
+    try {
+      return order(macroPaths, sourcePaths);
+    }
+    finally {
+      repo.endPrefetch();
+    }
+  }
+
+  /*****************************************************************************
+   * Orders the files at $macroPaths and $sourcePaths, see {@link #resolve}.
+   */
+  private List<SourceFile> order(
+    List<RootedSourcePath> macroPaths, List<RootedSourcePath> sourcePaths)
+  {
     List<SourceFile> files = new ArrayList<>();
 
     for (RootedSourcePath path : macroPaths) {
@@ -119,6 +119,55 @@ public class EntryPoint
       }
       break;
 
+    case "-parseCache":
+      if (i+1 < args.length) {
+        Config.get().parseCacheDir = Paths.get(args[i + 1]);
+        return i + 2;
+      }
+      break;
+
+    case "-writers":
+      if (i+1 < args.length) {
+        Config.get().writerThreads = Integer.parseInt(args[i+1]);
+        return i + 2;
+      }
+      break;
+
+    case "-writeBuffer":
+      if (i+1 < args.length) {
+        Config.get().writeBufferSize = Integer.parseInt(args[i+1]);
+        return i + 2;
+      }
+      break;
+
+    case "-readers":
+      if (i+1 < args.length) {
+        Config.get().readerThreads = Integer.parseInt(args[i+1]);
+        return i + 2;
+      }
+      break;
+
+    case "-expanders":
+      if (i+1 < args.length) {
+        Config.get().expanderThreads = Integer.parseInt(args[i+1]);
+        return i + 2;
+      }
+      break;
+
+    case "-expansionThreshold":
+      if (i+1 < args.length) {
+        Config.get().expansionThreshold = Integer.parseInt(args[i+1]);
+        return i + 2;
+      }
+      break;
+
+    case "-stats":
+      if (i+1 < args.length) {
+        Config.get().stats = Boolean.valueOf(args[i+1]);
+        return i + 2;
+      }
+      break;
+
     default:
       System.out.println("Ignoring unknown option: \"" + args[i] + "\"");
       return i + 1;
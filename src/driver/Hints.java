@@ -6,7 +6,7 @@ import source.Source;
 
 /**
  * Enables some functions to produce better diagnostics by providing bits of
- * context.
+ * context. Hints are per thread.
  */
 public class Hints
 {
@@ -20,23 +20,29 @@ public class Hints
   }
 
   /****************************************************************************/
-  private Stack<Source> sources = new Stack<>();
+  private final ThreadLocal<Stack<Source>> sources =
+    new ThreadLocal<Stack<Source>>() {
+      @Override protected Stack<Source> initialValue() {
+        return new Stack<>();
+      }
+    };
 
   /****************************************************************************/
   public Source source()
   {
+    Stack<Source> sources = this.sources.get();
     return sources.isEmpty() ? null : sources.peek();
   }
 
   /****************************************************************************/
   public void hintSource(Source source)
   {
-    sources.push(source);
+    sources.get().push(source);
   }
 
   /****************************************************************************/
   public void endHintSource()
   {
-    sources.pop();
+    sources.get().pop();
   }
 }
@@ -0,0 +1,776 @@
+package driver;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import compiler.util.MatchEmitter;
+import parser.Match;
+import util.FileUtils;
+
+/**
+ * The output stage of the compilation: writes generated sources and class files
+ * to disk on a small pool of writer threads, so that I/O overlaps with the
+ * parsing and expansion of the next files.
+ *
+ * Pending writes are held in a bounded queue. When the queue is full, the
+ * thread submitting the write performs it itself, which limits the amount of
+ * output held in memory.
+ *
+ * Files whose content is unchanged are not rewritten (see
+ * {@link FileUtils#hasContent}). Parent directories are created once per
+ * directory, rather than once per file.
+ *
+ * The text of a match can be written without building it in memory (see
+ * {@link #write(Path, Match)}).
+ *
+ * I/O errors are reported by {@link #flush()}, which waits for all pending
+ * writes. If several writes failed, the error of the first submitted one is
+ * reported, so that the outcome does not depend on thread scheduling.
+ *
+ * With zero writer threads, files are written synchronously by {@link #write}.
+ *
+ * Output can also be directed to archives (see {@link #archive}): files whose
+ * path lies "under" the archive's path become archive entries. Their content is
+ * spilled to temporary files as it is submitted, and only their names are kept
+ * in memory. {@link #close()} streams the entries into a temporary file next to
+ * the archive, then moves it in place. The entries are sorted by name and carry
+ * a fixed timestamp, so that identical outputs yield identical archives.
+ */
+public class OutputWriter
+{
+  /*****************************************************************************
+   * Maximum number of pending writes per writer thread.
+   */
+  private static final int QUEUE_SIZE_PER_THREAD = 64;
+
+  /****************************************************************************/
+  private final ThreadPoolExecutor executor;
+
+  /*****************************************************************************
+   * Maximum number of bytes handed to the file channel per write call.
+   */
+  private final int bufferSize;
+
+  /*****************************************************************************
+   * Pending (or completed but not yet flushed) writes, in submission order.
+   */
+  private final List<Future<Boolean>> pending = new ArrayList<>();
+
+  /*****************************************************************************
+   * Directories known to exist.
+   */
+  private final Set<Path> directories = new HashSet<>();
+
+  /*****************************************************************************
+   * Maps archive paths to the entries to write in them.
+   */
+  private final Map<Path, Archive> archives = new LinkedHashMap<>();
+
+  /*****************************************************************************
+   * Modification time of archive entries: 1980-01-01, the earliest time that
+   * can be represented in a zip file.
+   */
+  private static final long ENTRY_TIME =
+    new GregorianCalendar(1980, 0, 1).getTimeInMillis();
+
+  /****************************************************************************/
+  private final AtomicInteger writtenFiles = new AtomicInteger();
+
+  /****************************************************************************/
+  private final AtomicInteger unchangedFiles = new AtomicInteger();
+
+  /****************************************************************************/
+  public OutputWriter(int threads, int bufferSize)
+  {
+    if (bufferSize <= 0) {
+      throw new Error("The output buffer size must be positive: " + bufferSize);
+    }
+
+    this.bufferSize = bufferSize;
+
+    this.executor = threads <= 0 ? null : new ThreadPoolExecutor(
+      threads, threads, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(threads * QUEUE_SIZE_PER_THREAD),
+      new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "caxap-output-writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      },
+      new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /*****************************************************************************
+   * Schedules the writing of $bytes to the file at $path.
+   */
+  public void write(final Path path, final byte[] bytes)
+  {
+    final Path spill = spill(path);
+
+    schedule(new Callable<Boolean>() {
+      @Override public Boolean call() {
+        return spill != null ? spillFile(spill, bytes) : writeFile(path, bytes);
+      }
+    });
+  }
+
+  /*****************************************************************************
+   * Schedules the writing of $string to the file at $path, using the platform's
+   * default encoding (like {@link FileUtils#write(java.io.File, String)}).
+   */
+  public void write(Path path, String string)
+  {
+    write(path, string.getBytes());
+  }
+
+  /*****************************************************************************
+   * Schedules the writing of the original string of $match to the file at
+   * $path, using the platform's default encoding. The text is encoded as it is
+   * written, without building it in memory.
+   */
+  public void write(final Path path, final Match match)
+  {
+    final Path spill = spill(path);
+
+    schedule(new Callable<Boolean>() {
+      @Override public Boolean call() {
+        return spill != null ? spillFile(spill, match) : writeFile(path, match);
+      }
+    });
+  }
+
+  /*****************************************************************************
+   * Runs $write on a writer thread, or on the current thread if there are none.
+   */
+  private void schedule(Callable<Boolean> write)
+  {
+    FutureTask<Boolean> task = new FutureTask<>(write);
+    pending.add(task);
+
+    if (executor == null) {
+      task.run();
+    }
+    else {
+      executor.execute(task);
+    }
+  }
+
+  /*****************************************************************************
+   * Waits for all pending writes to complete. Throws an error if one of them
+   * failed.
+   */
+  public void flush()
+  {
+    Error error = null;
+
+    for (Future<Boolean> future : pending)
+    {
+      try {
+        future.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new Error("Interrupted while waiting for output to be written.");
+      }
+      catch (ExecutionException e) {
+        if (error == null) {
+          error = e.getCause() instanceof Error
+            ? (Error) e.getCause()
+            : new Error(e.getCause());
+        }
+      }
+    }
+
+    pending.clear();
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /*****************************************************************************
+   * Directs the files written under $archive (e.g. "out/classes.jar/a/B.class")
+   * to entries of the archive at $archive (e.g. entry "a/B.class" in
+   * "out/classes.jar"). The archive is rebuilt with the entries written in this
+   * run only.
+   */
+  public void archive(Path archive)
+  {
+    archive(archive, false);
+  }
+
+  /*****************************************************************************
+   * Like {@link #archive(Path)}, but if $update is true, the entries of the
+   * existing archive that are not written in this run are kept (e.g. classes
+   * that the compiler reused from the archive instead of compiling them). The
+   * entries are never removed from such an archive: delete it to get rid of
+   * stale entries.
+   */
+  public void archive(Path archive, boolean update)
+  {
+    archives.put(archive, new Archive(update));
+  }
+
+  /*****************************************************************************
+   * Flushes the pending writes, writes the archives, then stops the writer
+   * threads and deletes the spilled archive entries.
+   */
+  public void close()
+  {
+    try {
+      flush();
+
+      for (final Map.Entry<Path, Archive> archive : archives.entrySet())
+      {
+        schedule(new Callable<Boolean>() {
+          @Override public Boolean call() {
+            return writeArchive(archive.getKey(), archive.getValue());
+          }
+        });
+      }
+
+      flush();
+    }
+    finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+
+      for (Archive archive : archives.values()) {
+        archive.delete();
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * Number of files that were written so far.
+   */
+  public int writtenFiles()
+  {
+    return writtenFiles.get();
+  }
+
+  /*****************************************************************************
+   * Number of files that were left untouched so far, because their content was
+   * unchanged.
+   */
+  public int unchangedFiles()
+  {
+    return unchangedFiles.get();
+  }
+
+  /*****************************************************************************
+   * If $path lies under one of the archives, records it as an entry of the
+   * archive and returns the file its content must be spilled to; otherwise
+   * returns null.
+   */
+  private Path spill(Path path)
+  {
+    Path archive = archiveOf(path);
+
+    if (archive == null) {
+      return null;
+    }
+
+    StringBuilder name = new StringBuilder();
+
+    for (Path part : archive.relativize(path)) {
+      if (name.length() > 0) { name.append('/'); }
+      name.append(part);
+    }
+
+    return archives.get(archive).add(name.toString());
+  }
+
+  /*****************************************************************************
+   * Returns the path of the archive $path lies under, or null if there is none.
+   */
+  private Path archiveOf(Path path)
+  {
+    for (Path archive : archives.keySet()) {
+      if (path.startsWith(archive) && !path.equals(archive)) {
+        return archive;
+      }
+    }
+
+    return null;
+  }
+
+  /*****************************************************************************
+   * Writes the zip archive holding the entries of $archive, in order, to a
+   * temporary file next to $path, then moves it to $path, unless the file at
+   * $path already has the same content. If $archive is updated, the entries of
+   * the file at $path that were not written are copied as well. Returns true if
+   * the file was written.
+   */
+  private boolean writeArchive(Path path, Archive archive)
+  {
+    Path temp = null;
+
+    try {
+      Path directory = path.toAbsolutePath().getParent();
+      createDirectory(directory);
+      temp = Files.createTempFile(directory, path.getFileName() + ".", ".tmp");
+
+      try (ZipFile previous = archive.update && Files.isRegularFile(path)
+             ? new ZipFile(path.toFile()) : null;
+           ZipOutputStream zip = new ZipOutputStream(
+             new BufferedOutputStream(Files.newOutputStream(temp), bufferSize)))
+      {
+        Set<String> names = new TreeSet<>(archive.entries.keySet());
+
+        if (previous != null) {
+          for (Enumeration<? extends ZipEntry> it = previous.entries() ;
+            it.hasMoreElements() ; )
+          {
+            names.add(it.nextElement().getName());
+          }
+        }
+
+        for (String name : names)
+        {
+          ZipEntry zipEntry = new ZipEntry(name);
+          zipEntry.setTime(ENTRY_TIME);
+          zip.putNextEntry(zipEntry);
+
+          Path spill = archive.entries.get(name);
+
+          if (spill != null) {
+            Files.copy(spill, zip);
+          }
+          else {
+            copy(previous.getInputStream(previous.getEntry(name)), zip);
+          }
+
+          zip.closeEntry();
+        }
+      }
+
+      if (sameContent(temp, path)) {
+        unchangedFiles.incrementAndGet();
+        return false;
+      }
+
+      try {
+        Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, REPLACE_EXISTING);
+      }
+
+      temp = null;
+    }
+    catch (IOException e) {
+      throw new Error("I/O error when trying to write archive: " + path, e);
+    }
+    finally {
+      deleteQuietly(temp);
+    }
+
+    writtenFiles.incrementAndGet();
+    return true;
+  }
+
+  /*****************************************************************************
+   * Copies the content of $in to $out, then closes $in.
+   */
+  private static void copy(InputStream in, OutputStream out) throws IOException
+  {
+    try {
+      byte[] buffer = new byte[8192];
+
+      for (int n = in.read(buffer) ; n != -1 ; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /*****************************************************************************
+   * Indicates if the files at $path1 and $path2 both exist and have the same
+   * content. Stops reading at the first difference.
+   */
+  private static boolean sameContent(Path path1, Path path2)
+  {
+    try {
+      if (!Files.isRegularFile(path2) || Files.size(path1) != Files.size(path2))
+      {
+        return false;
+      }
+
+      try (InputStream in1 = Files.newInputStream(path1);
+           InputStream in2 = Files.newInputStream(path2))
+      {
+        InputStream buf1 = new BufferedInputStream(in1);
+        InputStream buf2 = new BufferedInputStream(in2);
+        int b;
+
+        do {
+          b = buf1.read();
+          if (b != buf2.read()) {
+            return false;
+          }
+        }
+        while (b != -1);
+
+        return true;
+      }
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /*****************************************************************************
+   * Deletes the file at $path, if $path is not null, ignoring errors.
+   */
+  private static void deleteQuietly(Path path)
+  {
+    if (path != null) {
+      try {
+        Files.deleteIfExists(path);
+      }
+      catch (IOException e) {
+        // best effort
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * Writes $bytes to $spill, the file holding the content of an archive entry.
+   */
+  private static boolean spillFile(Path spill, byte[] bytes)
+  {
+    try {
+      Files.write(spill, bytes);
+    }
+    catch (IOException e) {
+      throw new Error("I/O error when trying to write file: " + spill, e);
+    }
+
+    return true;
+  }
+
+  /*****************************************************************************
+   * Writes the original string of $match, encoded with the platform's default
+   * encoding, to $spill, the file holding the content of an archive entry.
+   */
+  private boolean spillFile(Path spill, Match match)
+  {
+    try (FileChannel channel =
+      FileChannel.open(spill, WRITE, CREATE, TRUNCATE_EXISTING))
+    {
+      Writer writer = Channels.newWriter(channel,
+        Charset.defaultCharset().newEncoder(), bufferSize);
+
+      MatchEmitter.emit(match, writer);
+      writer.flush();
+    }
+    catch (IOException e) {
+      throw new Error("I/O error when trying to write file: " + spill, e);
+    }
+
+    return true;
+  }
+
+  /*****************************************************************************
+   * Writes $bytes to the file at $path, using a file channel, unless the file
+   * already has this content. Returns true if the file was written.
+   */
+  private boolean writeFile(Path path, byte[] bytes)
+  {
+    if (FileUtils.hasContent(path.toFile(), bytes)) {
+      unchangedFiles.incrementAndGet();
+      return false;
+    }
+
+    try {
+      createDirectory(path.toAbsolutePath().getParent());
+
+      try (FileChannel channel =
+        FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING))
+      {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        while (buffer.position() < bytes.length) {
+          buffer.limit(Math.min(buffer.position() + bufferSize, bytes.length));
+          channel.write(buffer);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new Error("I/O error when trying to write file: " + path, e);
+    }
+
+    writtenFiles.incrementAndGet();
+    return true;
+  }
+
+  /*****************************************************************************
+   * Like {@link #writeFile(Path, byte[])}, but for the original string of
+   * $match, encoded with the platform's default encoding. The text is emitted
+   * once, compared to the file as it goes (see {@link Rewrite}).
+   */
+  private boolean writeFile(Path path, Match match)
+  {
+    boolean changed;
+
+    try {
+      createDirectory(path.toAbsolutePath().getParent());
+
+      try (FileChannel channel = FileChannel.open(path, READ, WRITE, CREATE))
+      {
+        Rewrite rewrite = new Rewrite(channel, bufferSize);
+        Writer writer = new OutputStreamWriter(
+          rewrite, Charset.defaultCharset().newEncoder());
+
+        MatchEmitter.emit(match, writer);
+        writer.flush();
+        changed = rewrite.finish();
+      }
+    }
+    catch (IOException e) {
+      throw new Error("I/O error when trying to write file: " + path, e);
+    }
+
+    (changed ? writtenFiles : unchangedFiles).incrementAndGet();
+    return changed;
+  }
+
+  /*****************************************************************************
+   * An output stream that rewrites a file in a single pass: the bytes written
+   * to it are compared with those of the file, and the file is only written
+   * from the first difference on. A file that already holds the bytes is left
+   * untouched, its modification time included.
+   */
+  private static class Rewrite extends OutputStream
+  {
+    final FileChannel channel;
+
+    /** Bytes of the file, read ahead of $position. */
+    final ByteBuffer existing;
+
+    /** Bytes waiting to be written at $offset. */
+    final ByteBuffer pending;
+
+    /** Number of bytes written to the stream. */
+    long position;
+
+    /** Position in the file of the first byte of $existing or $pending. */
+    long offset;
+
+    /** Whether a difference was found, after which bytes are written. */
+    boolean differs;
+
+    Rewrite(FileChannel channel, int bufferSize)
+    {
+      this.channel = channel;
+      this.existing = ByteBuffer.allocate(bufferSize);
+      this.pending = ByteBuffer.allocate(bufferSize);
+      existing.flip();
+    }
+
+    @Override public void write(int b) throws IOException
+    {
+      if (!differs && !compare(b)) {
+        differs = true;
+        offset = position;
+      }
+
+      if (differs) {
+        pending.put((byte) b);
+        if (!pending.hasRemaining()) {
+          drain();
+        }
+      }
+
+      ++position;
+    }
+
+    @Override public void write(byte[] bytes, int off, int len)
+      throws IOException
+    {
+      for (int end = off + len ; off < end ; )
+      {
+        if (differs) {
+          int n = Math.min(end - off, pending.remaining());
+          pending.put(bytes, off, n);
+          if (!pending.hasRemaining()) {
+            drain();
+          }
+          position += n;
+          off += n;
+        }
+        else {
+          write(bytes[off++]);
+        }
+      }
+    }
+
+    /***************************************************************************
+     * Indicates if the next byte of the file is $b.
+     */
+    private boolean compare(int b) throws IOException
+    {
+      if (!existing.hasRemaining())
+      {
+        offset = position;
+        existing.clear();
+        int n = channel.read(existing, offset);
+        existing.flip();
+
+        if (n <= 0) {
+          return false;
+        }
+      }
+
+      return existing.get() == (byte) b;
+    }
+
+    /***************************************************************************
+     * Writes the pending bytes to the file.
+     */
+    private void drain() throws IOException
+    {
+      pending.flip();
+      while (pending.hasRemaining()) {
+        offset += channel.write(pending, offset);
+      }
+      pending.clear();
+    }
+
+    /***************************************************************************
+     * Writes the remaining pending bytes and cuts off what the file holds past
+     * the bytes written to the stream. Returns whether the file was changed.
+     */
+    boolean finish() throws IOException
+    {
+      drain();
+
+      if (channel.size() > position) {
+        channel.truncate(position);
+        return true;
+      }
+
+      return differs;
+    }
+  }
+
+  /*****************************************************************************
+   * Creates $directory and its parents, unless it is known to exist already.
+   */
+  private void createDirectory(Path directory) throws IOException
+  {
+    synchronized (directories)
+    {
+      if (!directories.contains(directory)) {
+        Files.createDirectories(directory);
+        directories.add(directory);
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * The entries of an archive: their names, in order, mapped to the temporary
+   * files holding their content. The files are created in a temporary
+   * directory, on the first entry.
+   */
+  private static class Archive
+  {
+    final Map<String, Path> entries = new TreeMap<>();
+
+    /** Keep the entries of the existing archive, see {@link #archive}. */
+    final boolean update;
+
+    Archive(boolean update)
+    {
+      this.update = update;
+    }
+
+    Path directory;
+
+    /** Number of files created in $directory. */
+    int files;
+
+    /***************************************************************************
+     * Records an entry named $name, replacing any previous entry with that
+     * name, and returns the file its content must be written to. A fresh file
+     * is used each time, so that concurrent writes of the same entry don't
+     * clash.
+     */
+    Path add(String name)
+    {
+      try {
+        if (directory == null) {
+          directory = Files.createTempDirectory("caxap-archive");
+        }
+
+        Path spill = directory.resolve(Integer.toString(files++));
+        entries.put(name, spill);
+        return spill;
+      }
+      catch (IOException e) {
+        throw new Error("I/O error when creating a temporary directory.", e);
+      }
+    }
+
+    /***************************************************************************
+     * Deletes the temporary files holding the content of the entries.
+     */
+    void delete()
+    {
+      if (directory != null) {
+        try {
+          FileUtils.deleteDir(directory.toFile());
+        }
+        catch (IOException e) {
+          // best effort
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package driver;
+
+import static trees.MatchSpec.rule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import grammar.Grammar;
+import parser.Match;
+import parser.MatchTreeSerializer;
+import source.Source;
+
+/**
+ * An on-disk cache for the match tree of a source file, so that a file whose
+ * content and grammar did not change since the last run need not be parsed
+ * again.
+ *
+ * The tree is stored in a file named after the source file (with the ".match"
+ * extension appended) under the cache directory. Along with the serialized
+ * tree (see {@link MatchTreeSerializer}), the file holds a key, which is a hash
+ * of the source of the file, as decoded for the parser, and of the fingerprint
+ * of the grammar (see {@link Grammar#fingerprint()}). The tree is only loaded
+ * if the key matches.
+ *
+ * The cache file is written like the other output files (see {@link
+ * CompilationDriver#writeOutput}).
+ *
+ * The trees of files defining macros are not cached: parsing a macro definition
+ * registers the macro, which loading the tree would not do.
+ */
+class ParseCache
+{
+  /*****************************************************************************
+   * Identifies the cache file format. Change it when the format changes.
+   */
+  private static final int MAGIC = 0xCA8A0002;
+
+  /*****************************************************************************
+   * Size of the header: magic number, key, checksum and length of the data.
+   */
+  private static final int HEADER_SIZE = 4 + 20 + 8 + 4;
+
+  /*****************************************************************************
+   * Number of characters of the source hashed at once.
+   */
+  private static final int CHUNK_SIZE = 4096;
+
+  /****************************************************************************/
+  private final SourceFile file;
+
+  /****************************************************************************/
+  private final Grammar grammar;
+
+  /****************************************************************************/
+  private final Path cacheFile;
+
+  /****************************************************************************/
+  private final byte[] key;
+
+  /****************************************************************************/
+  ParseCache(Path cacheDir, SourceFile file, Grammar grammar)
+  {
+    this.file = file;
+    this.grammar = grammar;
+    this.cacheFile = cacheDir.resolve(file.path().relativePath() + ".match");
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest(digest, file.source());
+      digest.update(grammar.fingerprint());
+      this.key = digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new Error("Could not compute the parse cache key for " + file, e);
+    }
+  }
+
+  /*****************************************************************************
+   * Feeds the characters of $source to $digest, two bytes per character, in
+   * chunks of {@link #CHUNK_SIZE} characters.
+   */
+  private static void digest(MessageDigest digest, Source source)
+  {
+    byte[] chunk = new byte[2 * CHUNK_SIZE];
+    int end = source.end();
+
+    for (int p = 0 ; p < end ; p += CHUNK_SIZE)
+    {
+      int length = Math.min(CHUNK_SIZE, end - p);
+
+      for (int i = 0 ; i < length ; ++i) {
+        char c = source.at(p + i);
+        chunk[2 * i]     = (byte) (c >>> 8);
+        chunk[2 * i + 1] = (byte) c;
+      }
+
+      digest.update(chunk, 0, 2 * length);
+    }
+  }
+
+  /*****************************************************************************
+   * Returns the cached match tree for the file, or null if there is none, or if
+   * it was produced from different content or with a different grammar.
+   */
+  Match load()
+  {
+    if (!Files.isRegularFile(cacheFile)) {
+      return null;
+    }
+
+    byte[] bytes;
+
+    try {
+      bytes = Files.readAllBytes(cacheFile);
+    }
+    catch (IOException e) {
+      return null;
+    }
+
+    if (bytes.length < HEADER_SIZE) {
+      return null;
+    }
+
+    ByteBuffer header = ByteBuffer.wrap(bytes);
+    byte[] storedKey = new byte[key.length];
+
+    if (header.getInt() != MAGIC) {
+      return null;
+    }
+
+    header.get(storedKey);
+
+    if (!Arrays.equals(key, storedKey)) {
+      return null;
+    }
+
+    long checksum = header.getLong();
+    int length = header.getInt();
+
+    if (length != bytes.length - HEADER_SIZE
+    ||  checksum != checksum(bytes, HEADER_SIZE, length))
+    {
+      return null;
+    }
+
+    return MatchTreeSerializer.deserialize(
+      bytes, HEADER_SIZE, grammar, file.source());
+  }
+
+  /*****************************************************************************
+   * Stores $match as the match tree of the file, unless it holds macro
+   * definitions, or matches of expressions the grammar doesn't number (see
+   * {@link MatchTreeSerializer#serialize}).
+   */
+  void store(Match match)
+  {
+    if (match.has(rule("macroDefinition"))) {
+      return;
+    }
+
+    byte[] data = MatchTreeSerializer.serialize(match, grammar);
+
+    if (data == null) {
+      return;
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+      HEADER_SIZE + data.length);
+
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.write(key);
+      out.writeLong(checksum(data, 0, data.length));
+      out.writeInt(data.length);
+      out.write(data);
+      out.close();
+    }
+    catch (IOException e) {
+      throw new Error(e); // can't happen with a ByteArrayOutputStream
+    }
+
+    CompilationDriver.writeOutput(cacheFile, bytes.toByteArray());
+  }
+
+  /****************************************************************************/
+  private static long checksum(byte[] bytes, int offset, int length)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,623 @@
+package driver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import parser.Match;
+import source.Source;
+import source.SourceView;
+
+/**
+ * A hand-written scanner for the prelude of source files (package declaration,
+ * import and require statements), as matched by the fullPrelude rule of
+ * {@link grammar.java.JavaGrammar} (see {@link grammar.java._D_Requires}).
+ *
+ * The scanner yields the same package name, import strings and require
+ * statements as the PEG parse (see {@link RequiresParser}), but doesn't build a
+ * match tree, and skips whitespace and comments in a single loop. It stops at
+ * the first type (or macro) declaration.
+ *
+ * The scanner doesn't report errors: {@link #scan()} returns false whenever
+ * the prelude isn't one it handles (syntax errors, but also annotated packages
+ * and files in the default package), in which case the prelude should be
+ * parsed with the grammar, which reports errors.
+ */
+class PreludeScanner
+{
+  /*****************************************************************************
+   * The reserved words, which are not identifiers (see the keyword rule of
+   * {@link grammar.java._A_Lexical}).
+   */
+  private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+    "boolean", "byte", "char", "double", "float", "int", "long",
+    "abstract", "assert", "break", "case", "catch", "class", "const",
+    "continue", "default", "do", "else", "enum", "extends", "finally",
+    "final", "for", "goto", "if", "implements", "import", "interface",
+    "instanceof", "native", "new", "package", "private", "protected",
+    "public", "return", "static", "strictfp", "super", "switch",
+    "synchronized", "this", "throws", "throw", "transient", "try", "void",
+    "volatile", "while", "true", "false", "null"));
+
+  /*****************************************************************************
+   * The words that may follow the prelude (besides annotations and the end of
+   * the input).
+   */
+  private static final Set<String> FOLLOWERS = new HashSet<>(Arrays.asList(
+    "static", "private", "public", "strictfp", "abstract", "final", "class",
+    "interface", "enum", "macro", "raw", "prioritary", "pure"));
+
+  /*****************************************************************************
+   * A require statement, as its parts relevant to {@link RequiresParser}.
+   */
+  static class RequireStatement
+  {
+    final boolean isMacro, isStatic;
+
+    /** Number of colons in the statement. */
+    final int colons;
+
+    /** Identifiers and stars before the first colon. */
+    final List<String> before = new ArrayList<>();
+
+    /** Identifiers and stars after the first colon. */
+    final List<String> after = new ArrayList<>();
+
+    RequireStatement(boolean isMacro, boolean isStatic, List<String> tokens)
+    {
+      this.isMacro  = isMacro;
+      this.isStatic = isStatic;
+
+      int colons = 0;
+
+      for (String token : tokens) {
+        if (token == COLON) {
+          ++colons;
+        }
+        else {
+          (colons == 0 ? before : after).add(token);
+        }
+      }
+
+      this.colons = colons;
+    }
+  }
+
+  /*****************************************************************************
+   * Recorded in place of colons in $tokens (compared by identity).
+   */
+  private static final String COLON = new String(":");
+
+  /****************************************************************************/
+  private final Source source;
+
+  /****************************************************************************/
+  private final int end;
+
+  /*****************************************************************************
+   * The identifiers (with their trailing comments, as the strings of
+   * identifier matches), stars and colons of the require statement being
+   * scanned. Scanning methods that fail remove the tokens they recorded.
+   */
+  private final List<String> tokens = new ArrayList<>();
+
+  /****************************************************************************/
+  private String pkg;
+
+  /****************************************************************************/
+  private final List<String> imports = new ArrayList<>();
+
+  /****************************************************************************/
+  private final List<RequireStatement> requires = new ArrayList<>();
+
+  /****************************************************************************/
+  PreludeScanner(Source source)
+  {
+    this.source = source;
+    this.end = source.end();
+  }
+
+  /*****************************************************************************
+   * Scans the prelude, and indicates if it was successfully recognized.
+   */
+  boolean scan()
+  {
+    int p = keyword(spacing(0), "package");
+    if (p < 0) { return false; }
+
+    int q = qualifiedIdentifier(p);
+    if (q < 0) { return false; }
+
+    pkg = string(p, q);
+    tokens.clear();
+
+    q = operator(q, ';');
+    if (q < 0) { return false; }
+
+    while (true)
+    {
+      int next = importDeclaration(q);
+
+      if (next < 0) {
+        next = requireDeclaration(q);
+      }
+
+      if (next < 0) {
+        break;
+      }
+
+      q = next;
+    }
+
+    return followedByDeclaration(q);
+  }
+
+  /*****************************************************************************
+   * The name of the declared package, as the string of the qualifiedIdentifier
+   * match of the package declaration.
+   */
+  String pkg()
+  {
+    return pkg;
+  }
+
+  /*****************************************************************************
+   * The strings of the import declarations, in order.
+   */
+  List<String> imports()
+  {
+    return imports;
+  }
+
+  /****************************************************************************/
+  List<RequireStatement> requires()
+  {
+    return requires;
+  }
+
+  //----------------------------------------------------------------------------
+  // Declarations
+  //----------------------------------------------------------------------------
+
+  /****************************************************************************/
+  private int importDeclaration(int p)
+  {
+    int q = keyword(p, "import");
+    if (q < 0) { return -1; }
+
+    int r = keyword(q, "static");
+    q = qualifiedIdentifier(r < 0 ? q : r);
+    if (q < 0) { return -1; }
+
+    r = dotStar(q);
+    q = operator(r < 0 ? q : r, ';');
+    tokens.clear();
+    if (q < 0) { return -1; }
+
+    imports.add(string(p, q));
+    return q;
+  }
+
+  /*****************************************************************************
+   * Matches the alternatives of the requireDeclaration rule, in order.
+   */
+  private int requireDeclaration(int p)
+  {
+    p = keyword(p, "require");
+    if (p < 0) { return -1; }
+
+    int q;
+
+    if ((q = macroRequire(p)) >= 0) {
+      requires.add(new RequireStatement(true, false, tokens));
+    }
+    else if ((q = staticRequire(p)) >= 0) {
+      requires.add(new RequireStatement(false, true, tokens));
+    }
+    else if ((q = regularRequire(p)) >= 0) {
+      requires.add(new RequireStatement(false, false, tokens));
+    }
+
+    tokens.clear();
+    return q;
+  }
+
+  /*****************************************************************************
+   * macro starryIdentifierOne (colon (colon / star / identifier))? semi
+   */
+  private int macroRequire(int p)
+  {
+    int q = keyword(p, "macro");
+    if (q < 0) { return -1; }
+
+    q = starryIdentifierOne(q);
+    if (q < 0) { return -1; }
+
+    int mark = tokens.size();
+    int r = colon(q);
+
+    if (r >= 0)
+    {
+      int s = colon(r);
+      if (s < 0) { s = star(r); }
+      if (s < 0) { s = identifier(r); }
+
+      if (s >= 0) {
+        q = s;
+      }
+      else {
+        truncate(mark);
+      }
+    }
+
+    return semi(q, 0);
+  }
+
+  /*****************************************************************************
+   * static starryIdentifierOne
+   *   (colon (colon (star / starryIdentifier)
+   *          / colon? starryIdentifierOne))? semi
+   */
+  private int staticRequire(int p)
+  {
+    int q = keyword(p, "static");
+    if (q < 0) { return -1; }
+
+    q = starryIdentifierOne(q);
+    if (q < 0) { return -1; }
+
+    int mark = tokens.size();
+    int r = colon(q);
+
+    if (r >= 0)
+    {
+      int s = -1;
+      int t = colon(r);
+
+      if (t >= 0)
+      {
+        s = star(t);
+        if (s < 0) { s = starryIdentifier(t); }
+        if (s < 0) { truncate(mark + 1); }
+      }
+
+      if (s < 0)
+      {
+        t = colon(r);
+        s = starryIdentifierOne(t < 0 ? r : t);
+      }
+
+      if (s >= 0) {
+        q = s;
+      }
+      else {
+        truncate(mark);
+      }
+    }
+
+    return semi(q, 0);
+  }
+
+  /*****************************************************************************
+   * starryIdentifierOne (colon colon? (star / starryIdentifier)?)? semi
+   */
+  private int regularRequire(int p)
+  {
+    int q = starryIdentifierOne(p);
+    if (q < 0) { return -1; }
+
+    int r = colon(q);
+
+    if (r >= 0)
+    {
+      int s = colon(r);
+      q = s < 0 ? r : s;
+
+      s = star(q);
+      if (s < 0) { s = starryIdentifier(q); }
+      if (s >= 0) { q = s; }
+    }
+
+    return semi(q, 0);
+  }
+
+  /*****************************************************************************
+   * Returns the position after the semicolon at $p, or -1 after removing all
+   * but the first $keep tokens if there is none.
+   */
+  private int semi(int p, int keep)
+  {
+    int q = operator(p, ';');
+
+    if (q < 0) {
+      truncate(keep);
+    }
+
+    return q;
+  }
+
+  /*****************************************************************************
+   * Indicates if the prelude ending at $p is followed by one of the
+   * expressions listed in the fullPrelude rule.
+   */
+  private boolean followedByDeclaration(int p)
+  {
+    if (p == end) {
+      return true;
+    }
+
+    if (source.at(p) == '@')
+    {
+      int q = spacing(p + 1);
+      boolean out = keyword(q, "interface") >= 0 || identifier(q) >= 0;
+      tokens.clear();
+      return out;
+    }
+
+    int q = word(p);
+    return q > p && FOLLOWERS.contains(source.at(p, q));
+  }
+
+  //----------------------------------------------------------------------------
+  // Identifiers
+  //----------------------------------------------------------------------------
+
+  /*****************************************************************************
+   * identifier (dot identifier)*
+   */
+  private int qualifiedIdentifier(int p)
+  {
+    int q = identifier(p);
+    if (q < 0) { return -1; }
+
+    while (true)
+    {
+      int mark = tokens.size();
+      int r = operator(q, '.');
+      if (r >= 0) { r = identifier(r); }
+
+      if (r < 0) {
+        truncate(mark);
+        return q;
+      }
+
+      q = r;
+    }
+  }
+
+  /*****************************************************************************
+   * qualifiedIdentifier (dot star)?
+   */
+  private int starryIdentifier(int p)
+  {
+    int q = qualifiedIdentifier(p);
+    if (q < 0) { return -1; }
+
+    int r = dotStar(q);
+    return r < 0 ? q : r;
+  }
+
+  /*****************************************************************************
+   * identifier dot (star / starryIdentifier)
+   */
+  private int starryIdentifierOne(int p)
+  {
+    int mark = tokens.size();
+
+    int q = identifier(p);
+    if (q >= 0) { q = operator(q, '.'); }
+
+    if (q >= 0)
+    {
+      int r = star(q);
+      if (r < 0) { r = starryIdentifier(q); }
+      q = r;
+    }
+
+    if (q < 0) {
+      truncate(mark);
+    }
+
+    return q;
+  }
+
+  /****************************************************************************/
+  private int dotStar(int p)
+  {
+    int q = operator(p, '.');
+    return q < 0 ? -1 : star(q);
+  }
+
+  //----------------------------------------------------------------------------
+  // Tokens
+  //----------------------------------------------------------------------------
+
+  /*****************************************************************************
+   * Returns the position after the word (letter followed by letters or digits)
+   * at $p, or $p if there is none.
+   */
+  private int word(int p)
+  {
+    if (p == end || !isLetter(source.at(p))) {
+      return p;
+    }
+
+    int q = p + 1;
+
+    while (q < end && isLetterOrDigit(source.at(q))) {
+      ++q;
+    }
+
+    return q;
+  }
+
+  /*****************************************************************************
+   * Matches an identifier and the spacing after it, and records them as a
+   * token.
+   */
+  private int identifier(int p)
+  {
+    int q = word(p);
+
+    if (q == p || RESERVED.contains(source.at(p, q))) {
+      return -1;
+    }
+
+    q = spacing(q);
+    tokens.add(string(p, q));
+    return q;
+  }
+
+  /*****************************************************************************
+   * Matches $keyword (not followed by a letter or digit) and the spacing after
+   * it.
+   */
+  private int keyword(int p, String keyword)
+  {
+    int q = word(p);
+
+    return q - p == keyword.length() && source.at(p, q).equals(keyword)
+      ? spacing(q)
+      : -1;
+  }
+
+  /*****************************************************************************
+   * Matches a star (not followed by '=') and the spacing after it, and records
+   * it as a token.
+   */
+  private int star(int p)
+  {
+    if (p == end || source.at(p) != '*'
+    ||  p + 1 < end && source.at(p + 1) == '=') {
+      return -1;
+    }
+
+    tokens.add("*");
+    return spacing(p + 1);
+  }
+
+  /*****************************************************************************
+   * Matches a colon and the spacing after it, and records it as a token.
+   */
+  private int colon(int p)
+  {
+    int q = operator(p, ':');
+
+    if (q >= 0) {
+      tokens.add(COLON);
+    }
+
+    return q;
+  }
+
+  /*****************************************************************************
+   * Matches $c and the spacing after it.
+   */
+  private int operator(int p, char c)
+  {
+    return p < end && source.at(p) == c ? spacing(p + 1) : -1;
+  }
+
+  /*****************************************************************************
+   * Skips the whitespace and the (terminated) comments at $p, and returns the
+   * position after them.
+   */
+  private int spacing(int p)
+  {
+    while (p < end)
+    {
+      char c = source.at(p);
+
+      if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f') {
+        ++p;
+        continue;
+      }
+
+      if (c != '/' || p + 1 == end) {
+        return p;
+      }
+
+      char d = source.at(p + 1);
+      int q;
+
+      if (d == '*') {
+        q = commentEnd(p + 2);
+      }
+      else if (d == '/') {
+        q = lineEnd(p + 2);
+      }
+      else {
+        return p;
+      }
+
+      if (q < 0) {
+        return p;
+      }
+
+      p = q;
+    }
+
+    return p;
+  }
+
+  /*****************************************************************************
+   * Returns the position after the "* /" ending the comment whose content
+   * starts at $p, or -1 if the comment isn't terminated.
+   */
+  private int commentEnd(int p)
+  {
+    for (int i = p ; i + 1 < end ; ++i) {
+      if (source.at(i) == '*' && source.at(i + 1) == '/') {
+        return i + 2;
+      }
+    }
+
+    return -1;
+  }
+
+  /*****************************************************************************
+   * Returns the position after the newline character ending the line comment
+   * whose content starts at $p, or -1 if there is none.
+   */
+  private int lineEnd(int p)
+  {
+    for (int i = p ; i < end ; ++i)
+    {
+      char c = source.at(i);
+
+      if (c == '\r' || c == '\n') {
+        return i + 1;
+      }
+    }
+
+    return -1;
+  }
+
+  /*****************************************************************************
+   * Returns the text between $p and $q, trimmed as by {@link Match#string()}.
+   */
+  private String string(int p, int q)
+  {
+    return new SourceView(source, p, q).trim().toString();
+  }
+
+  /****************************************************************************/
+  private void truncate(int size)
+  {
+    tokens.subList(size, tokens.size()).clear();
+  }
+
+  /****************************************************************************/
+  private static boolean isLetter(char c)
+  {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == '$';
+  }
+
+  /****************************************************************************/
+  private static boolean isLetterOrDigit(char c)
+  {
+    return isLetter(c) || c >= '0' && c <= '9';
+  }
+}
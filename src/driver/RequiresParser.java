@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import driver.PreludeScanner.RequireStatement;
 import files.Package;
 import files.RelativeSourcePath;
 import files.Require;
@@ -33,17 +34,52 @@ public class RequiresParser
   /*****************************************************************************
    * {@see {@link SourceParseManager#parseRequires(List, List)}}
    *
+   * The prelude is read with a {@link PreludeScanner} if possible, which
+   * leaves the matcher untouched, and null is returned. Otherwise, it is parsed
+   * with the grammar (see {@link #parsePrelude}), and its match is returned.
+   * The scanner implements the prelude rules of the macro grammar: it is only
+   * used when the current grammar has the same rules, i.e. when no enabled
+   * macro could change how the prelude parses.
+   */
+  Match parseRequires(Matcher matcher, Result<String> pkg, List<Require> requires, List<String> imports)
+  {
+    PreludeScanner scanner = new PreludeScanner(matcher.source());
+
+    if (!Context.isUnextendedMacroGrammar(Context.get().grammar())
+    ||  !scanner.scan())
+    {
+      return parsePrelude(matcher, pkg, requires, imports);
+    }
+
+    pkg.set(scanner.pkg());
+    imports.addAll(scanner.imports());
+
+    for (RequireStatement stmt : scanner.requires())
+    {
+      addRequire(requires, stmt.isMacro, stmt.isStatic, stmt.colons,
+        new ArrayList<>(stmt.before), new ArrayList<>(stmt.after));
+    }
+
+    return null;
+  }
+
+  /*****************************************************************************
+   * Parses the prelude with the grammar, and returns the match of the prelude
+   * rule.
+   *
    * This function will advance the matcher past the file's package, import and
    * require statements, or throws a runtime error if it encounters a parse
    * error on that segment.
    */
-  void parseRequires(Matcher matcher, Result<String> pkg, List<Require> requires, List<String> imports)
+  Match parsePrelude(Matcher matcher, Result<String> pkg,
+    List<Require> requires, List<String> imports)
   {
     if (matcher.matches(Context.get().grammar().rule("fullPrelude")))
     {
       Match prelude = matcher.match();
       pkg.set(prelude.first(rule("qualifiedIdentifier")).string());
       parseRequires(prelude, requires, imports);
+      return prelude.first(rule("prelude"));
     }
     else
     {
@@ -94,6 +130,17 @@ public class RequiresParser
     for (Match m : chain1m) { chain1.add(m.string()); }
     for (Match m : chain2m) { chain2.add(m.string()); }
 
+    addRequire(out, isMacro, isStatic, nbColons, chain1, chain2);
+  }
+
+  /*****************************************************************************
+   * Adds the requires of a require statement to $out. $chain1 holds the
+   * identifiers (and stars) before the first colon of the statement, and
+   * $chain2 those after it.
+   */
+  private void addRequire(List<Require> out, boolean isMacro, boolean isStatic,
+    int nbColons, List<String> chain1, List<String> chain2)
+  {
     String fileStem = removeLast(chain1);
 
     if (nbColons == 0 && fileStem.equals("*"))  // Package-Wide Imports
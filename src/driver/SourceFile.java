@@ -1,6 +1,5 @@
 package driver;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
@@ -9,9 +8,11 @@ import java.util.List;
 import files.Require;
 
 import source.Source;
-import source.SourceFileText;
 
 import compiler.Macro;
+import compiler.java.DynamicJavaCompiler;
+import compiler.java.MemoryClassLoader;
+import compiler.util.Quoter;
 
 import files.RootedSourcePath;
 
@@ -54,16 +55,19 @@ public class SourceFile
   /****************************************************************************/
   private boolean isCompileTimeDependency = false;
 
-  /****************************************************************************/
-  SourceFile(RootedSourcePath path)
-  {
-    try {
-      this.source = new SourceFileText(path.absolutePath().toFile());
-    }
-    catch (IOException e) {
-      throw new Error(e);
-    }
+  /*****************************************************************************
+   * Class loader for the classes compiled from this file (including macro
+   * expanders). Created lazily, see {@link #classLoader()}.
+   */
+  private MemoryClassLoader classLoader;
 
+  /*****************************************************************************
+   * Creates the file at $path, whose text is $source (as read by the
+   * {@link SourceRepository}).
+   */
+  SourceFile(RootedSourcePath path, Source source)
+  {
+    this.source   = source;
     this.path     = path;
     this.parser   = new SourceParseManager(this);
     this.requires = new Requires();
@@ -115,6 +119,47 @@ public class SourceFile
     isCompileTimeDependency = true;
   }
 
+  /*****************************************************************************
+   * Returns the class loader in which the classes compiled from this file
+   * (including macro expanders) are loaded. The loader can resolve the classes
+   * loaded by the loaders of the files this file depends upon.
+   */
+  public MemoryClassLoader classLoader()
+  {
+    if (classLoader == null)
+    {
+      List<MemoryClassLoader> deps = new ArrayList<>();
+
+      for (SourceFile dependency : requires.dependencies()) {
+        deps.add(dependency.classLoader());
+      }
+
+      classLoader = new MemoryClassLoader(deps);
+    }
+
+    return classLoader;
+  }
+
+  /*****************************************************************************
+   * Unloads the macros of this file (see {@link Macro#unload()}), drops its
+   * class loader, makes the Java compiler forget about the classes it loaded,
+   * and removes the quotation cache entries that refer to them. Once the loaders
+   * of the dependent files are dropped as well, those classes can be garbage
+   * collected.
+   */
+  public void unloadClasses()
+  {
+    for (Macro macro : macros.values()) {
+      macro.unload();
+    }
+
+    if (classLoader != null) {
+      DynamicJavaCompiler.get().forget(classLoader.classNames());
+      Quoter.forget(classLoader);
+      classLoader = null;
+    }
+  }
+
   /*****************************************************************************
    * Returns a list of import statement for the file under string form.
    */
@@ -1,8 +1,11 @@
 package driver;
 
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 
 import files.Require;
+import grammar.Grammar;
 import parser.Match;
 import parser.Matcher;
 import util.Result;
@@ -12,20 +15,29 @@ import util.Result;
  *
  * Methods of this class will behave whatever the order they are called in or
  * whether they are called multiple times.
+ *
+ * Each parse uses its own matcher, so that the memoization table of the
+ * prelude parse isn't kept for the whole compilation. If the prelude was parsed
+ * with the grammar (rather than scanned, see {@link RequiresParser}), the parse
+ * of the whole file is seeded with its match, so that the prelude is parsed
+ * only once.
  */
 public class SourceParseManager
 {
-  /****************************************************************************/
-  private final Matcher matcher;
-
   /****************************************************************************/
   private final SourceFile sourceFile;
 
+  /*****************************************************************************
+   * The match of the prelude rule, if the prelude was parsed with the grammar,
+   * and the fingerprint of the grammar at the time.
+   */
+  private Match prelude;
+  private byte[] preludeFingerprint;
+
   /****************************************************************************/
   SourceParseManager(SourceFile sourceFile)
   {
     this.sourceFile = sourceFile;
-    this.matcher = new Matcher(sourceFile.source());
   }
 
   /*****************************************************************************
@@ -34,11 +46,15 @@ public class SourceParseManager
    */
   void parseRequires(List<Require> requires, List<String> imports)
   {
-    matcher.reset();
+    Matcher matcher = new Matcher(sourceFile.source());
     Result<String> pkg = new Result<>();
-    new RequiresParser().parseRequires(matcher, pkg, requires, imports);
+    prelude = new RequiresParser()
+      .parseRequires(matcher, pkg, requires, imports);
     checkPackage(pkg.get());
 
+    if (prelude != null) {
+      preludeFingerprint = Context.get().grammar().fingerprint();
+    }
   }
 
   /****************************************************************************/
@@ -54,13 +70,34 @@ public class SourceParseManager
   }
 
   /*****************************************************************************
-   * Parses the whole file.
+   * Parses the whole file. If the parse cache is enabled (see
+   * {@link Config#parseCacheDir}), the match tree is loaded from it when
+   * possible, and stored in it otherwise.
    */
   public Match parse()
   {
-    matcher.reset();
+    Grammar grammar = Context.get().grammar();
+    Path cacheDir = Config.get().parseCacheDir();
+    ParseCache cache = cacheDir == null
+      ? null
+      : new ParseCache(cacheDir, sourceFile, grammar);
+
+    Match match = cache == null ? null : cache.load();
 
-    if (!matcher.matches(Context.get().grammar().rule("compilationUnit")))
+    if (match != null) {
+      return match;
+    }
+
+    Matcher matcher = new Matcher(sourceFile.source());
+
+    // Reuse the prelude match if the grammar still parses it the same way
+    // (enabled macros may have extended the rules it uses).
+    if (prelude != null
+    &&  Arrays.equals(preludeFingerprint, grammar.fingerprint())) {
+      matcher.memoize(prelude);
+    }
+
+    if (!matcher.matches(grammar.rule("compilationUnit")))
     {
       throw new Error(
         "Parsing error in "
@@ -69,6 +106,12 @@ public class SourceParseManager
           + matcher.errors().report(matcher.source()));
     }
 
-    return matcher.match();
+    match = matcher.match();
+
+    if (cache != null) {
+      cache.store(match);
+    }
+
+    return match;
   }
 }
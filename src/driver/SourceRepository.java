@@ -2,14 +2,29 @@ package driver;
 
 import static util.FileUtils.glob;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import source.Source;
+import source.SourceFileBytes;
 
 import files.RootedSourcePath;
 import files.Package;
@@ -24,6 +39,16 @@ import files.RelativeSourcePath;
  * All {@link SourceFile} instances should be obtained from the instance of this
  * class held in {@Context#repo}, which is the only one who
  * should create them.
+ *
+ * The files whose paths are hinted (see {@link #hint}) are read and decoded
+ * ahead of time, on a small pool of reader threads, so that the I/O overlaps
+ * with the parsing of the files that require them. A {@link SourceFile}
+ * consumes the source read for it, waiting for it if needed. At most
+ * {@link #READ_AHEAD_PER_THREAD} files per reader thread are read ahead of
+ * their consumption: the others wait for a place in that window. The sources
+ * that were not consumed are dropped by {@link #endPrefetch()}. With zero
+ * reader threads (see {@link Config#readerThreads}), files are read when their
+ * SourceFile is created.
  */
 public class SourceRepository
 {
@@ -36,6 +61,34 @@ public class SourceRepository
    */
   private final Map<Path, RootedSourcePath> hints = new HashMap<>();
 
+  /*****************************************************************************
+   * Maximum number of files read ahead of their consumption, per reader thread.
+   */
+  private static final int READ_AHEAD_PER_THREAD = 16;
+
+  /*****************************************************************************
+   * Maps absolute paths to the sources being read ahead of time for them, until
+   * consumed by {@link #load}.
+   */
+  private final Map<Path, Future<Source>> prefetched = new HashMap<>();
+
+  /*****************************************************************************
+   * Absolute paths of the hinted files waiting for a place in $prefetched, in
+   * hint order.
+   */
+  private final Set<Path> waiting = new LinkedHashSet<>();
+
+  /*****************************************************************************
+   * Reads the hinted files. Created by the first call to {@link #hint}, if
+   * there are reader threads.
+   */
+  private ThreadPoolExecutor readers;
+
+  /*****************************************************************************
+   * Maximum size of $prefetched.
+   */
+  private int readAhead;
+
   /*****************************************************************************
    * Returns the CTimeFile associated to the given path, creating it if needed.
    */
@@ -58,6 +111,35 @@ public class SourceRepository
     return out;
   }
 
+  /*****************************************************************************
+   * Forgets $file and all the files that (transitively) depend on it, and
+   * unloads the classes compiled from them. The next request for one of those
+   * files will create a new SourceFile, with a new class loader. This is meant
+   * to be used when $file was modified. The path hinted for the file is
+   * forgotten as well, in case the file was moved.
+   */
+  void invalidate(SourceFile file)
+  {
+    if (!files.values().removeAll(Collections.singleton(file))) {
+      return;
+    }
+
+    hints.remove(file.path().relativePath());
+    file.unloadClasses();
+
+    List<SourceFile> dependents = new ArrayList<>();
+
+    for (SourceFile other : files.values()) {
+      if (other.requires().dependencies().contains(file)) {
+        dependents.add(other);
+      }
+    }
+
+    for (SourceFile dependent : dependents) {
+      invalidate(dependent);
+    }
+  }
+
   /*****************************************************************************
    * Indicates that the given paths are known to exists.
    */
@@ -74,6 +156,135 @@ public class SourceRepository
           rpath.relativePath(), old.absolutePath(), rpath.absolutePath());
       }
     }
+
+    prefetch(paths);
+  }
+
+  /*****************************************************************************
+   * Schedules the reading of the files at $paths on the reader threads, unless
+   * there are none. Files already read or being read are skipped.
+   */
+  private void prefetch(List<RootedSourcePath> paths)
+  {
+    int threads = Config.get().readerThreads();
+
+    if (threads <= 0) {
+      return;
+    }
+
+    if (readers == null)
+    {
+      readAhead = threads * READ_AHEAD_PER_THREAD;
+
+      readers = new ThreadPoolExecutor(
+        threads, threads, 1, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(readAhead),
+        new ThreadFactory() {
+          @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "caxap-source-reader");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+      // Don't keep idle threads once all files have been read.
+      readers.allowCoreThreadTimeOut(true);
+    }
+
+    for (RootedSourcePath rpath : paths)
+    {
+      Path absolute = rpath.absolutePath();
+
+      if (!prefetched.containsKey(absolute)) {
+        waiting.add(absolute);
+      }
+    }
+
+    fill();
+  }
+
+  /*****************************************************************************
+   * Schedules the reading of waiting files, as long as there is room in the
+   * read-ahead window. Since the futures stay in $prefetched until consumed,
+   * the reader queue never holds more than $readAhead tasks.
+   */
+  private void fill()
+  {
+    Iterator<Path> it = waiting.iterator();
+
+    while (prefetched.size() < readAhead && it.hasNext())
+    {
+      final Path absolute = it.next();
+      it.remove();
+
+      prefetched.put(absolute, readers.submit(new Callable<Source>() {
+        @Override public Source call() throws IOException {
+          return read(absolute);
+        }
+      }));
+    }
+  }
+
+  /*****************************************************************************
+   * Drops the sources read ahead of time that were not consumed, and forgets
+   * the files waiting to be read. Files requested later are read when their
+   * SourceFile is created. Reading can be resumed by {@link #hint}.
+   */
+  void endPrefetch()
+  {
+    for (Future<Source> future : prefetched.values()) {
+      future.cancel(false);
+    }
+
+    prefetched.clear();
+    waiting.clear();
+  }
+
+  /*****************************************************************************
+   * Returns the pending read of the file at $rpath, or null if the file is not
+   * being read ahead of time. Package-private for testing.
+   */
+  Future<Source> prefetched(RootedSourcePath rpath)
+  {
+    return prefetched.get(rpath.absolutePath());
+  }
+
+  /*****************************************************************************
+   * Returns the source of the file at $rpath: the one read ahead of time if
+   * there is one, or else a freshly read one. Prefetched sources are consumed,
+   * so that the file is read anew if it was modified and its SourceFile
+   * invalidated.
+   */
+  private Source load(RootedSourcePath rpath)
+  {
+    Future<Source> future = prefetched.remove(rpath.absolutePath());
+    waiting.remove(rpath.absolutePath());
+
+    if (readers != null) {
+      fill();
+    }
+
+    try {
+      if (future == null) {
+        return read(rpath.absolutePath());
+      }
+
+      return future.get();
+    }
+    catch (ExecutionException e) {
+      throw new Error(
+        "Error while reading source file " + rpath, e.getCause());
+    }
+    catch (IOException | InterruptedException e) {
+      throw new Error("Error while reading source file " + rpath, e);
+    }
+  }
+
+  /****************************************************************************/
+  private static Source read(Path absolute) throws IOException
+  {
+    File file = absolute.toFile();
+    return SourceFileBytes.open(file, Config.get().charset());
   }
 
   /*****************************************************************************
@@ -93,7 +304,7 @@ public class SourceRepository
       }
     }
 
-    SourceFile out = new SourceFile(rpath);
+    SourceFile out = new SourceFile(rpath, load(rpath));
     files.put(relative, out);
     return out;
   }
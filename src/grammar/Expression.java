@@ -152,7 +152,9 @@ public abstract class Expression
    */
   public static class Rule extends Expression
   {
-    /* Final field might be changed by grammar.Grammar. */
+    /* Final field might be changed by grammar.Grammar (to a field name, which
+     * is interned). Interned, so that it can be compared by identity (see
+     * trees.MatchSpec.RuleSpec). */
     public final String name;
 
     /** Unique ID */
@@ -161,7 +163,7 @@ public abstract class Expression
     public Rule(String ruleName, List<Expression> children)
     {
       super(4, children);
-      this.name = ruleName;
+      this.name = ruleName == null ? null : ruleName.intern();
     }
 
     public void accept(ExpressionVisitor visitor) { visitor.visit(this); }
@@ -188,12 +190,13 @@ public abstract class Expression
    */
   public static class Capture extends Expression
   {
+    /* Interned, see Rule#name. */
     public final String captureName;
 
     public Capture(final String captureName, final Expression child)
     {
       super(3 , asList(child));
-      this.captureName = captureName;
+      this.captureName = captureName.intern();
     }
 
     public void accept(ExpressionVisitor visitor) { visitor.visit(this); }
@@ -16,6 +16,8 @@ import grammar.Expression.Star;
 import grammar.Expression.StringLiteral;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -112,6 +114,49 @@ public class ExpressionTreeCleaner implements ExpressionVisitor
     return standardize(expr);
   }
 
+  /*****************************************************************************
+   * Removes the canonical expressions holding $rule, directly or through other
+   * non-rule expressions.
+   */
+  void forget(Rule rule)
+  {
+    Map<Expression, Boolean> holds = new IdentityHashMap<>();
+    Iterator<Expression> it = canonicals.values().iterator();
+
+    while (it.hasNext()) {
+      if (holds(it.next(), rule, holds)) {
+        it.remove();
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * Indicates if $expr holds $rule, without looking into other rules. $holds
+   * memoizes the answers.
+   */
+  private static boolean holds(Expression expr, Rule rule,
+    Map<Expression, Boolean> holds)
+  {
+    Boolean result = holds.get(expr);
+
+    if (result == null)
+    {
+      result = false;
+
+      for (Expression child : expr.children()) {
+        if (child == rule
+        || !(child instanceof Rule) && holds(child, rule, holds)) {
+          result = true;
+          break;
+        }
+      }
+
+      holds.put(expr, result);
+    }
+
+    return result;
+  }
+
   /*****************************************************************************
    * Resolves the reference specified by the given expression.
    */
@@ -1,12 +1,25 @@
 package grammar;
 
 import static util.MemberAccessor.setFinal;
+import grammar.Expression.MacroRule;
 import grammar.Expression.Rule;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * A grammar is a set of named parsing expressions. One of the rule is the root
@@ -19,6 +32,25 @@ public class Grammar
    */
   private final Map<String, Rule> rules = new HashMap<>();
 
+  /*****************************************************************************
+   * Cached results of {@link #reachableRules()}, {@link #fingerprint()} (with
+   * {@link #numbered()}) and {@link #inert()}.
+   * Reset whenever rules are registered, unregistered, or gain or lose an
+   * alternative.
+   *
+   * The methods using or changing those, as well as {@link #clean}, are
+   * synchronized: macros can be expanded by multiple threads (see {@link
+   * compiler.MacroExpander}), and quoting code may clean expressions. The
+   * exception is {@link #inert()}, which reads the volatile $inert without
+   * locking.
+   */
+  private Map<String, Rule> reachableRules;
+  private List<Rule> reachable;
+  private byte[] fingerprint;
+  private List<Expression> numbered;
+  private Map<Expression, Integer> numbers;
+  private volatile Set<Expression> inert;
+
   /****************************************************************************/
   public final ExpressionTreeCleaner cleaner = new ExpressionTreeCleaner(this);
 
@@ -99,9 +131,11 @@ public class Grammar
    * Same as {@link #addRuleAlternative(Rule, Rule)}, but allows the alternative
    * to already be known by the grammar.
    */
-  public void addExistingRuleAlternative(
+  public synchronized void addExistingRuleAlternative(
     Rule extendedRule, Rule rule, boolean prioritary)
   {
+    changed();
+
     if (prioritary) {
       extendedRule.children().add(0, rule);
     }
@@ -111,18 +145,21 @@ public class Grammar
   }
 
   /****************************************************************************/
-  public void removeRuleAlternative(Rule extendedRule, Rule rule)
+  public synchronized void removeRuleAlternative(Rule extendedRule, Rule rule)
   {
     unregisterRule(rule);
     extendedRule.children().remove(rule);
+    changed();
   }
 
   /*****************************************************************************
    * Registers a rule with the grammar. Throws an error if there is already a
    * rule with the same name.
    */
-  public void registerRule(Rule rule)
+  public synchronized void registerRule(Rule rule)
   {
+    changed();
+
     if (rules.put(rule.name, rule) != null)
     {
       throw new Error("Trying to register a rule"
@@ -134,8 +171,10 @@ public class Grammar
    * Makes the grammar forget about the given rule. Throws an error if the
    * grammar does not know about the rule.
    */
-  public void unregisterRule(Rule rule)
+  public synchronized void unregisterRule(Rule rule)
   {
+    changed();
+
     if (rules.remove(rule.name) == null)
     {
       throw new Error("Trying to unregister an unknown rule: \""
@@ -169,11 +208,21 @@ public class Grammar
   /*****************************************************************************
    * Runs a new expression through the cleaner, in order to make its use valid.
    */
-  public Expression clean(Expression expr)
+  public synchronized Expression clean(Expression expr)
   {
     return cleaner.clean(expr);
   }
 
+  /*****************************************************************************
+   * Makes the cleaner forget the canonical expressions that hold $rule (e.g.
+   * the syntax of a recursive macro), so that they don't keep the rule alive
+   * once it is unregistered. Later expressions won't share them.
+   */
+  public synchronized void forget(Rule rule)
+  {
+    cleaner.forget(rule);
+  }
+
   /*****************************************************************************
    * Clean a rule which is not registered. This method is necessary to allow
    * for recursive rules.
@@ -185,4 +234,275 @@ public class Grammar
     unregisterRule(rule);
     return out;
   }
+
+  /*****************************************************************************
+   * Returns the expressions reachable from the registered rules, numbered by
+   * their index in the list: first the reachable rules, sorted as in {@link
+   * #fingerprint()}, then the other expressions, in the pre-order of a walk of
+   * the rules in that order. The numbering is thus the same for two grammars
+   * with the same fingerprint, e.g. in two runs of the compiler.
+   *
+   * The list is cached until the grammar changes.
+   */
+  public synchronized List<Expression> numbered()
+  {
+    fingerprint();
+    return numbered;
+  }
+
+  /*****************************************************************************
+   * Maps the expressions of {@link #numbered()} to their number.
+   */
+  public synchronized Map<Expression, Integer> numbers()
+  {
+    fingerprint();
+    return numbers;
+  }
+
+  /*****************************************************************************
+   * Returns a hash (SHA-1) of the rules reachable from the registered rules
+   * (including the rules and alternatives added by the enabled macros): their
+   * names and the textual representation of their alternatives. Two grammars
+   * with the same fingerprint parse any input to the same match tree.
+   *
+   * The fingerprint is cached until the grammar changes.
+   */
+  public synchronized byte[] fingerprint()
+  {
+    if (fingerprint == null)
+    {
+      reachableRules();
+      Map<String, List<Rule>> definitions = new TreeMap<>();
+
+      for (Rule rule : reachable)
+      {
+        StringBuilder builder = new StringBuilder(rule.name);
+        builder.append(rule.atomic ? " = " : " := ");
+
+        for (Expression child : rule.children()) {
+          builder.append(child).append(" / ");
+        }
+
+        String definition = builder.toString();
+
+        if (!definitions.containsKey(definition)) {
+          definitions.put(definition, new ArrayList<Rule>());
+        }
+
+        definitions.get(definition).add(rule);
+      }
+
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        Charset utf8 = Charset.forName("UTF-8");
+
+        for (Map.Entry<String, List<Rule>> entry : definitions.entrySet())
+        {
+          for (int i = 0 ; i < entry.getValue().size() ; ++i) {
+            digest.update(entry.getKey().getBytes(utf8));
+            digest.update((byte) '\n');
+          }
+        }
+
+        fingerprint = digest.digest();
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new Error(e);
+      }
+
+      number(definitions.values());
+    }
+
+    return fingerprint.clone();
+  }
+
+  /*****************************************************************************
+   * Returns the expressions reachable from the registered rules whose matches
+   * hold no match (including themselves) of an expression with callbacks, nor of
+   * a macro rule. Post-parse callbacks, macro expansion and post-expansion
+   * callbacks can skip the matches of those expressions.
+   *
+   * Expressions absent from the set (including those that are not reachable)
+   * must be assumed to have such matches. The set is cached until the grammar
+   * changes.
+   *
+   * This is called for each match that is transformed, so once the set is
+   * cached, it is read without taking the lock of the grammar.
+   */
+  public Set<Expression> inert()
+  {
+    Set<Expression> inert = this.inert;
+    return inert != null ? inert : computeInert();
+  }
+
+  /*****************************************************************************
+   * Computes the set returned by {@link #inert()}, unless another thread did it
+   * first.
+   */
+  private synchronized Set<Expression> computeInert()
+  {
+    if (inert != null) {
+      return inert;
+    }
+
+    // Maps each reachable expression to the expressions having it as child.
+    Map<Expression, List<Expression>> parents = new IdentityHashMap<>();
+    Deque<Expression> todo = new ArrayDeque<Expression>(rules.values());
+
+    for (Expression expr : todo) {
+      parents.put(expr, new ArrayList<Expression>());
+    }
+
+    while (!todo.isEmpty())
+    {
+      Expression expr = todo.pop();
+
+      for (Expression child : expr.children())
+      {
+        if (!parents.containsKey(child)) {
+          parents.put(child, new ArrayList<Expression>());
+          todo.push(child);
+        }
+
+        parents.get(child).add(expr);
+      }
+    }
+
+    // Propagate the activity of expressions to their ancestors.
+    Set<Expression> active =
+      Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+    for (Expression expr : parents.keySet()) {
+      if (expr.callbacks != null || expr instanceof MacroRule) {
+        todo.push(expr);
+      }
+    }
+
+    while (!todo.isEmpty())
+    {
+      Expression expr = todo.pop();
+
+      if (active.add(expr)) {
+        todo.addAll(parents.get(expr));
+      }
+    }
+
+    Set<Expression> inert =
+      Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+    for (Expression expr : parents.keySet()) {
+      if (!active.contains(expr)) {
+        inert.add(expr);
+      }
+    }
+
+    return this.inert = Collections.unmodifiableSet(inert);
+  }
+
+  /*****************************************************************************
+   * Returns a map from names to the rules reachable from the registered rules.
+   * Names shared by multiple rules map to null. The map is cached until the
+   * grammar changes, as is the list of reachable rules, in $reachable.
+   */
+  private Map<String, Rule> reachableRules()
+  {
+    if (reachableRules != null) {
+      return reachableRules;
+    }
+
+    reachableRules = new HashMap<>();
+    reachable = new ArrayList<>();
+
+    Set<Expression> visited =
+      Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+    Deque<Expression> todo = new ArrayDeque<Expression>(rules.values());
+
+    while (!todo.isEmpty())
+    {
+      Expression expr = todo.pop();
+
+      if (!visited.add(expr)) {
+        continue;
+      }
+
+      if (expr instanceof Rule)
+      {
+        Rule rule = (Rule) expr;
+        reachable.add(rule);
+
+        if (reachableRules.containsKey(rule.name)) {
+          reachableRules.put(rule.name, null);
+        }
+        else {
+          reachableRules.put(rule.name, rule);
+        }
+      }
+
+      todo.addAll(expr.children());
+    }
+
+    return reachableRules;
+  }
+
+  /*****************************************************************************
+   * Numbers the reachable rules, given grouped and sorted as in {@link
+   * #fingerprint()}, and the expressions they hold (see {@link #numbered()}).
+   */
+  private void number(Collection<List<Rule>> rules)
+  {
+    List<Expression> numbered = new ArrayList<>();
+    Map<Expression, Integer> numbers = new IdentityHashMap<>();
+
+    for (List<Rule> group : rules) {
+      for (Rule rule : group) {
+        numbers.put(rule, numbered.size());
+        numbered.add(rule);
+      }
+    }
+
+    Deque<Expression> todo = new ArrayDeque<>();
+
+    for (int i = 0, count = numbered.size() ; i < count ; ++i)
+    {
+      push(todo, numbered.get(i).children());
+
+      while (!todo.isEmpty())
+      {
+        Expression expr = todo.pop();
+
+        if (!numbers.containsKey(expr)) {
+          numbers.put(expr, numbered.size());
+          numbered.add(expr);
+          push(todo, expr.children());
+        }
+      }
+    }
+
+    this.numbered = Collections.unmodifiableList(numbered);
+    this.numbers = Collections.unmodifiableMap(numbers);
+  }
+
+  /*****************************************************************************
+   * Pushes $exprs on $todo, so that they are popped in order.
+   */
+  private static void push(Deque<Expression> todo, List<Expression> exprs)
+  {
+    for (int i = exprs.size() - 1 ; i >= 0 ; --i) {
+      todo.push(exprs.get(i));
+    }
+  }
+
+  /*****************************************************************************
+   * Forgets the cached information that depends on the rules of the grammar.
+   */
+  private void changed()
+  {
+    reachableRules = null;
+    reachable = null;
+    fingerprint = null;
+    numbered = null;
+    numbers = null;
+    inert = null;
+  }
 }
@@ -57,6 +57,7 @@ public class CallbacksMacroDefinition extends MatchCallbacks
 
     boolean raw = match.has(rule("raw"));
     boolean prioritary = match.has(rule("prioritary"));
+    boolean pure = match.has(rule("pure"));
 
     Match block = match.first(rule("block"));
 
@@ -65,7 +66,8 @@ public class CallbacksMacroDefinition extends MatchCallbacks
       : null;
 
     Macro macro = new Macro(ruleName, parentRuleName, grammar,
-      Context.get().expressionStack.pop(), expander, strategy, raw, prioritary);
+      Context.get().expressionStack.pop(), expander, strategy, raw, prioritary,
+      pure);
 
     Context.get().currentFile.addMacro(macro);
     macro.enable();
@@ -820,7 +820,7 @@ public class _C_Statements extends _B_Expressions
     prelude,
     and(choice(_static, _private, _public, _strictfp, _abstract, _final, _class,
       _interface, _enum, seq(at, _interface), annotation, ref("macro"),
-      ref("raw"), ref("prioritary"), endOfInput))
+      ref("raw"), ref("prioritary"), ref("pure"), endOfInput))
   );
 
   /****************************************************************************/
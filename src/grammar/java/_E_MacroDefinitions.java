@@ -249,6 +249,9 @@ public class _E_MacroDefinitions extends _D_Requires
   /****************************************************************************/
   public final Expression prioritary = keyword("prioritary");
 
+  /****************************************************************************/
+  public final Expression pure = keyword("pure");
+
   /****************************************************************************/
   public final Expression as = keyword("as");
 
@@ -266,7 +269,7 @@ public class _E_MacroDefinitions extends _D_Requires
 
   /****************************************************************************/
   public final Rule macroDefinition = rule_seq("macroDefinition",
-    opt(raw), opt(prioritary), macro, identifier, strategy, opt(identifier),
+    opt(raw), opt(prioritary), opt(pure), macro, identifier, strategy, opt(identifier),
     colon, parsingExpression, choice(block, semi));
 
   //============================================================================
@@ -282,7 +285,8 @@ public class _E_MacroDefinitions extends _D_Requires
       macroDefinition, false);
 
     Macro quotations = new Macro("quotationm", "unaryExpression",
-      grammar, quotation, new QuotationMacro(), Macro.Strategy.AS, false, false);
+      grammar, quotation, new QuotationMacro(), Macro.Strategy.AS,
+      false, false, false);
 
     quotations.enable();
 
@@ -0,0 +1,294 @@
+package parser;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import grammar.Expression;
+import source.Source;
+
+/**
+ * A match tree stored in parallel arrays, with one entry per match: the index
+ * of its expression (in a table of the distinct expressions of the tree), its
+ * begin and end positions, and the number of its first child and of its next
+ * sibling (or -1). All the matches of the tree share a single source.
+ *
+ * The matches are numbered in pre-order, the root being number 0. Match objects
+ * are only created on demand, as views of the nodes (see {@link #root()}). The
+ * tree keeps the view of each node it created, so that a node always has the
+ * same view: code walking match trees relies on identity. The lists of children
+ * are not kept: each call to {@link View#children()} returns a new list, which
+ * reads the views from the tree. Hence parts of the tree that are never walked
+ * cost only a few integers per match, and walked parts one small object more.
+ *
+ * The parser builds regular matches: compact trees are used where match trees
+ * are kept beyond the expansion of a file, namely the trees loaded from the
+ * parse cache and the cached expansions of pure macros.
+ */
+public class CompactMatchTree
+{
+  /****************************************************************************/
+  public final Source source;
+
+  /****************************************************************************/
+  private final Expression[] exprs;
+
+  /****************************************************************************/
+  private final int[] exprIds, begins, ends, firstChilds, nextSiblings;
+
+  /*****************************************************************************
+   * The views created for the nodes, null where there is none yet.
+   */
+  private final AtomicReferenceArray<Match> views;
+
+  /*****************************************************************************
+   * Creates a tree whose node $i matches expression {@code exprs[exprIds[i]]}
+   * from {@code begins[i]} to {@code ends[i]}, and has {@code childCounts[i]}
+   * children. The nodes must be in pre-order. Throws an error if the child
+   * counts are inconsistent.
+   */
+  public CompactMatchTree(Source source, Expression[] exprs, int[] exprIds,
+    int[] begins, int[] ends, int[] childCounts)
+  {
+    int count = exprIds.length;
+
+    this.source       = source;
+    this.exprs        = exprs;
+    this.exprIds      = exprIds;
+    this.begins       = begins;
+    this.ends         = ends;
+    this.firstChilds  = new int[count];
+    this.nextSiblings = new int[count];
+    this.views        = new AtomicReferenceArray<>(count);
+
+    /* Link the nodes bottom-up, in reverse pre-order. The children of a node
+     * are the nodes most recently linked, the first child on top. */
+
+    int[] stack = new int[count];
+    int top = 0;
+
+    for (int i = count - 1 ; i >= 0 ; --i)
+    {
+      int n = childCounts[i];
+
+      if (n < 0 || n > top) {
+        throw new Error("Malformed match tree data.");
+      }
+
+      firstChilds[i] = n == 0 ? -1 : stack[top - 1];
+
+      for (int j = 0 ; j < n ; ++j) {
+        --top;
+        nextSiblings[stack[top]] = j == n - 1 ? -1 : stack[top - 1];
+      }
+
+      stack[top++] = i;
+    }
+
+    if (top != 1) {
+      throw new Error("Malformed match tree data.");
+    }
+
+    nextSiblings[0] = -1;
+  }
+
+  /*****************************************************************************
+   * Returns the compact form of the tree rooted at $root. All the matches of
+   * the tree must share the same source.
+   */
+  public static CompactMatchTree of(Match root)
+  {
+    Map<Expression, Integer> indices = new IdentityHashMap<>();
+    List<Expression> exprs = new ArrayList<>();
+    List<Match> nodes = new ArrayList<>();
+
+    // Pre-order walk, without recursion.
+    List<Match> stack = new ArrayList<>();
+    stack.add(root);
+
+    while (!stack.isEmpty())
+    {
+      Match match = stack.remove(stack.size() - 1);
+
+      if (match.source != root.source) {
+        throw new Error("Match trees with multiple sources can't be compacted: "
+          + match);
+      }
+
+      nodes.add(match);
+
+      if (!indices.containsKey(match.expr)) {
+        indices.put(match.expr, exprs.size());
+        exprs.add(match.expr);
+      }
+
+      List<Match> children = match.children();
+
+      for (int i = children.size() - 1 ; i >= 0 ; --i) {
+        stack.add(children.get(i));
+      }
+    }
+
+    int count = nodes.size();
+    int[] exprIds     = new int[count];
+    int[] begins      = new int[count];
+    int[] ends        = new int[count];
+    int[] childCounts = new int[count];
+
+    for (int i = 0 ; i < count ; ++i)
+    {
+      Match match = nodes.get(i);
+      exprIds[i]     = indices.get(match.expr);
+      begins[i]      = match.begin;
+      ends[i]        = match.end;
+      childCounts[i] = match.children().size();
+    }
+
+    return new CompactMatchTree(root.source,
+      exprs.toArray(new Expression[exprs.size()]),
+      exprIds, begins, ends, childCounts);
+  }
+
+  /*****************************************************************************
+   * Number of matches in the tree.
+   */
+  public int size()
+  {
+    return exprIds.length;
+  }
+
+  /*****************************************************************************
+   * Returns the view of the root of the tree. Always returns the same object.
+   */
+  public Match root()
+  {
+    return view(0);
+  }
+
+  /*****************************************************************************
+   * Returns the view of $node, creating it if there is none yet. Threads racing
+   * to create it all get the view that was stored first.
+   */
+  Match view(int node)
+  {
+    Match view = views.get(node);
+
+    if (view == null)
+    {
+      view = new View(this, node);
+
+      if (!views.compareAndSet(node, null, view)) {
+        view = views.get(node);
+      }
+    }
+
+    return view;
+  }
+
+  /****************************************************************************/
+  Expression expr(int node)
+  {
+    return exprs[exprIds[node]];
+  }
+
+  /****************************************************************************/
+  int begin(int node)
+  {
+    return begins[node];
+  }
+
+  /****************************************************************************/
+  int end(int node)
+  {
+    return ends[node];
+  }
+
+  /*****************************************************************************
+   * Returns a new unmodifiable list of the views of the children of $node.
+   */
+  List<Match> children(int node)
+  {
+    int first = firstChilds[node];
+
+    if (first == -1) {
+      return Collections.emptyList();
+    }
+
+    int count = 0;
+
+    for (int child = first ; child != -1 ; child = nextSiblings[child]) {
+      ++count;
+    }
+
+    int[] nodes = new int[count];
+    count = 0;
+
+    for (int child = first ; child != -1 ; child = nextSiblings[child]) {
+      nodes[count++] = child;
+    }
+
+    return new Children(nodes);
+  }
+
+  /*****************************************************************************
+   * The views of some nodes, in order.
+   */
+  private final class Children extends AbstractList<Match>
+    implements RandomAccess
+  {
+    /**************************************************************************/
+    private final int[] nodes;
+
+    /**************************************************************************/
+    Children(int[] nodes)
+    {
+      this.nodes = nodes;
+    }
+
+    /**************************************************************************/
+    @Override public Match get(int i)
+    {
+      return view(nodes[i]);
+    }
+
+    /**************************************************************************/
+    @Override public int size()
+    {
+      return nodes.length;
+    }
+  }
+
+  /*****************************************************************************
+   * A match viewing a node of a compact tree. Regular matches don't pay for
+   * the fields needed to create the children lazily.
+   */
+  static final class View extends Match
+  {
+    /**************************************************************************/
+    private final CompactMatchTree tree;
+
+    /**************************************************************************/
+    private final int node;
+
+    /**************************************************************************/
+    View(CompactMatchTree tree, int node)
+    {
+      super(tree, node);
+      this.tree = tree;
+      this.node = node;
+    }
+
+    /***************************************************************************
+     * Returns a new list, whose views are the ones kept by the tree.
+     */
+    @Override public List<Match> children()
+    {
+      return tree.children(node);
+    }
+  }
+}
@@ -65,6 +65,14 @@ public class FlatMemo implements Memo
     return out;
   }
 
+  /****************************************************************************/
+  @Override public void put(ParseData data)
+  {
+    if (data.expr instanceof Rule) {
+      memo.put(new Key(data.begin, (Rule) data.expr), data);
+    }
+  }
+
   /****************************************************************************/
   @Override public void clear()
   {
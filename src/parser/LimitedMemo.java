@@ -80,6 +80,23 @@ public class LimitedMemo implements Memo
     return out;
   }
 
+  /****************************************************************************/
+  @Override public void put(ParseData data)
+  {
+    if (!(data.expr instanceof Rule)) {
+      return;
+    }
+
+    Memoed memoed = memo.get(data.expr);
+
+    if (memoed == null) {
+      memoed = new Memoed();
+      memo.put(data.expr, memoed);
+    }
+
+    memoed.insert(data.begin, data);
+  }
+
   /****************************************************************************/
   @Override public void clear()
   {
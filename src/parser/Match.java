@@ -10,6 +10,7 @@ import grammar.Expression;
 import grammar.Expression.Capture;
 import grammar.Expression.Rule;
 import source.Source;
+import source.SourceView;
 import trees.MatchFinder.Finder;
 import trees.MatchSpec;
 
@@ -25,6 +26,8 @@ import trees.MatchSpec;
  * When using the finders, remember that Not-expressions are atomic (the
  * sub-matches of their matches don't show up in the match tree), while
  * And-expressions are not.
+ *
+ * A match can also be a view of a node of a {@link CompactMatchTree}.
  */
 public class Match
 {
@@ -68,7 +71,8 @@ public class Match
   public final int end;
 
   /*****************************************************************************
-   * Matches of the sub-expressions of expr.
+   * Matches of the sub-expressions of expr. Null for views of a compact tree,
+   * which override {@link #children()}.
    */
   private final List<Match> children;
 
@@ -94,6 +98,19 @@ public class Match
     this.children = Collections.unmodifiableList(children);
   }
 
+  /*****************************************************************************
+   * For {@link CompactMatchTree.View}: a match for node $node of the compact
+   * tree $tree, whose children are supplied by the subclass.
+   */
+  Match(CompactMatchTree tree, int node)
+  {
+    this.expr = tree.expr(node);
+    this.source = tree.source;
+    this.begin = tree.begin(node);
+    this.end = tree.end(node);
+    this.children = null;
+  }
+
   /****************************************************************************/
   @Override public String toString()
   {
@@ -110,7 +127,7 @@ public class Match
   /****************************************************************************/
   public Match child()
   {
-    return children.get(0);
+    return children().get(0);
   }
 
   /*****************************************************************************
@@ -119,7 +136,7 @@ public class Match
    */
   public boolean empty()
   {
-    return children.isEmpty();
+    return children().isEmpty();
   }
 
   /****************************************************************************/
@@ -149,7 +166,7 @@ public class Match
    */
   public String string()
   {
-    return source.at(begin, end).trim();
+    return text().toString();
   }
 
   /*****************************************************************************
@@ -160,6 +177,24 @@ public class Match
     return source.at(begin, end);
   }
 
+  /*****************************************************************************
+   * Same as {@link #string()}, but returns a view of the source instead of a
+   * copy. Prefer this to compare the matched text.
+   */
+  public SourceView text()
+  {
+    return originalText().trim();
+  }
+
+  /*****************************************************************************
+   * Same as {@link #originalString()}, but returns a view of the source instead
+   * of a copy.
+   */
+  public SourceView originalText()
+  {
+    return new SourceView(source, begin, end);
+  }
+
   /*****************************************************************************
    * Indicates if this match is matched by the supplied specification.
    */
@@ -209,7 +244,7 @@ public class Match
 
     /* Do the first recursion step here, allows this method to be called
      * on rules. */
-    for (Match m : children) {
+    for (Match m : children()) {
       m.getCaptures(captureName, out);
     }
 
@@ -226,7 +261,7 @@ public class Match
     }
     else if (!(expr instanceof Rule))
     {
-      for (Match m : children) {
+      for (Match m : children()) {
         m.getCaptures(captureName, captures);
       }
     }
@@ -0,0 +1,177 @@
+package parser;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import grammar.Expression;
+import grammar.Grammar;
+import source.Source;
+
+/**
+ * Converts match trees to and from a compact binary form.
+ *
+ * Expressions are not serialized: they are designated by their number in the
+ * grammar (see {@link Grammar#numbered()}). Those numbers only depend on the
+ * rules of the grammar, so a match tree can be read back against any grammar
+ * with the same rules as the one it was parsed with (see {@link
+ * Grammar#fingerprint()}), but not against another grammar.
+ *
+ * All numbers are written as variable-length unsigned integers (7 bits per
+ * byte, least significant group first). The format is the number of matches in
+ * the tree, followed, for each match in pre-order, by the number of its
+ * expression, the distance between its begin position and the begin position
+ * of the previous match, its length, and its number of children.
+ *
+ * Begin positions never decrease in pre-order, so the distances are small and
+ * positive.
+ *
+ * Trees are read back in compact form (see {@link CompactMatchTree}).
+ */
+public class MatchTreeSerializer
+{
+  /*****************************************************************************
+   * Returns the binary form of the tree rooted at $root, parsed with $grammar,
+   * or null if the tree holds a match of an expression that the grammar doesn't
+   * number.
+   */
+  public static byte[] serialize(Match root, Grammar grammar)
+  {
+    Map<Expression, Integer> numbers = grammar.numbers();
+
+    ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+    int nodeCount = 0;
+    int previousBegin = 0;
+
+    // Pre-order walk, without recursion.
+    List<Match> stack = new ArrayList<>();
+    stack.add(root);
+
+    while (!stack.isEmpty())
+    {
+      Match match = stack.remove(stack.size() - 1);
+      Integer number = numbers.get(match.expr);
+
+      if (number == null) {
+        return null;
+      }
+
+      List<Match> children = match.children();
+
+      writeInt(nodes, number);
+      writeInt(nodes, match.begin - previousBegin);
+      writeInt(nodes, match.length());
+      writeInt(nodes, children.size());
+
+      previousBegin = match.begin;
+      ++nodeCount;
+
+      for (int i = children.size() - 1 ; i >= 0 ; --i) {
+        stack.add(children.get(i));
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeInt(out, nodeCount);
+    byte[] bytes = nodes.toByteArray();
+    out.write(bytes, 0, bytes.length);
+
+    return out.toByteArray();
+  }
+
+  /*****************************************************************************
+   * Reads back the tree serialized at position $offset of $bytes, resolving
+   * expressions against $grammar, and making the matches refer to $source.
+   * Returns the root of a compact tree. Throws an error if the data is
+   * malformed.
+   */
+  public static Match deserialize(
+    byte[] bytes, int offset, Grammar grammar, Source source)
+  {
+    Reader in = new Reader(bytes, offset);
+    List<Expression> numbered = grammar.numbered();
+    Expression[] exprs = numbered.toArray(new Expression[numbered.size()]);
+
+    int count = in.readInt();
+
+    if (count <= 0 || count > bytes.length - in.position) {
+      throw new Error("Malformed match tree data.");
+    }
+
+    int[] exprIds = new int[count];
+    int[] begins = new int[count];
+    int[] ends = new int[count];
+    int[] childCounts = new int[count];
+    int begin = 0;
+
+    for (int i = 0 ; i < count ; ++i)
+    {
+      int index = in.readInt();
+
+      if (index < 0 || index >= exprs.length) {
+        throw new Error("Malformed match tree data.");
+      }
+
+      exprIds[i] = index;
+      begin += in.readInt();
+      begins[i] = begin;
+      ends[i] = begin + in.readInt();
+      childCounts[i] = in.readInt();
+    }
+
+    return new CompactMatchTree(source, exprs, exprIds, begins, ends,
+      childCounts).root();
+  }
+
+  /****************************************************************************/
+  private static void writeInt(ByteArrayOutputStream out, int value)
+  {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out.write(value);
+  }
+
+  /*****************************************************************************
+   * A cursor over a byte array.
+   */
+  private static class Reader
+  {
+    final byte[] bytes;
+    int position;
+
+    Reader(byte[] bytes, int position)
+    {
+      this.bytes = bytes;
+      this.position = position;
+    }
+
+    int readByte()
+    {
+      if (position >= bytes.length) {
+        throw new Error("Malformed match tree data.");
+      }
+
+      return bytes[position++] & 0xFF;
+    }
+
+    int readInt()
+    {
+      int value = 0;
+      int shift = 0;
+      int b;
+
+      do {
+        b = readByte();
+        value |= (b & 0x7F) << shift;
+        shift += 7;
+      }
+      while ((b & 0x80) != 0);
+
+      return value;
+    }
+  }
+}
@@ -104,6 +104,22 @@ public class Matcher implements ExpressionVisitor
     data   = null;
   }
 
+  /*****************************************************************************
+   * Seeds the memoization table with $match, so that its expression matches it
+   * at its begin position without being parsed. $match should come from a
+   * grammar that parses as the one used with this matcher (see
+   * {@link grammar.Grammar#fingerprint()}).
+   */
+  public void memoize(Match match)
+  {
+    if (match.source != source) {
+      throw new Error("Cannot memoize a match of another source: "
+        + match.source);
+    }
+
+    memo.put(new ParseData(match.begin, match));
+  }
+
   /*****************************************************************************
    * Dirty hack to allow parsing files where memoization would overflow memory.
    */
@@ -19,6 +19,12 @@ interface Memo
    */
   ParseData get(int position, Expression expr);
 
+  /*****************************************************************************
+   * Memoizes $data as the result of parsing its expression at its begin
+   * position. Data for expressions that are not memoized is ignored.
+   */
+  void put(ParseData data);
+
   /*****************************************************************************
    * Forgets all memoized data.
    */
@@ -39,17 +39,19 @@ public class NestedMemo implements Memo
 
     if (out == null) {
       out = matcher.parse(expr);
-      set(out);
+      put(out);
     }
 
     return out;
   }
 
-  /*****************************************************************************
-   * Memoizes the given match data at the given position.
-   */
-  private void set(ParseData data)
+  /****************************************************************************/
+  @Override public void put(ParseData data)
   {
+    if (!(data.expr instanceof Rule)) {
+      return;
+    }
+
     Map<Expression, ParseData> inner = memo.get(data.begin);
 
     if (inner == null) {
@@ -49,14 +49,15 @@ public class ParseData
 
   /*****************************************************************************
    * Make a ParseData from a Match. Useful to inject matches (as ParseData) into
-   * the memoization table.
+   * the memoization table (see {@link Matcher#memoize(Match)}). The data
+   * spans as many characters from $position as $match.
    */
   ParseData(int position, Match match)
   {
     this.expr      = match.expr;
     this.source    = match.source;
     this.begin     = position;
-    this.end       = position;
+    this.end       = position + match.end - match.begin;
     this.atomic    = false;
     this.childs    = null;
     this.errors    = new ParseErrors(expr, begin);
@@ -0,0 +1,359 @@
+package parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import grammar.Expression;
+import grammar.Expression.StringLiteral;
+import source.Source;
+
+/**
+ * The match tree of an input holding "holes": regions whose content can be
+ * replaced by other text. The tree for the new input can then be obtained by
+ * reparsing only what depends on the content of the holes (see {@link
+ * #refill}).
+ *
+ * While parsing the original input, we record the "frontier" evaluations: the
+ * evaluations of an expression at a position inside a hole, requested by an
+ * expression whose evaluation did not begin inside the same hole; and string
+ * literals beginning before a hole and extending into it. All other evaluations
+ * only see the content of the holes through the frontier evaluations.
+ *
+ * Hence, if each frontier evaluation has the same outcome on the new input (it
+ * fails again, or it succeeds again, ending at the same place relative to the
+ * surrounding text), all other evaluations have the same outcome too. The new
+ * tree is then the old tree, with positions shifted to account for the new
+ * length of the holes, and with the matches of the frontier evaluations
+ * replaced by their new matches.
+ *
+ * This requires that no frontier evaluation begins or ends strictly inside a
+ * hole (such a position has no counterpart in the new input), and that the
+ * tree holds no match whose expression has callbacks (reusing the match would
+ * not run them). Otherwise, the skeleton is not reusable.
+ */
+public class Skeleton
+{
+  /****************************************************************************/
+  private final Match match;
+
+  /*****************************************************************************
+   * Begin and end positions of the holes in the original input, sorted.
+   */
+  private final int[] begins, ends;
+
+  /*****************************************************************************
+   * Frontier evaluations, in the order they were first requested.
+   */
+  private final Map<Evaluation, Evaluation> frontier;
+
+  /****************************************************************************/
+  private final boolean reusable;
+
+  /****************************************************************************/
+  private Skeleton(Match match, int[] begins, int[] ends,
+    Map<Evaluation, Evaluation> frontier)
+  {
+    this.match    = match;
+    this.begins   = begins;
+    this.ends     = ends;
+    this.frontier = frontier;
+    this.reusable = checkReusable();
+  }
+
+  /*****************************************************************************
+   * Parses $source according to $expr, recording the evaluations that depend on
+   * the content of the holes, which span from $begins[i] (inclusive) to
+   * $ends[i] (exclusive). The holes must be sorted and must not overlap.
+   * Returns null if the parse fails.
+   */
+  public static Skeleton parse(
+    Expression expr, Source source, int[] begins, int[] ends)
+  {
+    Tracker tracker = new Tracker(source, begins, ends);
+
+    if (!tracker.matches(expr)) {
+      return null;
+    }
+
+    return new Skeleton(tracker.match(), begins.clone(), ends.clone(),
+      tracker.frontier);
+  }
+
+  /*****************************************************************************
+   * The match tree of the original input.
+   */
+  public Match match()
+  {
+    return match;
+  }
+
+  /*****************************************************************************
+   * Indicates if {@link #refill} may succeed.
+   */
+  public boolean reusable()
+  {
+    return reusable;
+  }
+
+  /*****************************************************************************
+   * Returns the match tree for $source, whose content is the original input
+   * with the content of the holes replaced. The holes now span from $begins[i]
+   * to $ends[i]. Returns null if the skeleton is not reusable, or if the new
+   * content of the holes changes the parse beyond the frontier evaluations.
+   */
+  public Match refill(Source source, int[] begins, int[] ends)
+  {
+    if (!reusable || begins.length != this.begins.length) {
+      return null;
+    }
+
+    Matcher matcher = new Matcher(source);
+    Map<Evaluation, Match> replacements = new HashMap<>();
+
+    for (Evaluation eval : frontier.values())
+    {
+      matcher.stream.position = translate(eval.position, begins, ends);
+      ParseData data = matcher.parse(eval.expr);
+
+      if (data.succeeded != eval.succeeded
+      ||  data.succeeded && data.end != translate(eval.end, begins, ends))
+      {
+        return null;
+      }
+
+      if (data.succeeded) {
+        replacements.put(eval, data.match);
+      }
+    }
+
+    return copy(match, source, begins, ends, replacements);
+  }
+
+  /*****************************************************************************
+   * Returns the counterpart of the original input position $position in an
+   * input whose holes span from $begins[i] to $ends[i], or -1 if $position lies
+   * strictly inside a hole.
+   */
+  private int translate(int position, int[] begins, int[] ends)
+  {
+    int shift = 0;
+
+    for (int i = 0 ; i < this.begins.length ; ++i)
+    {
+      if (position < this.begins[i]) {
+        break;
+      }
+      else if (position == this.begins[i]) {
+        return begins[i];
+      }
+      else if (position < this.ends[i]) {
+        return -1;
+      }
+
+      shift = ends[i] - this.ends[i];
+    }
+
+    return position + shift;
+  }
+
+  /*****************************************************************************
+   * Copies $match (whose positions are in the original input) to $source, whose
+   * holes span from $begins[i] to $ends[i], using the matches in $replacements
+   * for the frontier evaluations.
+   */
+  private Match copy(Match match, Source source, int[] begins, int[] ends,
+    Map<Evaluation, Match> replacements)
+  {
+    Match replacement = replacements.get(new Evaluation(match));
+
+    if (replacement != null) {
+      return replacement;
+    }
+
+    int begin = translate(match.begin, begins, ends);
+    int end   = translate(match.end,   begins, ends);
+
+    if (match.children().isEmpty()) {
+      return new Match(match.expr, source, begin, end);
+    }
+
+    Match[] children = new Match[match.children().size()];
+
+    for (int i = 0 ; i < children.length ; ++i) {
+      children[i] = copy(match.children().get(i), source, begins, ends,
+        replacements);
+    }
+
+    return new Match(match.expr, source, begin, end, Arrays.asList(children));
+  }
+
+  /****************************************************************************/
+  private boolean checkReusable()
+  {
+    for (int i = 0 ; i < begins.length ; ++i) {
+      if (begins[i] >= ends[i]) {
+        return false;
+      }
+    }
+
+    for (Evaluation eval : frontier.values()) {
+      if (translate(eval.position, begins, ends) == -1
+      ||  eval.succeeded && translate(eval.end, begins, ends) == -1)
+      {
+        return false;
+      }
+    }
+
+    return checkReusable(match);
+  }
+
+  /****************************************************************************/
+  private boolean checkReusable(Match match)
+  {
+    if (frontier.containsKey(new Evaluation(match))) {
+      return true;
+    }
+
+    if (match.expr.callbacks != null
+    ||  translate(match.begin, begins, ends) == -1
+    ||  translate(match.end,   begins, ends) == -1)
+    {
+      return false;
+    }
+
+    for (Match child : match.children()) {
+      if (!checkReusable(child)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /*****************************************************************************
+   * The evaluation of an expression at a position, and its outcome. Equality
+   * only considers the expression and the position.
+   */
+  private static class Evaluation
+  {
+    final Expression expr;
+    final int position;
+    boolean succeeded;
+    int end;
+
+    Evaluation(Expression expr, int position)
+    {
+      this.expr = expr;
+      this.position = position;
+    }
+
+    Evaluation(Match match)
+    {
+      this(match.expr, match.begin);
+    }
+
+    @Override public boolean equals(Object o)
+    {
+      if (!(o instanceof Evaluation)) {
+        return false;
+      }
+
+      Evaluation other = (Evaluation) o;
+      return expr == other.expr && position == other.position;
+    }
+
+    @Override public int hashCode()
+    {
+      return System.identityHashCode(expr) * 31 + position;
+    }
+  }
+
+  /*****************************************************************************
+   * A matcher that records the frontier evaluations.
+   */
+  private static class Tracker extends Matcher
+  {
+    final int[] begins, ends;
+
+    final Map<Evaluation, Evaluation> frontier = new LinkedHashMap<>();
+
+    /** Begin positions of the evaluations in progress, innermost last. */
+    int[] parents = new int[64];
+    int depth = 0;
+
+    Tracker(Source source, int[] begins, int[] ends)
+    {
+      super(source);
+      this.begins = begins;
+      this.ends = ends;
+    }
+
+    /** Index of the hole holding $position, or -1. */
+    int hole(int position)
+    {
+      for (int i = 0 ; i < begins.length ; ++i) {
+        if (begins[i] <= position && position < ends[i]) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+
+    /** Does a string literal beginning at $position extend into a hole? */
+    boolean crosses(int position, int length)
+    {
+      for (int i = 0 ; i < begins.length ; ++i) {
+        if (position < begins[i] && begins[i] < position + length) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    @Override boolean visitChild(Expression child)
+    {
+      int position = stream.position;
+
+      // The root expression has no parent: it lies in no hole.
+      int parent = depth == 0 ? -1 : parents[depth - 1];
+
+      if (depth == parents.length) {
+        parents = Arrays.copyOf(parents, depth * 2);
+      }
+
+      parents[depth++] = position;
+      boolean succeeded;
+
+      try {
+        succeeded = super.visitChild(child);
+      }
+      finally {
+        --depth;
+      }
+
+      int hole = hole(position);
+
+      boolean isFrontier = hole != -1
+        ? hole(parent) != hole
+        : child instanceof StringLiteral
+          && crosses(position, ((StringLiteral) child).string.length());
+
+      if (isFrontier)
+      {
+        Evaluation eval = new Evaluation(child, position);
+
+        if (!frontier.containsKey(eval)) {
+          eval.succeeded = succeeded;
+          eval.end = stream.position;
+          frontier.put(eval, eval);
+        }
+      }
+
+      return succeeded;
+    }
+  }
+}
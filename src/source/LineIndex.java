@@ -0,0 +1,106 @@
+package source;
+
+import java.util.Arrays;
+
+/**
+ * The positions of the newline characters of a source, used to convert a
+ * position to a line and column number in logarithmic time.
+ *
+ * Lines and columns are numbered starting with 1. A newline character is the
+ * last column of the line it ends.
+ *
+ * Sources build their index lazily, so that it costs nothing unless a
+ * position is described. Indexes are immutable, so it doesn't matter if two
+ * threads race to build one.
+ */
+public class LineIndex
+{
+  /****************************************************************************/
+  private static final int CHUNK = 8192;
+
+  /*****************************************************************************
+   * Positions of the newline characters, in increasing order.
+   */
+  private final int[] newlines;
+
+  /****************************************************************************/
+  public LineIndex(Source source)
+  {
+    int[] newlines = new int[64];
+    int count = 0;
+    int end = source.end();
+
+    // Read by chunks: at(int) can be slower than at(int, int) per character.
+    for (int p = 0 ; p < end ; p += CHUNK)
+    {
+      String chunk = source.at(p, Math.min(p + CHUNK, end));
+
+      for (int i = chunk.indexOf('\n') ; i >= 0 ; i = chunk.indexOf('\n', i + 1))
+      {
+        if (count == newlines.length) {
+          newlines = Arrays.copyOf(newlines, count * 2);
+        }
+
+        newlines[count++] = p + i;
+      }
+    }
+
+    this.newlines = Arrays.copyOf(newlines, count);
+  }
+
+  /*****************************************************************************
+   * Returns the number of the line holding position $p.
+   */
+  public int line(int p)
+  {
+    return newlinesBefore(p) + 1;
+  }
+
+  /*****************************************************************************
+   * Returns the number of the column of position $p in its line.
+   */
+  public int column(int p)
+  {
+    int count = newlinesBefore(p);
+    return p - (count == 0 ? -1 : newlines[count - 1]);
+  }
+
+  /*****************************************************************************
+   * Returns the position of the first character of line number $line, which
+   * must exist.
+   */
+  public int lineStart(int line)
+  {
+    if (line < 1 || line > newlines.length + 1) {
+      throw new IndexOutOfBoundsException("line " + line);
+    }
+
+    return line == 1 ? 0 : newlines[line - 2] + 1;
+  }
+
+  /*****************************************************************************
+   * Returns the number of lines (which is one more than the number of
+   * newlines).
+   */
+  public int lines()
+  {
+    return newlines.length + 1;
+  }
+
+  /*****************************************************************************
+   * Describes position $p in terms of line and column number.
+   */
+  public String where(int p)
+  {
+    return "line " + line(p) + " col. " + column(p);
+  }
+
+  /*****************************************************************************
+   * Returns the number of newlines at positions strictly before $p.
+   */
+  private int newlinesBefore(int p)
+  {
+    int index = Arrays.binarySearch(newlines, p);
+    return index >= 0 ? index : -index - 1;
+  }
+}
@@ -21,6 +21,8 @@
 //  Change log
 //    090701 License changed by the author to Apache v.2.
 //    090810 Package name changed.
+//   caxap
+//    261019 Added 'line' and 'column'.
 //
 //=========================================================================
 
@@ -66,4 +68,12 @@ public interface Source
   //  Describes position p in user's terms.
   //-------------------------------------------------------------------
   String where(int p);
+
+  //-------------------------------------------------------------------
+  //  Returns the line and column numbers of position p.
+  //  Lines and columns are numbered starting with 1.
+  //  (see source.LineIndex)
+  //-------------------------------------------------------------------
+  int line(int p);
+  int column(int p);
 }
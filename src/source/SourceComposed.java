@@ -7,14 +7,49 @@ import parser.Match;
  * source. Those are matches created by a user (usually in order to produce the
  * output of a macro); or matches that result from macro-expansion.
  *
+ * The text is not copied: it is held as a rope whose leaves are ranges of the
+ * sources of the matches the source is composed of. When such a source is
+ * itself composed, the relevant part of its rope is shared instead. The rope is
+ * kept balanced, so that {@link #at(int)}, {@link #at(int, int)} and {@link
+ * #where(int)} take a time logarithmic in the number of leaves (plus the length
+ * of the returned string), however deeply sources are composed.
+ *
  * @see {@link compiler.util.MatchCreator}
  */
-public class SourceComposed extends SourceString
+public class SourceComposed implements Source
 {
+  /****************************************************************************/
+  private final Rope rope;
+
+  /*****************************************************************************
+   * Hash of the text, computed by {@link #toString()} if needed.
+   */
+  private int hash;
+
+  /*****************************************************************************
+   * Line index of the text, built when first needed.
+   */
+  private volatile LineIndex lines;
+
   /****************************************************************************/
   public SourceComposed(Match... matchs)
   {
-    super(strFromMatches(matchs));
+    Rope rope = null;
+
+    for (Match match : matchs)
+    {
+      if (match.begin == match.end) {
+        continue;
+      }
+
+      Rope piece = match.source instanceof SourceComposed
+        ? ((SourceComposed) match.source).rope.slice(match.begin, match.end)
+        : new Leaf(match.source, match.begin, match.end);
+
+      rope = rope == null ? piece : Rope.join(rope, piece);
+    }
+
+    this.rope = rope;
   }
 
   /****************************************************************************/
@@ -29,15 +64,244 @@ public class SourceComposed extends SourceString
     return builder.toString();
   }
 
+  /****************************************************************************/
+  @Override public int end()
+  {
+    return rope == null ? 0 : rope.length;
+  }
+
+  /****************************************************************************/
+  @Override public char at(int p)
+  {
+    if (p < 0 || p >= end()) {
+      throw new StringIndexOutOfBoundsException(p);
+    }
+
+    return rope.at(p);
+  }
+
+  /****************************************************************************/
+  @Override public String at(int p, int q)
+  {
+    if (p < 0 || q > end() || p > q) {
+      throw new StringIndexOutOfBoundsException(
+        "begin " + p + ", end " + q + ", length " + end());
+    }
+
+    StringBuilder builder = new StringBuilder(q - p);
+
+    if (p < q) {
+      rope.append(builder, p, q);
+    }
+
+    return builder.toString();
+  }
+
   /****************************************************************************/
   @Override public String where(int p)
   {
-    return super.where(p) + " (in composed source)";
+    String where = p > 15 ? "After '... " + at(p - 15, p) + "'"
+                 : p > 0  ? "After '" + at(0, p) + "'"
+                 : "At start";
+
+    return where + " (in composed source)";
+  }
+
+  /****************************************************************************/
+  @Override public int line(int p)
+  {
+    return lines().line(p);
+  }
+
+  /****************************************************************************/
+  @Override public int column(int p)
+  {
+    return lines().column(p);
+  }
+
+  /*****************************************************************************
+   * Returns the line index of the text, building it if needed.
+   */
+  private LineIndex lines()
+  {
+    LineIndex lines = this.lines;
+
+    if (lines == null) {
+      this.lines = lines = new LineIndex(this);
+    }
+
+    return lines;
   }
 
   /****************************************************************************/
   @Override public String toString()
   {
-    return "composed source (" + Integer.toHexString(text.hashCode()) + ")";
+    if (hash == 0) {
+      hash = at(0, end()).hashCode();
+    }
+
+    return "composed source (" + Integer.toHexString(hash) + ")";
+  }
+
+  /*****************************************************************************
+   * An immutable, height-balanced (AVL) rope.
+   */
+  private static abstract class Rope
+  {
+    final int length;
+    final int height;
+
+    Rope(int length, int height)
+    {
+      this.length = length;
+      this.height = height;
+    }
+
+    /** Returns the character at $p. */
+    abstract char at(int p);
+
+    /** Appends the characters from $p to $q (exclusive) to $builder. */
+    abstract void append(StringBuilder builder, int p, int q);
+
+    /** Returns a rope for the characters from $p to $q (exclusive). */
+    abstract Rope slice(int p, int q);
+
+    /**************************************************************************
+     * Concatenates two ropes, keeping the result balanced. Takes a time
+     * proportional to the difference of their heights.
+     */
+    static Rope join(Rope left, Rope right)
+    {
+      if (left.height > right.height + 1)
+      {
+        Concat l = (Concat) left;
+        return balance(l.left, join(l.right, right));
+      }
+      else if (right.height > left.height + 1)
+      {
+        Concat r = (Concat) right;
+        return balance(join(left, r.left), r.right);
+      }
+      else {
+        return new Concat(left, right);
+      }
+    }
+
+    /**************************************************************************
+     * Concatenates two ropes whose heights differ by at most two, using a
+     * rotation if needed.
+     */
+    private static Rope balance(Rope left, Rope right)
+    {
+      if (left.height > right.height + 1)
+      {
+        Concat l = (Concat) left;
+
+        if (l.left.height >= l.right.height) {
+          return new Concat(l.left, new Concat(l.right, right));
+        }
+
+        Concat lr = (Concat) l.right;
+        return new Concat(new Concat(l.left, lr.left),
+          new Concat(lr.right, right));
+      }
+      else if (right.height > left.height + 1)
+      {
+        Concat r = (Concat) right;
+
+        if (r.right.height >= r.left.height) {
+          return new Concat(new Concat(left, r.left), r.right);
+        }
+
+        Concat rl = (Concat) r.left;
+        return new Concat(new Concat(left, rl.left),
+          new Concat(rl.right, r.right));
+      }
+      else {
+        return new Concat(left, right);
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * A range of a source (which is not composed).
+   */
+  private static class Leaf extends Rope
+  {
+    final Source source;
+    final int begin;
+
+    Leaf(Source source, int begin, int end)
+    {
+      super(end - begin, 0);
+      this.source = source;
+      this.begin = begin;
+    }
+
+    @Override char at(int p)
+    {
+      return source.at(begin + p);
+    }
+
+    @Override void append(StringBuilder builder, int p, int q)
+    {
+      builder.append(source.at(begin + p, begin + q));
+    }
+
+    @Override Rope slice(int p, int q)
+    {
+      return p == 0 && q == length
+        ? this
+        : new Leaf(source, begin + p, begin + q);
+    }
+  }
+
+  /*****************************************************************************
+   * The concatenation of two ropes.
+   */
+  private static class Concat extends Rope
+  {
+    final Rope left, right;
+
+    Concat(Rope left, Rope right)
+    {
+      super(left.length + right.length,
+        Math.max(left.height, right.height) + 1);
+
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override char at(int p)
+    {
+      return p < left.length ? left.at(p) : right.at(p - left.length);
+    }
+
+    @Override void append(StringBuilder builder, int p, int q)
+    {
+      if (p < left.length) {
+        left.append(builder, p, Math.min(q, left.length));
+      }
+      if (q > left.length) {
+        right.append(builder, Math.max(p - left.length, 0), q - left.length);
+      }
+    }
+
+    @Override Rope slice(int p, int q)
+    {
+      if (p == 0 && q == length) {
+        return this;
+      }
+      else if (q <= left.length) {
+        return left.slice(p, q);
+      }
+      else if (p >= left.length) {
+        return right.slice(p - left.length, q - left.length);
+      }
+      else {
+        return join(left.slice(p, left.length),
+          right.slice(0, q - left.length));
+      }
+    }
   }
 }
@@ -0,0 +1,179 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A file source served directly from the bytes of the memory-mapped file, with
+ * one character per byte. This is only correct if the file decodes to one
+ * character per byte in its charset, and holds no unicode escape (\\uXXXX):
+ * use {@link #open} to get a {@link SourceFileText} otherwise.
+ *
+ * Unlike {@link SourceFileText}, this doesn't decode the file into a buffer,
+ * then unescape the buffer into a string: the file is only read by the parser.
+ *
+ * The mapped buffer is the content of the source, so it stays referenced for as
+ * long as the source is: the text of matches is read from it after parsing,
+ * when expanding macros and emitting code. The file is unmapped once the source
+ * is garbage collected. The mapping holds no file descriptor, but some systems
+ * (e.g. Windows) won't delete or truncate a file while it is mapped.
+ */
+public class SourceFileBytes implements Source
+{
+  /****************************************************************************/
+  private final File file;
+
+  /****************************************************************************/
+  private final ByteBuffer bytes;
+
+  /*****************************************************************************
+   * Line index, built when first needed.
+   */
+  private volatile LineIndex lines;
+
+  /****************************************************************************/
+  private SourceFileBytes(File file, ByteBuffer bytes)
+  {
+    this.file = file;
+    this.bytes = bytes;
+  }
+
+  /*****************************************************************************
+   * Returns a source for $file, decoded with $charset. The source is a
+   * SourceFileBytes if the pre-scan of the file (see {@link #servable}) allows
+   * it, and a {@link SourceFileText} otherwise. Either way, the file is mapped
+   * once; a SourceFileText decodes the mapped bytes, and doesn't retain them.
+   */
+  public static Source open(File file, Charset charset) throws IOException
+  {
+    ByteBuffer bytes = SourceFileText.map(file);
+
+    return servable(bytes, charset)
+      ? new SourceFileBytes(file, bytes)
+      : new SourceFileText(file, bytes, charset);
+  }
+
+  /*****************************************************************************
+   * Indicates if $bytes can be served one character per byte: they must hold
+   * no unicode escape (no backslash followed by 'u'), and must be in
+   * ISO-8859-1, or be ASCII in a charset that extends ASCII.
+   */
+  static boolean servable(ByteBuffer bytes, Charset charset)
+  {
+    boolean latin1 = charset.equals(StandardCharsets.ISO_8859_1);
+
+    if (!latin1 && !extendsAscii(charset)) {
+      return false;
+    }
+
+    int end = bytes.limit();
+    boolean backslash = false;
+
+    for (int i = 0 ; i < end ; ++i)
+    {
+      byte b = bytes.get(i);
+
+      if (b < 0 && !latin1 || backslash && b == 'u') {
+        return false;
+      }
+
+      backslash = b == '\\';
+    }
+
+    return true;
+  }
+
+  /*****************************************************************************
+   * Indicates if the ASCII characters are encoded as single ASCII bytes in
+   * $charset, as in most single-byte charsets and in UTF-8.
+   */
+  private static boolean extendsAscii(Charset charset)
+  {
+    String name = charset.name();
+
+    return name.equals("US-ASCII")
+      || name.equals("UTF-8")
+      || name.startsWith("ISO-8859-")
+      || name.startsWith("windows-125");
+  }
+
+  /****************************************************************************/
+  @Override public int end()
+  {
+    return bytes.limit();
+  }
+
+  /****************************************************************************/
+  @Override public char at(int p)
+  {
+    return (char) (bytes.get(p) & 0xFF);
+  }
+
+  /****************************************************************************/
+  @Override public String at(int p, int q)
+  {
+    if (p < 0 || q > end() || p > q) {
+      throw new StringIndexOutOfBoundsException(
+        "begin " + p + ", end " + q + ", length " + end());
+    }
+
+    if (bytes.hasArray()) {
+      return new String(bytes.array(), bytes.arrayOffset() + p, q - p,
+        StandardCharsets.ISO_8859_1);
+    }
+
+    byte[] chars = new byte[q - p];
+    ByteBuffer view = bytes.duplicate();
+    view.position(p);
+    view.get(chars);
+    return new String(chars, StandardCharsets.ISO_8859_1);
+  }
+
+  /*****************************************************************************
+   * Describes position $p in terms of line and column number, as {@link
+   * SourceFileText#where(int)}.
+   */
+  @Override public String where(int p)
+  {
+    return lines().where(p);
+  }
+
+  /****************************************************************************/
+  @Override public int line(int p)
+  {
+    return lines().line(p);
+  }
+
+  /****************************************************************************/
+  @Override public int column(int p)
+  {
+    return lines().column(p);
+  }
+
+  /****************************************************************************/
+  private LineIndex lines()
+  {
+    LineIndex lines = this.lines;
+
+    if (lines == null) {
+      this.lines = lines = new LineIndex(this);
+    }
+
+    return lines;
+  }
+
+  /****************************************************************************/
+  public File file()
+  {
+    return file;
+  }
+
+  /****************************************************************************/
+  @Override public String toString()
+  {
+    return file.toString();
+  }
+}
@@ -31,6 +31,9 @@
 //   Version 1.3.1
 //    110113 In 'where()': changed condition for return from <= < to < <=.
 //           (Bug fix for endless loop if p = end of file.)
+//   caxap
+//    261019 In 'where()': look the position up in a line index.
+//    261019 Added constructor decoding an already mapped file.
 //
 //=========================================================================
 
@@ -67,6 +70,11 @@ public class SourceFileText implements Source
   //-------------------------------------------------------------------
   private final String text;
 
+  //-------------------------------------------------------------------
+  //  Line index, built when first needed.
+  //-------------------------------------------------------------------
+  private volatile LineIndex lines;
+
   //=====================================================================
   //
   //  Constructor. Wraps the file identified by 'fileName'.
@@ -102,22 +110,41 @@ public class SourceFileText implements Source
   public SourceFileText(File f, Charset cs)
   throws IOException
   {
-    this.f = f;
+    this(f, map(f), cs);
+  }
 
-    FileInputStream fis = new FileInputStream(f);
-    FileChannel fc = fis.getChannel();
+  //=====================================================================
+  //
+  //  Constructor. Wraps the file 'f', whose content was already
+  //  mapped to 'bb' (see SourceFileBytes.open).
+  //
+  //=====================================================================
+  SourceFileText(File f, ByteBuffer bb, Charset cs)
+  throws IOException
+  {
+    this.f = f;
 
     // Get a CharBuffer from the source file
-    ByteBuffer bb =
-        fc.map(FileChannel.MapMode.READ_ONLY, 0, (int)fc.size());
     CharsetDecoder cd = cs.newDecoder();
-    CharBuffer cb = cd.decode(bb);
-    fis.close();
+    CharBuffer cb = cd.decode(bb.duplicate());
 
     // Convert to String and unescape Unicode (\\uXXXX)
     text = unescaper.translate(cb);
   }
 
+  //-------------------------------------------------------------------
+  //  Maps the file 'f' to memory.
+  //-------------------------------------------------------------------
+  static ByteBuffer map(File f)
+  throws IOException
+  {
+    try (FileInputStream fis = new FileInputStream(f))
+    {
+      FileChannel fc = fis.getChannel();
+      return fc.map(FileChannel.MapMode.READ_ONLY, 0, (int)fc.size());
+    }
+  }
+
   //=====================================================================
   //
   //  Interface methods.
@@ -147,20 +174,25 @@ public class SourceFileText implements Source
   //  Lines and columns are numbered starting with 1.
   //-------------------------------------------------------------------
   public String where(int p)
+    { return lines().where(p); }
+
+  //-------------------------------------------------------------------
+  //  Returns line and column numbers of position p.
+  //-------------------------------------------------------------------
+  public int line(int p)
+    { return lines().line(p); }
+
+  public int column(int p)
+    { return lines().column(p); }
+
+  //-------------------------------------------------------------------
+  //  Returns the line index, building it if needed.
+  //-------------------------------------------------------------------
+  private LineIndex lines()
     {
-      int ln = 1;   // Line number
-      int ls = -1;  // Line start (position of preceding newline)
-      int nextnl;   // Position of next newline or end
-
-      while (true)
-      {
-        nextnl = text.indexOf('\n',ls+1);
-        if (nextnl<0) nextnl = text.length();
-        if (ls<p && p<=nextnl)
-          return ("line " + ln + " col. " + (p-ls));
-        ls = nextnl;
-        ln++;
-      }
+      LineIndex lines = this.lines;
+      if (lines == null) this.lines = lines = new LineIndex(this);
+      return lines;
     }
 
   //=====================================================================
@@ -23,6 +23,11 @@
 //    090810 Renamed from 'SourceString' and package name changed.
 //   Version 1.2
 //    091105 Modified where() to insert three dots.
+//   caxap
+//    261019 Added 'line' and 'column', using a line index.
+//    261019 Unicode escapes are read through UnicodeEscapes instead of
+//           being translated in the constructor.
+//    261019 Added 'raw', which doesn't translate unicode escapes.
 //
 //=========================================================================
 
@@ -48,13 +53,47 @@ public class SourceString implements Source
   //-------------------------------------------------------------------
   final String text;
 
+  //-------------------------------------------------------------------
+  //  The unicode escapes of the string, or null if it has none.
+  //  The source is the unescaped string.
+  //-------------------------------------------------------------------
+  private final UnicodeEscapes escapes;
+
+  //-------------------------------------------------------------------
+  //  Hash of the unescaped string, computed by toString() if needed.
+  //-------------------------------------------------------------------
+  private int hash;
+
+  //-------------------------------------------------------------------
+  //  Line index, built when first needed.
+  //-------------------------------------------------------------------
+  private volatile LineIndex lines;
+
   //=====================================================================
   //
   //  Constructor. Wraps the string 's'.
   //
   //=====================================================================
   public SourceString(String s)
-    { text = unescaper.translate(s); }
+    {
+      text = s;
+      escapes = UnicodeEscapes.of(s);
+    }
+
+  //=====================================================================
+  //
+  //  Wraps the string 's' as is, without translating unicode escapes
+  //  (for text that was already unescaped).
+  //
+  //=====================================================================
+  public static SourceString raw(String s)
+    { return new SourceString(s, null); }
+
+  private SourceString(String s, UnicodeEscapes escapes)
+    {
+      text = s;
+      this.escapes = escapes;
+    }
 
   //=====================================================================
   //
@@ -71,19 +110,19 @@ public class SourceString implements Source
   //  Returns end position.
   //-------------------------------------------------------------------
   public int end()
-    { return text.length(); }
+    { return escapes == null ? text.length() : escapes.length(); }
 
   //-------------------------------------------------------------------
   //  Returns character at position p.
   //-------------------------------------------------------------------
   public char at(int p)
-    { return text.charAt(p); }
+    { return escapes == null ? text.charAt(p) : escapes.at(p); }
 
   //-------------------------------------------------------------------
   //  Returns characters at positions p through q-1.
   //-------------------------------------------------------------------
   public String at(int p, int q)
-    { return text.substring(p,q); }
+    { return escapes == null ? text.substring(p,q) : escapes.at(p,q); }
 
   //-------------------------------------------------------------------
   //  Describes position p in terms of preceding text.
@@ -91,16 +130,39 @@ public class SourceString implements Source
   public String where(int p)
     {
       if (p>15)
-        return "After '... " + text.substring(p-15,p) + "'";
+        return "After '... " + at(p-15,p) + "'";
       else if (p>0)
-        return "After '" + text.substring(0,p) + "'";
+        return "After '" + at(0,p) + "'";
       else
         return "At start";
     }
 
+  //-------------------------------------------------------------------
+  //  Returns line and column numbers of position p.
+  //-------------------------------------------------------------------
+  public int line(int p)
+    { return lines().line(p); }
+
+  public int column(int p)
+    { return lines().column(p); }
+
+  //-------------------------------------------------------------------
+  //  Returns the line index, building it if needed.
+  //-------------------------------------------------------------------
+  private LineIndex lines()
+    {
+      LineIndex lines = this.lines;
+      if (lines == null) this.lines = lines = new LineIndex(this);
+      return lines;
+    }
+
   /****************************************************************************/
   @Override public String toString()
   {
-    return "Source string (" + Integer.toHexString(text.hashCode()) + ")";
+    if (hash == 0) {
+      hash = escapes == null ? text.hashCode() : at(0, end()).hashCode();
+    }
+
+    return "Source string (" + Integer.toHexString(hash) + ")";
   }
 }
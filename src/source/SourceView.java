@@ -0,0 +1,124 @@
+package source;
+
+/**
+ * A view of the characters of a source between two positions, as a
+ * CharSequence. The characters are not copied: they are read from the source
+ * on demand. {@link #toString()} copies them.
+ *
+ * The comparison methods don't allocate. Like {@link StringBuilder}, views
+ * don't override {@link Object#equals}: use {@link #contentEquals} instead.
+ */
+public final class SourceView implements CharSequence
+{
+  /****************************************************************************/
+  public final Source source;
+
+  /****************************************************************************/
+  public final int begin, end;
+
+  /****************************************************************************/
+  public SourceView(Source source, int begin, int end)
+  {
+    if (begin < 0 || end > source.end() || begin > end) {
+      throw new StringIndexOutOfBoundsException(
+        "begin " + begin + ", end " + end + ", length " + source.end());
+    }
+
+    this.source = source;
+    this.begin = begin;
+    this.end = end;
+  }
+
+  /****************************************************************************/
+  @Override public int length()
+  {
+    return end - begin;
+  }
+
+  /****************************************************************************/
+  @Override public char charAt(int index)
+  {
+    if (index < 0 || index >= end - begin) {
+      throw new StringIndexOutOfBoundsException(index);
+    }
+
+    return source.at(begin + index);
+  }
+
+  /****************************************************************************/
+  @Override public SourceView subSequence(int start, int end)
+  {
+    if (start < 0 || end > length() || start > end) {
+      throw new StringIndexOutOfBoundsException(
+        "begin " + start + ", end " + end + ", length " + length());
+    }
+
+    return new SourceView(source, begin + start, begin + end);
+  }
+
+  /*****************************************************************************
+   * Returns a view without the leading and trailing characters that {@link
+   * String#trim()} would remove.
+   */
+  public SourceView trim()
+  {
+    int b = begin, e = end;
+
+    while (b < e && source.at(b) <= ' ') { ++b; }
+    while (e > b && source.at(e - 1) <= ' ') { --e; }
+
+    return b == begin && e == end ? this : new SourceView(source, b, e);
+  }
+
+  /*****************************************************************************
+   * Indicates if the view holds the same characters as $cs.
+   */
+  public boolean contentEquals(CharSequence cs)
+  {
+    return cs.length() == length() && regionMatches(0, cs);
+  }
+
+  /****************************************************************************/
+  public boolean startsWith(CharSequence prefix)
+  {
+    return prefix.length() <= length() && regionMatches(0, prefix);
+  }
+
+  /****************************************************************************/
+  public boolean endsWith(CharSequence suffix)
+  {
+    return suffix.length() <= length()
+      && regionMatches(length() - suffix.length(), suffix);
+  }
+
+  /*****************************************************************************
+   * Indicates if the characters of the view starting at index $offset are
+   * those of $cs, which must fit in the view.
+   */
+  private boolean regionMatches(int offset, CharSequence cs)
+  {
+    for (int i = 0 ; i < cs.length() ; ++i) {
+      if (source.at(begin + offset + i) != cs.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /*****************************************************************************
+   * Appends the characters of the view to $builder, and returns $builder.
+   * Prefer this to {@link StringBuilder#append(CharSequence)}, which reads the
+   * characters one at a time.
+   */
+  public StringBuilder appendTo(StringBuilder builder)
+  {
+    return builder.append(source.at(begin, end));
+  }
+
+  /****************************************************************************/
+  @Override public String toString()
+  {
+    return source.at(begin, end);
+  }
+}
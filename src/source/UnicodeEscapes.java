@@ -0,0 +1,208 @@
+package source;
+
+import java.util.Arrays;
+
+/**
+ * The unicode escapes (\\uXXXX) of a string, which allow reading the string as
+ * if it had been unescaped by {@link util.apache.UnicodeUnescaper}, without
+ * building the unescaped string.
+ *
+ * Positions in the unescaped text are mapped to positions in the string by a
+ * binary search over the escapes. Between two escapes, the characters are those
+ * of the string.
+ */
+final class UnicodeEscapes
+{
+  /****************************************************************************/
+  private final String raw;
+
+  /****************************************************************************/
+  private int count;
+
+  /*****************************************************************************
+   * For each escape, its begin and end positions in the unescaped text (the
+   * end is the begin, or the begin plus one: invalid escapes are dropped),
+   * and its end position in the string.
+   */
+  private int[] begins = new int[8], ends = new int[8], rawEnds = new int[8];
+
+  /*****************************************************************************
+   * For each escape, the character it stands for.
+   */
+  private char[] chars = new char[8];
+
+  /****************************************************************************/
+  private final int length;
+
+  /****************************************************************************/
+  private UnicodeEscapes(String raw)
+  {
+    this.raw = raw;
+
+    int n = raw.length();
+    int removed = 0;
+    int i = raw.indexOf('\\');
+
+    while (i >= 0 && i + 1 < n)
+    {
+      char next = raw.charAt(i + 1);
+
+      if (next == '\\') {
+        // Escaped backslashes are kept, and don't start an escape.
+        i = raw.indexOf('\\', i + 2);
+        continue;
+      }
+
+      if (next != 'u') {
+        i = raw.indexOf('\\', i + 1);
+        continue;
+      }
+
+      // Same rules as UnicodeUnescaper: \\u+ followed by an optional '+' and
+      // four hex digits (without which the escape is dropped).
+
+      int j = i + 2;
+      while (j < n && raw.charAt(j) == 'u') { ++j; }
+      if (j < n && raw.charAt(j) == '+') { ++j; }
+
+      if (j + 4 > n) {
+        throw new IllegalArgumentException(
+          "Less than 4 hex digits in unicode value: '" + raw.substring(i)
+          + "' due to end of CharSequence");
+      }
+
+      add(i - removed, raw.substring(j, j + 4), j + 4);
+      removed = j + 4 - ends[count - 1];
+      i = raw.indexOf('\\', j + 4);
+    }
+
+    this.length = n - removed;
+  }
+
+  /*****************************************************************************
+   * Returns the escapes of $raw, or null if it has none.
+   */
+  static UnicodeEscapes of(String raw)
+  {
+    // Fast path: most strings have no escape.
+    if (raw.indexOf("\\u") < 0) {
+      return null;
+    }
+
+    UnicodeEscapes escapes = new UnicodeEscapes(raw);
+    return escapes.count == 0 ? null : escapes;
+  }
+
+  /*****************************************************************************
+   * Records the escape of $hex, beginning at $begin in the unescaped text and
+   * ending at $rawEnd in the string.
+   */
+  private void add(int begin, String hex, int rawEnd)
+  {
+    if (count == begins.length)
+    {
+      begins  = Arrays.copyOf(begins,  count * 2);
+      ends    = Arrays.copyOf(ends,    count * 2);
+      rawEnds = Arrays.copyOf(rawEnds, count * 2);
+      chars   = Arrays.copyOf(chars,   count * 2);
+    }
+
+    begins[count]  = begin;
+    ends[count]    = begin;
+    rawEnds[count] = rawEnd;
+
+    try {
+      chars[count] = (char) Integer.parseInt(hex, 16);
+      ends[count]  = begin + 1;
+    }
+    catch (NumberFormatException e) {
+      // As UnicodeUnescaper, drop invalid escapes.
+    }
+
+    ++count;
+  }
+
+  /*****************************************************************************
+   * Length of the unescaped text.
+   */
+  int length()
+  {
+    return length;
+  }
+
+  /****************************************************************************/
+  char at(int p)
+  {
+    if (p < 0 || p >= length) {
+      throw new StringIndexOutOfBoundsException(p);
+    }
+
+    int c = before(p);
+
+    return c < count && begins[c] <= p
+      ? chars[c]
+      : raw.charAt(rawIndex(p, c));
+  }
+
+  /****************************************************************************/
+  String at(int p, int q)
+  {
+    if (p < 0 || q > length || p > q) {
+      throw new StringIndexOutOfBoundsException(
+        "begin " + p + ", end " + q + ", length " + length);
+    }
+
+    StringBuilder builder = new StringBuilder(q - p);
+    int c = before(p);
+
+    while (p < q)
+    {
+      while (c < count && ends[c] <= p) { ++c; }
+
+      if (c < count && begins[c] <= p) {
+        builder.append(chars[c++]);
+        ++p;
+        continue;
+      }
+
+      int stop = c < count ? Math.min(q, begins[c]) : q;
+      int index = rawIndex(p, c);
+      builder.append(raw, index, index + stop - p);
+      p = stop;
+    }
+
+    return builder.toString();
+  }
+
+  /*****************************************************************************
+   * Returns the number of escapes that end at or before $p in the unescaped
+   * text.
+   */
+  private int before(int p)
+  {
+    int lo = 0, hi = count;
+
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+
+      if (ends[mid] <= p) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /*****************************************************************************
+   * Returns the position in the string of position $p of the unescaped text,
+   * which must not be that of an escape, and must follow the first $c escapes.
+   */
+  private int rawIndex(int p, int c)
+  {
+    return c == 0 ? p : rawEnds[c - 1] + p - ends[c - 1];
+  }
+}
@@ -0,0 +1,298 @@
+package trees;
+
+import java.util.Arrays;
+import java.util.List;
+
+import parser.Match;
+
+/**
+ * A position in a match tree. The cursor can be moved explicitly (to the
+ * parent, the first child or the next sibling of the current match), or along
+ * a depth-first prefix walk of the tree (see {@link #next()}). Children are
+ * visited from left to right or from right to left; "first" and "next" are
+ * relative to that order.
+ *
+ * The position is kept as a trace: the path of matches from the root of the
+ * tree to the current match, and the index of each of those matches amongst
+ * the children of its parent. The trace is held in arrays that grow with the
+ * depth of the tree but are otherwise reused, so moving the cursor doesn't
+ * allocate. A cursor can be reused for another walk (see {@link #reset}).
+ */
+public class MatchCursor
+{
+  /*****************************************************************************
+   * The matches from the root to the current match.
+   */
+  private Match[] trace = new Match[16];
+
+  /*****************************************************************************
+   * The index of each match of $trace in the children of the previous one.
+   */
+  private int[] indices = new int[16];
+
+  /****************************************************************************/
+  private int depth;
+
+  /****************************************************************************/
+  private boolean leftToRight;
+
+  /*****************************************************************************
+   * Indicates that the walk started: the root was returned by {@link #next()},
+   * or the cursor was moved explicitly.
+   */
+  private boolean started;
+
+  /*****************************************************************************
+   * Indicates that the walk is over.
+   */
+  private boolean done;
+
+  /*****************************************************************************
+   * Indicates that the children of the current match must be skipped by the
+   * walk.
+   */
+  private boolean skip;
+
+  /****************************************************************************/
+  public MatchCursor()
+  {
+  }
+
+  /****************************************************************************/
+  public MatchCursor(Match root, boolean leftToRight)
+  {
+    reset(root, leftToRight);
+  }
+
+  /*****************************************************************************
+   * Positions the cursor on $root, before the start of a walk of its tree.
+   */
+  public MatchCursor reset(Match root, boolean leftToRight)
+  {
+    clear();
+    this.trace[0]    = root;
+    this.leftToRight = leftToRight;
+    return this;
+  }
+
+  /*****************************************************************************
+   * Forgets the tree, so that it can be collected while the cursor is kept for
+   * later use.
+   */
+  public void clear()
+  {
+    Arrays.fill(trace, 0, depth + 1, null);
+    depth   = 0;
+    started = false;
+    done    = false;
+    skip    = false;
+  }
+
+  /*****************************************************************************
+   * Makes this cursor a copy of $other.
+   */
+  public void copy(MatchCursor other)
+  {
+    clear();
+
+    if (trace.length < other.trace.length) {
+      trace   = new Match[other.trace.length];
+      indices = new int[other.trace.length];
+    }
+
+    System.arraycopy(other.trace,   0, trace,   0, other.depth + 1);
+    System.arraycopy(other.indices, 0, indices, 0, other.depth + 1);
+
+    depth       = other.depth;
+    leftToRight = other.leftToRight;
+    started     = other.started;
+    done        = other.done;
+    skip        = other.skip;
+  }
+
+  /****************************************************************************/
+  public boolean leftToRight()
+  {
+    return leftToRight;
+  }
+
+  /****************************************************************************/
+  public Match match()
+  {
+    return trace[depth];
+  }
+
+  /*****************************************************************************
+   * Depth of the current match (the root has depth 0).
+   */
+  public int depth()
+  {
+    return depth;
+  }
+
+  /*****************************************************************************
+   * Returns the match at depth $depth on the path from the root to the current
+   * match.
+   */
+  public Match ancestor(int depth)
+  {
+    if (depth < 0 || depth > this.depth) {
+      throw new IndexOutOfBoundsException("depth " + depth);
+    }
+
+    return trace[depth];
+  }
+
+  /*****************************************************************************
+   * Returns the index of the match at depth $depth on the path from the root to
+   * the current match, amongst the children of its parent.
+   */
+  public int index(int depth)
+  {
+    if (depth < 1 || depth > this.depth) {
+      throw new IndexOutOfBoundsException("depth " + depth);
+    }
+
+    return indices[depth];
+  }
+
+  /*****************************************************************************
+   * Moves to the parent of the current match, if any. Returns false if the
+   * cursor is on the root.
+   */
+  public boolean parent()
+  {
+    started = true;
+
+    if (depth == 0) {
+      return false;
+    }
+
+    trace[depth--] = null;
+    skip = false;
+    return true;
+  }
+
+  /*****************************************************************************
+   * Moves to the first child of the current match, if any. Returns false if
+   * the match has no children.
+   */
+  public boolean firstChild()
+  {
+    started = true;
+    List<Match> children = trace[depth].children();
+
+    if (children.isEmpty()) {
+      return false;
+    }
+
+    if (depth + 1 == trace.length) {
+      trace   = Arrays.copyOf(trace,   trace.length   * 2);
+      indices = Arrays.copyOf(indices, indices.length * 2);
+    }
+
+    int index = leftToRight ? 0 : children.size() - 1;
+
+    ++depth;
+    trace[depth]   = children.get(index);
+    indices[depth] = index;
+    skip = false;
+    return true;
+  }
+
+  /*****************************************************************************
+   * Moves to the next sibling of the current match, if any. Returns false if
+   * the match is the last child of its parent, or the root.
+   */
+  public boolean nextSibling()
+  {
+    started = true;
+
+    if (depth == 0) {
+      return false;
+    }
+
+    List<Match> siblings = trace[depth - 1].children();
+    int index = indices[depth] + (leftToRight ? 1 : -1);
+
+    if (index < 0 || index >= siblings.size()) {
+      return false;
+    }
+
+    trace[depth]   = siblings.get(index);
+    indices[depth] = index;
+    skip = false;
+    return true;
+  }
+
+  /*****************************************************************************
+   * Moves to the next match of the prefix walk. The first call returns the
+   * root. Returns false (and leaves the cursor on the root) when the walk is
+   * over.
+   */
+  public boolean next()
+  {
+    if (!started) {
+      started = true;
+      return true;
+    }
+
+    if (done) {
+      return false;
+    }
+
+    if (!skip && firstChild()) {
+      return true;
+    }
+
+    while (!nextSibling())
+    {
+      if (!parent()) {
+        done = true;
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /*****************************************************************************
+   * Indicates if a call to {@link #next()} would succeed.
+   */
+  public boolean hasNext()
+  {
+    if (!started) {
+      return true;
+    }
+
+    if (done) {
+      return false;
+    }
+
+    if (!skip && !trace[depth].children().isEmpty()) {
+      return true;
+    }
+
+    for (int d = depth ; d > 0 ; --d)
+    {
+      int next = indices[d] + (leftToRight ? 1 : -1);
+
+      if (next >= 0 && next < trace[d - 1].children().size()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /*****************************************************************************
+   * Ensures that the descendants of the current match will be skipped by the
+   * walk. Does nothing if the walk hasn't started.
+   */
+  public void skipChilds()
+  {
+    if (started) {
+      skip = true;
+    }
+  }
+}
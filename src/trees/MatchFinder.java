@@ -1,17 +1,19 @@
 package trees;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 import parser.Match;
-import util.ArrayIterator;
 
 import static util.ArrayUtils.arr;
 
 /**
  * The class implements the ability to find sub-match(es) of a match matching
  * certain criteria.
+ *
+ * The tree is walked with cursors (see {@link MatchCursor}), which are reused
+ * across calls, so that finding doesn't allocate besides the results.
  */
 public class MatchFinder
 {
@@ -46,56 +48,463 @@ public class MatchFinder
     final MatchSpec[] after,
     boolean inclusive)
   {
-    List<Match> left = trace(root, before, true, !inclusive);
-    if (left == null) { return Match.EMPTY; }
+    MatchCursor left    = acquire();
+    MatchCursor right   = acquire();
+    MatchCursor walk    = acquire();
+    MatchCursor scratch = acquire();
 
-    List<Match> right = trace(root, after, false, !inclusive);
-    if (right == null) { return Match.EMPTY; }
+    try {
+      if (inclusive)
+      {
+        return between(root, spec, finder,
+          finder.leftToRight ? before : after,
+          finder.leftToRight ? after : before,
+          walk, right, scratch);
+      }
+
+      Match[] matches = outside(root, spec, finder,
+        finder.leftToRight ? before : after,
+        finder.leftToRight ? after : before,
+        walk, left, right);
+
+      if (matches != null) {
+        return matches;
+      }
+
+      int leftLength = trace(root, before, true, !inclusive, left, scratch);
+      if (leftLength < 0) { return Match.EMPTY; }
+
+      int rightLength = trace(root, after, false, !inclusive, right, scratch);
+      if (rightLength < 0) { return Match.EMPTY; }
 
-    BoundedMatchIterator iter = new BoundedMatchIterator(
-      root, left, right, finder.leftToRight, inclusive);
+      walk.reset(root, finder.leftToRight);
 
-    return finder.find(spec, iter);
+      return finder.leftToRight
+        ? finder.find(spec, walk, left, leftLength, right, rightLength,
+            inclusive)
+        : finder.find(spec, walk, right, rightLength, left, leftLength,
+            inclusive);
+    }
+    finally {
+      release(scratch);
+      release(walk);
+      release(right);
+      release(left);
+    }
   }
 
   /*****************************************************************************
-   * Returns a trace (see {@link MatchIterator#trace()}) from $root to the
-   * Match matching the last specification (see below) from $Lspecs. Returns an
-   * empty trace if $Lspecs is empty. If not all specifications in $Lspecs can
-   * be satisfied, returns null instead.
+   * Implements {@link #find} when $inclusive is false, in one walk of each end
+   * of the tree.
+   *
+   * The specifications met first in the order of $finder ($near) are resolved
+   * by a walk in that order, and the others ($far) by a walk in the other
+   * order, as {@link #trace} would. Each walk gathers the matches of $spec it
+   * meets before the bound it positions ($nearBound or $farBound), as the
+   * matches outside the bounds are those met before them by one walk or the
+   * other. As a walk doesn't know the bound in advance, it doesn't skip the
+   * descendants of these matches: the matches that turn out to be ancestors of
+   * the bound are dropped, and the others hide their descendants (see {@link
+   * Candidates}).
    *
-   * If $firstSpec is true, returns the trace for the element matching the first
-   * specification; else use the last specification instead. "first" and "last" are
-   * relative to the order indicated by $leftToRight.
+   * Returns null if both bounds exist, but the far bound doesn't come after the
+   * near bound and its descendants. The walks of {@link Finder#find} define the
+   * result of such queries.
    */
-  private static List<Match> trace(Match root, MatchSpec[] Lspecs,
-    boolean leftToRight, boolean firstSpec)
+  private static Match[] outside(Match root, MatchSpec spec, Finder finder,
+    MatchSpec[] near, MatchSpec[] far, MatchCursor walk,
+    MatchCursor nearBound, MatchCursor farBound)
   {
-    ArrayIterator<MatchSpec> specs = new ArrayIterator<>(Lspecs, !leftToRight);
-    MatchIterator iter = new MatchIterator(root, leftToRight);
+    boolean leftToRight = finder.leftToRight;
 
-    if (!specs.hasNext()) {
-      return Collections.emptyList();
+    Candidates nearMatches = new Candidates();
+    int nearLength = gather(root, spec, near, leftToRight, walk, nearBound,
+      nearMatches);
+
+    if (nearLength < 0) {
+      return Match.EMPTY;
     }
 
-    List<Match> trace = null;
-    specs.forward();
+    Candidates farMatches = new Candidates();
+    int farLength = gather(root, spec, far, !leftToRight, walk, farBound,
+      farMatches);
+
+    if (farLength < 0) {
+      return Match.EMPTY;
+    }
 
-    while (iter.hasNext() && !specs.pastEdge())
+    if (nearLength > 0 && farLength > 0)
     {
-      if (specs.current().matches(iter.next()))
+      int common = commonLength(nearBound, farBound);
+
+      if (common == nearLength || common == farLength
+      ||  !precedes(nearBound, farBound, common)) {
+        return null;
+      }
+    }
+
+    List<Match> matches = new ArrayList<>();
+    nearMatches.addTo(matches, false);
+
+    // Without far bound, the matches after the near bound are between.
+    if (farLength > 0) {
+      farMatches.addTo(matches, true);
+    }
+
+    if (matches.isEmpty()) {
+      return Match.EMPTY;
+    }
+
+    return finder == Finder.ALL
+      ? matches.toArray(Match.EMPTY)
+      : arr(matches.get(0));
+  }
+
+  /*****************************************************************************
+   * Like {@link #trace} with $firstSpec set, but positions $bound on the match
+   * of the first specification met, and walks the tree with $walk. Also adds
+   * the matches of $spec met before $bound to $candidates.
+   */
+  private static int gather(Match root, MatchSpec spec, MatchSpec[] specs,
+    boolean leftToRight, MatchCursor walk, MatchCursor bound,
+    Candidates candidates)
+  {
+    if (specs.length == 0) {
+      return 0;
+    }
+
+    int index = leftToRight ? 0 : specs.length - 1;
+    int step  = leftToRight ? 1 : -1;
+    int remaining = specs.length;
+    boolean found = false;
+
+    walk.reset(root, leftToRight);
+
+    while (remaining > 0 && walk.next())
+    {
+      Match match = walk.match();
+
+      if (!found) {
+        candidates.visit(walk.depth());
+      }
+
+      if (specs[index].matches(match))
       {
-        if (firstSpec && trace == null) {
-          trace = iter.trace();
+        if (!found) {
+          bound.copy(walk);
+          candidates.bound();
+          found = true;
         }
 
-        specs.forward();
+        index += step;
+        --remaining;
+      }
+      else if (!found && spec.matches(match)) {
+        candidates.add(match, walk.depth());
       }
     }
 
-    return specs.pastEdge()
-      ? trace != null ? trace : iter.trace()
-      : null;
+    return remaining > 0 ? -1 : bound.depth() + 1;
+  }
+
+  /*****************************************************************************
+   * The matches of a specification met by a walk before it reaches a bound, in
+   * the order of the walk. A candidate hides the candidates amongst its
+   * descendants, unless it is an ancestor of the bound: then it is dropped, and
+   * the candidates it hid are not.
+   *
+   * The candidates form a forest, where each candidate refers to its nearest
+   * ancestor amongst the candidates. The candidates whose descendants the walk
+   * is still visiting are said to be open. When the bound is reached, the open
+   * candidates are exactly its ancestors.
+   */
+  private static class Candidates
+  {
+    /** The candidates; null for the ancestors of the bound. */
+    final List<Match> matches = new ArrayList<>();
+
+    /** The index of the parent of each candidate, or -1. */
+    int[] parents = new int[8];
+
+    /** The depth of each candidate. */
+    int[] depths = new int[8];
+
+    /** The index of the innermost open candidate, or -1. */
+    int open = -1;
+
+    /***************************************************************************
+     * Closes the candidates whose descendants don't include the next match of
+     * the walk, at depth $depth.
+     */
+    void visit(int depth)
+    {
+      while (open >= 0 && depths[open] >= depth) {
+        open = parents[open];
+      }
+    }
+
+    /***************************************************************************
+     * Adds $match, at depth $depth, as the innermost open candidate.
+     */
+    void add(Match match, int depth)
+    {
+      int i = matches.size();
+
+      if (i == parents.length) {
+        parents = Arrays.copyOf(parents, 2 * i);
+        depths  = Arrays.copyOf(depths,  2 * i);
+      }
+
+      matches.add(match);
+      parents[i] = open;
+      depths[i] = depth;
+      open = i;
+    }
+
+    /***************************************************************************
+     * Drops the open candidates, which are the ancestors of the bound.
+     */
+    void bound()
+    {
+      for (int i = open ; i >= 0 ; i = parents[i]) {
+        matches.set(i, null);
+      }
+
+      open = -1;
+    }
+
+    /***************************************************************************
+     * Adds the candidates that are hidden by no other to $out, in the order of
+     * the walk, or in the reverse order if $reverse is true.
+     */
+    void addTo(List<Match> out, boolean reverse)
+    {
+      int size = matches.size();
+
+      for (int k = 0 ; k < size ; ++k)
+      {
+        int i = reverse ? size - 1 - k : k;
+        Match match = matches.get(i);
+        int parent = parents[i];
+
+        if (match != null && (parent < 0 || matches.get(parent) == null)) {
+          out.add(match);
+        }
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * Implements {@link #find} when $inclusive is true, in a single walk of the
+   * tree in the order of $finder.
+   *
+   * The specifications met first in that order ($near) are resolved during
+   * the walk, which is where they would be resolved by a walk of their own.
+   * The other specifications ($far) are resolved by a walk from the other end
+   * of the tree (positioning $far), but only once the main walk meets a
+   * match of $spec past the near bound. The main walk stops when it reaches the
+   * far bound, so the two walks don't overlap, except for the ancestors of
+   * the far bound. FIRST and LAST stop at the first match.
+   */
+  private static Match[] between(Match root, MatchSpec spec, Finder finder,
+    MatchSpec[] near, MatchSpec[] far, MatchCursor walk, MatchCursor bound,
+    MatchCursor scratch)
+  {
+    boolean leftToRight = finder.leftToRight;
+    int index = leftToRight ? 0 : near.length - 1;
+    int step  = leftToRight ? 1 : -1;
+    int remaining = near.length;
+
+    // Length of the trace of the far bound, or -1 if not resolved.
+    int boundLength = far.length == 0 ? 0 : -1;
+
+    // Number of matches of the trace of the far bound met by the walk.
+    int met = 0;
+
+    List<Match> matches = null;
+    walk.reset(root, leftToRight);
+
+    while (walk.next())
+    {
+      Match match = walk.match();
+
+      if (remaining > 0)
+      {
+        if (near[index].matches(match))
+        {
+          index += step;
+
+          if (--remaining == 0) {
+            walk.skipChilds();
+          }
+        }
+
+        continue;
+      }
+
+      if (boundLength < 0)
+      {
+        if (!spec.matches(match)) {
+          continue;
+        }
+
+        boundLength = trace(root, far, !leftToRight, false, bound, scratch);
+
+        if (boundLength < 0) {
+          return Match.EMPTY;
+        }
+
+        met = commonLength(walk, bound);
+
+        if (met == boundLength || !precedes(walk, bound, met)) {
+          break; // past the bound
+        }
+        else if (met == walk.depth() + 1) {
+          continue; // on the trace of the bound
+        }
+      }
+      else if (met < boundLength)
+      {
+        if (match == bound.ancestor(met))
+        {
+          if (++met == boundLength) {
+            break;
+          }
+
+          continue;
+        }
+
+        if (!spec.matches(match)) {
+          continue;
+        }
+      }
+      else if (!spec.matches(match)) {
+        continue;
+      }
+
+      if (finder != Finder.ALL) {
+        return arr(match);
+      }
+
+      matches = matches != null ? matches : new ArrayList<Match>();
+      matches.add(match);
+      walk.skipChilds();
+    }
+
+    return matches == null
+      ? Match.EMPTY
+      : matches.toArray(Match.EMPTY);
+  }
+
+  /*****************************************************************************
+   * Returns the length of the common part of the traces of $a and $b.
+   */
+  private static int commonLength(MatchCursor a, MatchCursor b)
+  {
+    int max = Math.min(a.depth(), b.depth()) + 1;
+    int length = 0;
+
+    while (length < max && a.ancestor(length) == b.ancestor(length)) {
+      ++length;
+    }
+
+    return length;
+  }
+
+  /*****************************************************************************
+   * Indicates whether the match of $a comes before that of $b in the order of
+   * $a (an ancestor comes first), given that their traces have a common part of
+   * length $common, and that the match of $b is not that of $a nor one of its
+   * ancestors.
+   */
+  private static boolean precedes(MatchCursor a, MatchCursor b, int common)
+  {
+    if (common == a.depth() + 1) {
+      return true; // $a is an ancestor of $b
+    }
+
+    return a.leftToRight()
+      ? a.index(common) < b.index(common)
+      : a.index(common) > b.index(common);
+  }
+
+  /*****************************************************************************
+   * Positions $cursor on the Match matching the last specification (see below)
+   * from $specs, and returns the length of its trace (see {@link
+   * MatchCursor}). Returns 0 if $specs is empty. If not all specifications in
+   * $specs can be satisfied, returns -1 instead. $scratch is used to save a
+   * position.
+   *
+   * If $firstSpec is true, positions the cursor on the element matching the
+   * first specification; else use the last specification instead. "first" and
+   * "last" are relative to the order indicated by $leftToRight.
+   */
+  private static int trace(Match root, MatchSpec[] specs,
+    boolean leftToRight, boolean firstSpec, MatchCursor cursor,
+    MatchCursor scratch)
+  {
+    if (specs.length == 0) {
+      return 0;
+    }
+
+    int index = leftToRight ? 0 : specs.length - 1;
+    int step  = leftToRight ? 1 : -1;
+    int remaining = specs.length;
+    boolean saved = false;
+
+    cursor.reset(root, leftToRight);
+
+    while (remaining > 0 && cursor.next())
+    {
+      if (specs[index].matches(cursor.match()))
+      {
+        if (firstSpec && !saved) {
+          scratch.copy(cursor);
+          saved = true;
+        }
+
+        index += step;
+        --remaining;
+      }
+    }
+
+    if (remaining > 0) {
+      return -1;
+    }
+
+    if (saved) {
+      cursor.copy(scratch);
+    }
+
+    return cursor.depth() + 1;
+  }
+
+  /*****************************************************************************
+   * Cursors kept for reuse by the current thread. Finders can be called
+   * recursively (from a specification), so there may be more than a few.
+   */
+  private static final ThreadLocal<List<MatchCursor>> cursors =
+    new ThreadLocal<List<MatchCursor>>() {
+      @Override protected List<MatchCursor> initialValue() {
+        return new ArrayList<>();
+      }
+    };
+
+  /****************************************************************************/
+  private static MatchCursor acquire()
+  {
+    List<MatchCursor> list = cursors.get();
+
+    return list.isEmpty()
+      ? new MatchCursor()
+      : list.remove(list.size() - 1);
+  }
+
+  /****************************************************************************/
+  private static void release(MatchCursor cursor)
+  {
+    cursor.clear();
+    cursors.get().add(cursor);
   }
 
   /****************************************************************************/
@@ -111,21 +520,7 @@ public class MatchFinder
     /**************************************************************************/
     LAST  (false),
     /**************************************************************************/
-    ALL   (true)
-    {
-      @Override Match[] find(MatchSpec spec, BoundedMatchIterator iter)
-      {
-        List<Match> matches = new ArrayList<>();
-        for (Match m : iter)
-        {
-          if (spec.matches(m)) {
-            matches.add(m);
-            iter.skipChilds();
-          }
-        }
-        return matches.toArray(Match.EMPTY);
-      }
-    };
+    ALL   (true);
 
     /**************************************************************************/
     final boolean leftToRight;
@@ -137,20 +532,84 @@ public class MatchFinder
     }
 
     /***************************************************************************
-     * Implements the FIRST or LAST, strategy, depending on the order of
-     * iteration; Finder#leftToRight should be used to select the correct
-     * ordering.
+     * Walks the tree with $walk, and gathers the matches of $spec situated
+     * between (if $inclusive) or outside (if not) the trace of length
+     * $firstLength held by $first and the trace of length $secondLength held by
+     * $second. $first is the trace met first in the order of the walk, which is
+     * that of Finder#leftToRight.
+     *
+     * The matches on the traces are never gathered. The descendants of the
+     * last match of a trace are skipped, as are the descendants of the gathered
+     * matches. FIRST and LAST stop at the first gathered match.
      */
-    Match[] find(MatchSpec spec, BoundedMatchIterator iter)
+    Match[] find(MatchSpec spec, MatchCursor walk,
+      MatchCursor first, int firstLength,
+      MatchCursor second, int secondLength,
+      boolean inclusive)
     {
-      for (Match m : iter)
+      List<Match> matches = null;
+      boolean secondOpen = secondLength == 0;
+      int i = 0, j = 0;
+
+      while (walk.next())
       {
-        if (spec.matches(m)) {
-          return arr(m);
+        Match match = walk.match();
+        boolean candidate;
+
+        if (i < firstLength)
+        {
+          if (match == first.ancestor(i))
+          {
+            ++i;
+
+            if (j < secondLength && match == second.ancestor(j)) {
+              ++j;
+            }
+
+            if (i == firstLength) {
+              walk.skipChilds();
+            }
+
+            continue;
+          }
+
+          candidate = !inclusive;
+        }
+        else if (j < secondLength)
+        {
+          if (match == second.ancestor(j))
+          {
+            if (++j == secondLength) {
+              walk.skipChilds();
+            }
+
+            continue;
+          }
+
+          candidate = inclusive;
+        }
+        else if (inclusive == secondOpen) {
+          candidate = true;
+        }
+        else {
+          break;
+        }
+
+        if (candidate && spec.matches(match))
+        {
+          if (this != ALL) {
+            return arr(match);
+          }
+
+          matches = matches != null ? matches : new ArrayList<Match>();
+          matches.add(match);
+          walk.skipChilds();
         }
       }
 
-      return Match.EMPTY;
+      return matches == null
+        ? Match.EMPTY
+        : matches.toArray(Match.EMPTY);
     }
   }
 }
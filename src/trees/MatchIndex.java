@@ -0,0 +1,269 @@
+package trees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import grammar.Expression.Rule;
+import parser.Match;
+import trees.MatchFinder.Finder;
+
+/**
+ * An index of the rule matches of a match tree, answering the queries of
+ * {@link Match#all}, {@link Match#first} and {@link Match#last} (without
+ * bounds) for specifications that match rules by name: {@link MatchSpec#rule}
+ * and disjunctions of those. Other specifications are handled by {@link
+ * MatchFinder}.
+ *
+ * Matches don't index themselves: a caller that runs many queries on the same
+ * tree builds the index and keeps it for as long as it needs it.
+ *
+ * The tree nodes are numbered in prefix order, so that the descendants of a
+ * node form an interval. For each rule name, the index holds the numbers of its
+ * matches, in order. A query restricted to a sub-match of the root (see the
+ * $within parameters) looks up the interval of the sub-match.
+ *
+ * Match trees are immutable, so an index stays valid as long as its root is
+ * used: transforming a tree yields a new root, which has its own index.
+ *
+ * A match instance can appear more than once in a tree, e.g. a match inserted
+ * at several places of a quotation, or a subtree of a cached quotation result
+ * (see {@link compiler.util.Quoter}). Each occurrence is numbered, so that
+ * queries on the whole tree find them all, as {@link MatchFinder} would. A
+ * query restricted to such a match uses its first occurrence: as the
+ * descendants are the same at each occurrence, so is the result.
+ *
+ * Building the index costs about two walks of the tree, so it pays off when a
+ * tree receives a few queries that walk most of it. Queries that stop near the
+ * top of the tree are cheaper with {@link MatchFinder}.
+ */
+public class MatchIndex
+{
+  /****************************************************************************/
+  private static final MatchSpec[] NO_SPECS = new MatchSpec[0];
+
+  /****************************************************************************/
+  private final Match root;
+
+  /*****************************************************************************
+   * The nodes of the tree, in prefix order.
+   */
+  private final List<Match> nodes = new ArrayList<>();
+
+  /*****************************************************************************
+   * For each node, the number following that of its last descendant.
+   */
+  private int[] ends = new int[16];
+
+  /*****************************************************************************
+   * Maps rule names to the numbers of the matches of those rules.
+   */
+  private final Map<String, Numbers> rules = new HashMap<>();
+
+  /*****************************************************************************
+   * The numbers of the matches of a rule, in order: the first $count items of
+   * $array.
+   */
+  private static class Numbers
+  {
+    int[] array = new int[4];
+    int count;
+
+    /** Returns the index of the first number not less than $value. */
+    int lowerBound(int value)
+    {
+      int index = Arrays.binarySearch(array, 0, count, value);
+      return index >= 0 ? index : -index - 1;
+    }
+  }
+
+  /****************************************************************************/
+  public MatchIndex(Match root)
+  {
+    this.root = root;
+    add(root);
+  }
+
+  /****************************************************************************/
+  private void add(Match match)
+  {
+    int number = nodes.size();
+    nodes.add(match);
+
+    if (match.expr instanceof Rule)
+    {
+      String name = ((Rule) match.expr).name;
+      Numbers rule = rules.get(name);
+
+      if (rule == null) {
+        rule = new Numbers();
+        rules.put(name, rule);
+      }
+      else if (rule.count == rule.array.length) {
+        rule.array = Arrays.copyOf(rule.array, rule.count * 2);
+      }
+
+      rule.array[rule.count++] = number;
+    }
+
+    List<Match> children = match.children();
+
+    for (int i = 0, size = children.size() ; i < size ; ++i) {
+      add(children.get(i));
+    }
+
+    if (number >= ends.length) {
+      ends = Arrays.copyOf(ends, Math.max(number + 1, ends.length * 2));
+    }
+
+    ends[number] = nodes.size();
+  }
+
+  /*****************************************************************************
+   * Indicates if the queries for $spec can be answered by an index.
+   */
+  public static boolean supports(MatchSpec spec)
+  {
+    return spec.ruleNames() != null;
+  }
+
+  /****************************************************************************/
+  public Match root()
+  {
+    return root;
+  }
+
+  /*****************************************************************************
+   * Same as {@code within.all(spec)}. $within must be part of the indexed tree.
+   */
+  public Match[] all(MatchSpec spec, Match within)
+  {
+    String[] names = spec.ruleNames();
+
+    if (names == null) {
+      return MatchFinder.find(within, spec, Finder.ALL, NO_SPECS, NO_SPECS,
+        true);
+    }
+
+    int[] found = find(names, within);
+    Match[] out = new Match[found.length];
+
+    for (int i = 0 ; i < found.length ; ++i) {
+      out[i] = nodes.get(found[i]);
+    }
+
+    return out;
+  }
+
+  /*****************************************************************************
+   * Same as {@code within.first(spec)}. $within must be part of the indexed
+   * tree.
+   */
+  public Match first(MatchSpec spec, Match within)
+  {
+    String[] names = spec.ruleNames();
+
+    if (names == null) {
+      Match[] all = MatchFinder.find(within, spec, Finder.FIRST, NO_SPECS,
+        NO_SPECS, true);
+
+      return all.length == 0 ? null : all[0];
+    }
+
+    // The first match in prefix order can't be nested in another one.
+    int lo = number(within), hi = ends[lo], first = hi;
+
+    for (String name : names)
+    {
+      Numbers numbers = rules.get(name);
+
+      if (numbers != null) {
+        int index = numbers.lowerBound(lo);
+        if (index < numbers.count) {
+          first = Math.min(first, numbers.array[index]);
+        }
+      }
+    }
+
+    return first < hi ? nodes.get(first) : null;
+  }
+
+  /*****************************************************************************
+   * Same as {@code within.last(spec)}. $within must be part of the indexed
+   * tree.
+   */
+  public Match last(MatchSpec spec, Match within)
+  {
+    Match[] all = all(spec, within);
+    return all.length == 0 ? null : all[all.length - 1];
+  }
+
+  /*****************************************************************************
+   * Returns the numbers of the matches of the rules named $names that are
+   * descendants of $within (or $within itself), excluding those that are
+   * descendants of another such match.
+   */
+  private int[] find(String[] names, Match within)
+  {
+    int lo = number(within), hi = ends[lo];
+    int[] candidates = new int[0];
+
+    for (String name : names)
+    {
+      Numbers numbers = rules.get(name);
+
+      if (numbers == null) {
+        continue;
+      }
+
+      int from = numbers.lowerBound(lo);
+      int to   = numbers.lowerBound(hi);
+
+      if (from == to) {
+        continue;
+      }
+
+      int length = candidates.length;
+      candidates = Arrays.copyOf(candidates, length + to - from);
+      System.arraycopy(numbers.array, from, candidates, length, to - from);
+    }
+
+    if (names.length > 1) {
+      Arrays.sort(candidates);
+    }
+
+    int count = 0, end = -1;
+
+    for (int candidate : candidates)
+    {
+      if (candidate >= end) {
+        candidates[count++] = candidate;
+        end = ends[candidate];
+      }
+    }
+
+    return Arrays.copyOf(candidates, count);
+  }
+
+  /*****************************************************************************
+   * Returns the number of $match. Looking up a sub-match scans the nodes, which
+   * is cheaper than mapping each node to its number when the index is built,
+   * as few sub-matches are queried.
+   */
+  private int number(Match match)
+  {
+    if (match == root) {
+      return 0;
+    }
+
+    for (int i = 1, size = nodes.size() ; i < size ; ++i) {
+      if (nodes.get(i) == match) {
+        return i;
+      }
+    }
+
+    throw new Error("The match is not part of the indexed tree: " + match);
+  }
+}
@@ -4,10 +4,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Stack;
 
 import parser.Match;
-import util.ArrayIterator;
 
 /**
  * Returns the matches of the tree by doing a depth-first prefix walk of the
@@ -16,44 +14,15 @@ import util.ArrayIterator;
 public class MatchIterator implements Iterable<Match>, Iterator<Match>
 {
   /**
-   * The position in the match tree is kept as a "trace": a stack of NodeState.
-   * The last item returned by next() is always at the top of the stack (we use
-   * some "if" magic for the first invocation of next()).
+   * The position in the match tree is kept by a cursor, which is on the last
+   * item returned by next().
    */
 
   /****************************************************************************/
-  private class NodeState
-  {
-    final Match match;
-    final boolean upperHasNext;
-    final ArrayIterator<Match> iter;
-
-    NodeState(Match match, NodeState parent)
-    {
-      this.match        = match;
-      this.upperHasNext = parent == null ? false : parent.treeHasNext();
-      Match[] childs    = match.children().toArray(Match.EMPTY);
-      this.iter         = new ArrayIterator<>(childs, !leftToRight);
-    }
-
-    boolean treeHasNext()
-    {
-      return upperHasNext || iter.hasNext();
-    }
-  }
-  //////////////////////////////////////////////////////////////////////////////
-
-  /****************************************************************************/
-  private final Match tree;
+  private final MatchCursor cursor;
 
   /****************************************************************************/
-  private Stack<NodeState> stack = new Stack<>();
-
-  /*****************************************************************************
-   * Indicates whether the elements of the match tree are returned in a
-   * left-to-right (true) or right-to-left order (false).
-   */
-  private final boolean leftToRight;
+  private boolean started;
 
   /****************************************************************************/
   public MatchIterator(Match tree)
@@ -64,45 +33,24 @@ public class MatchIterator implements Iterable<Match>, Iterator<Match>
   /****************************************************************************/
   public MatchIterator(Match tree, boolean leftToRight)
   {
-    this.tree        = tree;
-    this.leftToRight = leftToRight;
+    this.cursor = new MatchCursor(tree, leftToRight);
   }
 
   /****************************************************************************/
   @Override public boolean hasNext()
   {
-    return stack.isEmpty() || stack.peek().treeHasNext();
+    return cursor.hasNext();
   }
 
   /****************************************************************************/
   @Override public Match next()
   {
-    forward();
-    return stack.peek().match;
-  }
-
-  /*****************************************************************************
-   * Puts the next item at the top of the stack.
-   */
-  private void forward()
-  {
-    if (stack.isEmpty()) {
-      stack.push(new NodeState(tree, null));
-      return;
-    }
-
-    if (!hasNext()) {
+    if (!cursor.next()) {
       throw new NoSuchElementException();
     }
 
-    NodeState top = stack.peek();
-
-    while (!top.iter.hasNext()) {
-      stack.pop();
-      top = stack.peek();
-    }
-
-    stack.push(new NodeState(top.iter.next(), top));
+    started = true;
+    return cursor.match();
   }
 
   /*****************************************************************************
@@ -112,14 +60,7 @@ public class MatchIterator implements Iterable<Match>, Iterator<Match>
    */
   public void skipChilds()
   {
-    if (stack.isEmpty() || !hasNext()) {
-      return;
-    }
-
-    NodeState top = stack.peek();
-    while (top.iter.hasNext()) {
-      top.iter.next();
-    }
+    cursor.skipChilds();
   }
 
   /*****************************************************************************
@@ -130,8 +71,10 @@ public class MatchIterator implements Iterable<Match>, Iterator<Match>
   {
     List<Match> list = new ArrayList<>();
 
-    for (NodeState ns : stack) {
-      list.add(ns.match);
+    if (started) {
+      for (int i = 0 ; i <= cursor.depth() ; ++i) {
+        list.add(cursor.ancestor(i));
+      }
     }
 
     return list;
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import driver.Hints;
 
 import grammar.Expression;
+import grammar.Grammar;
 import grammar.Expression.Rule;
 import parser.Match;
 import source.Source;
@@ -20,6 +21,16 @@ public abstract class MatchSpec
   /****************************************************************************/
   public abstract boolean matches(Match match);
 
+  /*****************************************************************************
+   * If the specification matches exactly the matches of some rules (by name),
+   * returns the names of those rules; otherwise returns null. Used by {@link
+   * MatchIndex}.
+   */
+  String[] ruleNames()
+  {
+    return null;
+  }
+
   /*****************************************************************************
    * Matches Match objects whose source is a given string.
    */
@@ -34,7 +45,7 @@ public abstract class MatchSpec
 
     @Override public boolean matches(Match match)
     {
-      return match.string().equals(str);
+      return match.text().contentEquals(str);
     }
 
     @Override public String toString()
@@ -54,11 +65,12 @@ public abstract class MatchSpec
    */
   public static class RuleSpec extends MatchSpec
   {
+    /* Interned, as rule names are: compared by identity. */
     private final String rule;
 
     public RuleSpec(String rule)
     {
-      this.rule = rule;
+      this.rule = rule.intern();
     }
 
     public RuleSpec(Rule rule)
@@ -69,7 +81,12 @@ public abstract class MatchSpec
     @Override public boolean matches(Match match)
     {
       return match.expr instanceof Rule
-        && ((Rule)match.expr).name.equals(rule);
+        && ((Rule)match.expr).name == rule;
+    }
+
+    @Override String[] ruleNames()
+    {
+      return new String[] { rule };
     }
 
     @Override public String toString()
@@ -98,15 +115,16 @@ public abstract class MatchSpec
   {
     public final String captureName;
 
+    /* Interned, as capture names are: compared by identity. */
     CaptureSpec(String captureName)
     {
-      this.captureName = captureName;
+      this.captureName = captureName.intern();
     }
 
     @Override public boolean matches(Match match)
     {
       return match.expr instanceof Expression.Capture
-        && ((Expression.Capture)match.expr).captureName.equals(captureName);
+        && ((Expression.Capture)match.expr).captureName == captureName;
     }
 
     @Override public String toString()
@@ -130,6 +148,11 @@ public abstract class MatchSpec
   {
     private final Expression expr;
 
+    /* The last grammar the spec was used with, and the canonical version of
+     * $expr in that grammar. The canonical expression of a representation
+     * never changes, so the cleaner is called once per grammar. */
+    private volatile Resolution resolution;
+
     public ExprSpec(Expression expr)
     {
       this.expr = expr;
@@ -141,13 +164,33 @@ public abstract class MatchSpec
        * grammars, although it isn't the case now. It also avoid having to pass
        * the grammar to the spec constructor. */
 
-      return match.expr == match.expr.grammar.clean(expr);
+      Grammar grammar = match.expr.grammar;
+      Resolution resolution = this.resolution;
+
+      if (resolution == null || resolution.grammar != grammar) {
+        this.resolution = resolution =
+          new Resolution(grammar, grammar.clean(expr));
+      }
+
+      return match.expr == resolution.expr;
     }
 
     @Override public String toString()
     {
       return "match expression [" + expr + "]";
     }
+
+    private static class Resolution
+    {
+      final Grammar grammar;
+      final Expression expr;
+
+      Resolution(Grammar grammar, Expression expr)
+      {
+        this.grammar = grammar;
+        this.expr = expr;
+      }
+    }
   }
 
   /****************************************************************************/
@@ -163,19 +206,71 @@ public abstract class MatchSpec
   {
     private final MatchSpec[] specs;
 
+    /* If all child specifications match rules by name, the names of those
+     * rules (interned), so that a match is tested with a single type check and
+     * identity comparisons. */
+    private final String[] names;
+
     public OrSpec(MatchSpec... specs)
     {
       this.specs = specs;
+      this.names = ruleNames(specs);
     }
 
     @Override public boolean matches(Match match)
     {
+      if (names != null)
+      {
+        if (!(match.expr instanceof Rule)) {
+          return false;
+        }
+
+        String name = ((Rule) match.expr).name;
+
+        for (String rule : names) {
+          if (rule == name) { return true; }
+        }
+        return false;
+      }
+
       for (MatchSpec spec : specs) {
         if (spec.matches(match)) { return true; }
       }
       return false;
     }
 
+    @Override String[] ruleNames()
+    {
+      return names == null ? null : names.clone();
+    }
+
+    private static String[] ruleNames(MatchSpec[] specs)
+    {
+      String[][] names = new String[specs.length][];
+      int count = 0;
+
+      for (int i = 0 ; i < specs.length ; ++i)
+      {
+        names[i] = specs[i].ruleNames();
+
+        if (names[i] == null) {
+          return null;
+        }
+
+        count += names[i].length;
+      }
+
+      String[] out = new String[count];
+      count = 0;
+
+      for (String[] array : names) {
+        System.arraycopy(array, 0, out, count, array.length);
+        count += array.length;
+      }
+
+      return out;
+    }
+
     @Override public String toString()
     {
       return join(Arrays.asList(specs), " or ");
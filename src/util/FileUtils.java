@@ -1,9 +1,12 @@
 package util;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
@@ -108,4 +111,100 @@ public class FileUtils
       catch (IOException e) {}
     }
   }
-}
\ No newline at end of file
+
+  /*****************************************************************************
+   * Indicates whether $file exists and holds exactly the bytes in $bytes. The
+   * sizes are compared first, so that the file only needs to be read if they
+   * are equal. The content is then compared chunk by chunk, without reading
+   * the whole file in memory.
+   */
+  public static boolean hasContent(File file, byte[] bytes)
+  {
+    if (!file.isFile() || file.length() != bytes.length) {
+      return false;
+    }
+
+    InputStream stream = null;
+    try {
+      stream = new FileInputStream(file);
+      byte[] buffer = new byte[Math.min(bytes.length, 8192) + 1];
+      int offset = 0, read;
+
+      while ((read = stream.read(buffer)) != -1)
+      {
+        if (offset + read > bytes.length) {
+          return false;
+        }
+
+        for (int i = 0 ; i < read ; ++i) {
+          if (buffer[i] != bytes[offset + i]) {
+            return false;
+          }
+        }
+
+        offset += read;
+      }
+
+      return offset == bytes.length;
+    }
+    catch (IOException e) {
+      return false;
+    }
+    finally {
+      try { if (stream != null) { stream.close(); } }
+      catch (IOException e) {}
+    }
+  }
+
+  /*****************************************************************************
+   * Like {@link #write(File, byte[])}, but leaves the file untouched if it
+   * already holds the same bytes. This preserves its modification time, so that
+   * the build tools consuming it do not consider it stale. Returns true if the
+   * file was written.
+   */
+  public static boolean writeIfChanged(File file, byte[] bytes)
+  {
+    if (hasContent(file, bytes)) {
+      return false;
+    }
+
+    write(file, bytes);
+    return true;
+  }
+
+  /*****************************************************************************
+   * Like {@link #write(File, String)}, but leaves the file untouched if it
+   * already holds the same text. Returns true if the file was written.
+   */
+  public static boolean writeIfChanged(File file, String string)
+  {
+    // Same encoding as the OutputStreamWriter used in write(File, String).
+    return writeIfChanged(file, string.getBytes());
+  }
+
+  /*****************************************************************************
+   * Indicates whether $path designates a jar or zip archive, judging from its
+   * extension.
+   */
+  public static boolean isArchive(Path path)
+  {
+    String name = path.getFileName().toString().toLowerCase();
+    return name.endsWith(".jar") || name.endsWith(".zip");
+  }
+
+  /*****************************************************************************
+   * Reads all the bytes from $stream, without closing it.
+   */
+  public static byte[] readAll(InputStream stream) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+
+    while ((read = stream.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+}
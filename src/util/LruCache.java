@@ -0,0 +1,104 @@
+package util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded map that evicts its least recently used entry when it is full.
+ * Counts the lookups that found an entry (hits) and those that didn't (misses).
+ * All methods are thread-safe.
+ *
+ * A cache with a capacity of zero holds nothing.
+ */
+public class LruCache<K, V>
+{
+  /****************************************************************************/
+  private final LinkedHashMap<K, V> map;
+
+  /****************************************************************************/
+  private long hits = 0;
+
+  /****************************************************************************/
+  private long misses = 0;
+
+  /****************************************************************************/
+  public LruCache(final int capacity)
+  {
+    map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /*****************************************************************************
+   * Returns the value associated to $key, or null if there is none.
+   */
+  public synchronized V get(K key)
+  {
+    V value = map.get(key);
+
+    if (value == null) {
+      ++misses;
+    }
+    else {
+      ++hits;
+    }
+
+    return value;
+  }
+
+  /****************************************************************************/
+  public synchronized void put(K key, V value)
+  {
+    map.put(key, value);
+  }
+
+  /****************************************************************************/
+  public synchronized void remove(K key)
+  {
+    map.remove(key);
+  }
+
+  /*****************************************************************************
+   * Returns a copy of the entries of the cache, from least to most recently
+   * used. Doesn't count as a use of the entries.
+   */
+  public synchronized List<Map.Entry<K, V>> entries()
+  {
+    List<Map.Entry<K, V>> entries = new ArrayList<>();
+
+    for (Map.Entry<K, V> entry : map.entrySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+    }
+
+    return entries;
+  }
+
+  /****************************************************************************/
+  public synchronized void clear()
+  {
+    map.clear();
+  }
+
+  /****************************************************************************/
+  public synchronized int size()
+  {
+    return map.size();
+  }
+
+  /****************************************************************************/
+  public synchronized long hits()
+  {
+    return hits;
+  }
+
+  /****************************************************************************/
+  public synchronized long misses()
+  {
+    return misses;
+  }
+}
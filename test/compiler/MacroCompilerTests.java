@@ -72,7 +72,7 @@ public class MacroCompilerTests
     Context.get().captureNames.clear();
 
     Macro macro = new Macro("Unless", "statement", grammar,
-      syntax, expander, Strategy.AS, false, false);
+      syntax, expander, Strategy.AS, false, false, false);
     macro.enable();
 
     Match match = matchString(
@@ -8,14 +8,18 @@ import static compiler.util.MatchCreator.new_match;
 import static compiler.util.StringMatcher.matchString;
 import static grammar.GrammarDSL.ref;
 import static grammar.GrammarDSL.seq;
+import static grammar.GrammarDSL.star;
 import static grammar.GrammarDSL.str;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static trees.MatchSpec.rule;
 import static util.MemberAccessor.invoke;
 
 import compiler.macros.MacroInterface;
+import compiler.util.Captures;
 import compiler.util.Quoter;
 import driver.Context;
 import grammar.Expression;
@@ -119,6 +123,9 @@ public class MacroExpanderTests
 
   Expression m12s = seq(str("/macro12/"), ref("macro10"));
 
+  Expression m13s = seq(
+    str("/macro13/"), ref("lCuBra"), ref("expression"), ref("rCuBra"));
+
   /****************************************************************************/
   Match quote(String code)
   {
@@ -130,7 +137,7 @@ public class MacroExpanderTests
     Macro.Strategy strat, boolean raw)
   {
     return new Macro("macro" + n, strat == CALLED ? null : "expression",
-      grammar, syntax, iface, strat, raw, false);
+      grammar, syntax, iface, strat, raw, false, false);
   }
 
   /****************************************************************************/
@@ -290,4 +297,140 @@ public class MacroExpanderTests
     m2 = expander.transform(m1);
     assertEquals("\"/macro10/\"", m2.string());
   }
+
+  /****************************************************************************/
+  static class Counting implements MacroInterface {
+    int count = 0;
+    @Override public Match expand(Match input) {
+      ++count;
+      return Quoter.dynamicQuote("expression", "f(#1)",
+        input.first(rule("expression")));
+    }
+  }
+
+  /****************************************************************************/
+  static void assertSameShape(Match expected, Match actual)
+  {
+    assertSame(expected.expr, actual.expr);
+    assertEquals(expected.originalString(), actual.originalString());
+    assertEquals(expected.children().size(), actual.children().size());
+
+    for (int i = 0 ; i < expected.children().size() ; ++i) {
+      assertSameShape(expected.children().get(i), actual.children().get(i));
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ab_pure()
+  {
+    Counting counting = new Counting();
+
+    Macro macro13 = new Macro("macro13", "expression", grammar,
+      m13s, counting, AS, false, false, true);
+
+    macro13.enable();
+
+    try {
+      long hits = MacroExpander.pureCacheHits();
+
+      Match m1 = expander.transform(testParse(13, "/macro13/{x}"));
+      assertEquals("f(x)", m1.string());
+
+      Match m2 = expander.transform(testParse(13, "/macro13/{x}"));
+      assertEquals("f(x)", m2.string());
+      assertEquals(1, counting.count);
+      assertEquals(hits + 1, MacroExpander.pureCacheHits());
+
+      // The cached expansion is instantiated anew, with the same shape.
+      assertNotSame(m1.source, m2.source);
+      assertSameShape(m1, m2);
+
+      m2 = expander.transform(testParse(13, "/macro13/{y}"));
+      assertEquals("f(y)", m2.string());
+      assertEquals(2, counting.count);
+    }
+    finally {
+      macro13.disable();
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ac_parallel()
+  {
+    Macro macro13 = new Macro("macro13", "expression", grammar,
+      m13s, new Counting(), AS, false, false, false);
+
+    macro13.enable();
+
+    try {
+      String code = "g(/macro13/{a}, /macro13/{/macro13/{b}}, c, /macro13/{d})";
+      MacroExpander parallel = new MacroExpander(4, 1);
+
+      Match m1 = matchString(code, "expression");
+      Match m2 = parallel.transform(m1);
+      assertEquals("g(f(a), f(f(b)), c, f(d))", m2.string());
+      assertEquals(expander.transform(m1).string(), m2.string());
+    }
+    finally {
+      macro13.disable();
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ad_fused()
+  {
+    Macro macro13 = new Macro("macro13", "expression", grammar,
+      m13s, new Counting(), AS, false, false, false);
+
+    macro13.enable();
+
+    try {
+      assertFalse(grammar.inert().contains(grammar.rule("expression")));
+      assertTrue (grammar.inert().contains(grammar.rule("literal")));
+
+      Match m1 = matchString("g(1, /macro13/{x})", "expression");
+      Match m2 = new PostParser().run(m1);
+      assertEquals("g(1, f(x))", m2.string());
+      assertSame(m1.first(rule("literal")), m2.first(rule("literal")));
+    }
+    finally {
+      macro13.disable();
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ae_captures()
+  {
+    Expression syntax = seq(str("/macro14/"),
+      new Expression.Capture("a", ref("identifier")),
+      star(new Expression.Capture("b", seq(str(","),
+        new Expression.Capture("a", ref("identifier"))))));
+
+    Macro macro14 = new Macro("macro14", "expression", grammar,
+      syntax, new Macro1(), AS, false, false, false);
+
+    macro14.enable();
+
+    try {
+      Match input = testParse(14, "/macro14/x,y,z").child();
+      Captures captures = Captures.of(input);
+
+      for (String name : new String[] { "a", "b", "c" })
+      {
+        Match[] expected = input.getCaptures(name);
+        Match[] actual   = captures.get(name);
+        assertEquals(expected.length, actual.length);
+
+        for (int i = 0 ; i < expected.length ; ++i) {
+          assertSame(expected[i], actual[i]);
+        }
+      }
+
+      assertEquals(3, captures.get("a").length);
+      assertEquals(2, captures.get("b").length);
+    }
+    finally {
+      macro14.disable();
+    }
+  }
 }
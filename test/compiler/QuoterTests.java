@@ -3,6 +3,7 @@ package compiler;
 import static compiler.util.Quoter.dynamicQuote;
 import static compiler.util.Quoter.primitiveQuote;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static trees.MatchSpec.hasExprAtPos;
 import static trees.MatchSpec.rule;
@@ -82,4 +83,67 @@ public class QuoterTests
     assertTrue  (result.is(rule("expression")));
     assertEquals(2, result.all(rule("integerLiteral")).length);
   }
+
+  /****************************************************************************/
+  void assertSameTree(Match expected, Match actual)
+  {
+    assertSame  (expected.expr,  actual.expr);
+    assertEquals(expected.begin, actual.begin);
+    assertEquals(expected.end,   actual.end);
+    assertEquals(expected.children().size(), actual.children().size());
+
+    for (int i = 0 ; i < expected.children().size() ; ++i) {
+      assertSameTree(expected.children().get(i), actual.children().get(i));
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ac_quoteTemplate()
+  {
+    // Repeated quotes of a template reuse the tree of the previous ones; they
+    // must yield the same trees as a fresh parse.
+
+    String[][] inserts = {
+      { "a",          "1"           },
+      { "foo.bar(x)", "y[2] * 3"    },
+      { "b",          "(c)"         },
+      { "a",          "1"           },
+    };
+
+    for (String[] insert : inserts) {
+      Match result = dynamicQuote("expression", "f(#1, 3) * g(#2) - x",
+        primitiveQuote("expression", insert[0]),
+        primitiveQuote("expression", insert[1]));
+
+      assertSameTree(primitiveQuote("expression",
+        "f(" + insert[0] + ", 3) * g(" + insert[1] + ") - x"), result);
+    }
+
+    // Text inserts can change the way the code around them parses.
+
+    for (String insert : new String[] { "a", "a, b", "a", "a ? b : c" }) {
+      Match result = dynamicQuote("expression", "f(#1) + g", insert);
+
+      assertSameTree(primitiveQuote("expression", "f(" + insert + ") + g"),
+        result);
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ad_quoteCache()
+  {
+    String code = "cacheTest(1, 2)";
+    Match first = primitiveQuote("expression", code);
+    long hits = Quoter.cacheHits();
+
+    assertSame(first, primitiveQuote("expression", code));
+    assertEquals(hits + 1, Quoter.cacheHits());
+
+    // Same final code from a template: same tree.
+    Match insert = primitiveQuote("expression", "2");
+    assertSame(first, dynamicQuote("expression", "cacheTest(1, #1)", insert));
+
+    // Different rule: different tree.
+    assertEquals(code, primitiveQuote("statementExpression", code).string());
+  }
 }
@@ -0,0 +1,232 @@
+package driver;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.zip.ZipInputStream;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+import compiler.util.MatchCreator;
+import grammar.GrammarDSL;
+import parser.Match;
+import source.Source;
+import source.SourceString;
+import util.FileUtils;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class OutputWriterTests
+{
+  @Test public void aa_write() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-output");
+
+    try {
+      // Small buffer to exercise chunked writes.
+      OutputWriter writer = new OutputWriter(2, 3);
+
+      for (int i = 0 ; i < 100 ; ++i) {
+        writer.write(root.resolve("d" + i % 7).resolve("f" + i), "file " + i);
+      }
+
+      writer.flush();
+      assertEquals(100, writer.writtenFiles());
+      assertEquals(0,   writer.unchangedFiles());
+
+      for (int i = 0 ; i < 100 ; ++i) {
+        Path file = root.resolve("d" + i % 7).resolve("f" + i);
+        assertEquals("file " + i, new String(Files.readAllBytes(file)));
+      }
+
+      // Same content: skipped. Different content: rewritten.
+      writer.write(root.resolve("d0/f0"), "file 0");
+      writer.write(root.resolve("d1/f1"), "changed");
+      writer.close();
+
+      assertEquals(101, writer.writtenFiles());
+      assertEquals(1,   writer.unchangedFiles());
+      assertEquals("changed",
+        new String(Files.readAllBytes(root.resolve("d1/f1"))));
+    }
+    finally {
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  @Test public void ab_errors() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-output");
+
+    try {
+      Files.write(root.resolve("file"), new byte[] { 1 });
+
+      for (int threads = 0 ; threads <= 2 ; ++threads)
+      {
+        OutputWriter writer = new OutputWriter(threads, 16);
+        writer.write(root.resolve("ok"), "ok");
+        writer.write(root.resolve("file/first"), "x");
+        writer.write(root.resolve("file/second"), "x");
+
+        try {
+          writer.close();
+          fail();
+        }
+        catch (Error e) {
+          assertTrue(e.getMessage().endsWith("first"));
+        }
+      }
+    }
+    finally {
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  @Test public void ac_archive() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-output");
+    Path jar = root.resolve("out.jar");
+
+    try {
+      byte[][] archives = new byte[2][];
+
+      for (int i = 0 ; i < 2 ; ++i)
+      {
+        OutputWriter writer = new OutputWriter(2, 16);
+        writer.archive(jar);
+
+        // Submission order differs between both runs.
+        String first = i == 0 ? "b/B.class" : "a/A.class";
+        String second = i == 0 ? "a/A.class" : "b/B.class";
+        writer.write(jar.resolve(first), first);
+        writer.write(jar.resolve(second), second);
+        writer.write(root.resolve("loose"), "loose");
+        writer.close();
+
+        archives[i] = Files.readAllBytes(jar);
+        assertTrue(Files.isRegularFile(root.resolve("loose")));
+
+        // No temporary file left next to the archive.
+        assertEquals(2, root.toFile().list().length);
+      }
+
+      // Same entries in the same order, same timestamps.
+      assertArrayEquals(archives[0], archives[1]);
+
+      ZipInputStream zip = new ZipInputStream(Files.newInputStream(jar));
+      assertEquals("a/A.class", zip.getNextEntry().getName());
+      assertEquals("b/B.class", zip.getNextEntry().getName());
+      assertNull(zip.getNextEntry());
+      zip.close();
+    }
+    finally {
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ad_writeMatch() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-output");
+
+    try {
+      OutputWriter writer = new OutputWriter(0, 3);
+      Source text = new SourceString("abcdef");
+
+      Match match = MatchCreator.new_match(GrammarDSL.str(""), Arrays.asList(
+        new Match(GrammarDSL.str("cd"), text, 2, 4),
+        new Match(GrammarDSL.str("ab"), text, 0, 2)));
+
+      writer.write(root.resolve("f"), match);
+      writer.write(root.resolve("f"), match);
+      writer.write(root.resolve("g"), "cdab!");
+      writer.write(root.resolve("g"), match);
+      writer.write(root.resolve("h"), "cxa");
+      writer.write(root.resolve("h"), match);
+      writer.close();
+
+      assertEquals(5, writer.writtenFiles());
+      assertEquals(1, writer.unchangedFiles());
+      assertEquals("cdab", new String(Files.readAllBytes(root.resolve("f"))));
+      assertEquals("cdab", new String(Files.readAllBytes(root.resolve("g"))));
+      assertEquals("cdab", new String(Files.readAllBytes(root.resolve("h"))));
+    }
+    finally {
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ae_updateArchive() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-output");
+    Path jar = root.resolve("out.jar");
+
+    try {
+      OutputWriter writer = new OutputWriter(2, 16);
+      writer.archive(jar);
+      writer.write(jar.resolve("a/A.class"), "a1");
+      writer.write(jar.resolve("b/B.class"), "b1");
+      writer.close();
+
+      // Only B is written again: A is kept from the existing archive.
+      writer = new OutputWriter(2, 16);
+      writer.archive(jar, true);
+      writer.write(jar.resolve("b/B.class"), "b2");
+      writer.close();
+
+      ZipInputStream zip = new ZipInputStream(Files.newInputStream(jar));
+      assertEquals("a/A.class", zip.getNextEntry().getName());
+      assertEquals("a1", new String(FileUtils.readAll(zip)));
+      assertEquals("b/B.class", zip.getNextEntry().getName());
+      assertEquals("b2", new String(FileUtils.readAll(zip)));
+      assertNull(zip.getNextEntry());
+      zip.close();
+    }
+    finally {
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void af_unchangedTime() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-output");
+
+    try {
+      Source text = new SourceString("abcdef");
+      Match match = new Match(GrammarDSL.str("abcdef"), text, 0, 6);
+      FileTime old = FileTime.fromMillis(1000000000000L);
+
+      OutputWriter writer = new OutputWriter(0, 3);
+      writer.write(root.resolve("f"), "abcdef");
+      writer.write(root.resolve("g"), match);
+      writer.close();
+
+      Files.setLastModifiedTime(root.resolve("f"), old);
+      Files.setLastModifiedTime(root.resolve("g"), old);
+
+      // The same content, as a string and as a match: neither file is touched.
+      writer = new OutputWriter(0, 3);
+      writer.write(root.resolve("f"), "abcdef");
+      writer.write(root.resolve("g"), match);
+      writer.close();
+
+      assertEquals(0, writer.writtenFiles());
+      assertEquals(2, writer.unchangedFiles());
+      assertEquals(old, Files.getLastModifiedTime(root.resolve("f")));
+      assertEquals(old, Files.getLastModifiedTime(root.resolve("g")));
+    }
+    finally {
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+}
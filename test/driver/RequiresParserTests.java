@@ -4,9 +4,13 @@ import static driver.RequiresParserTests.Type.MACRO;
 import static driver.RequiresParserTests.Type.REGULAR;
 import static driver.RequiresParserTests.Type.STATIC;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static trees.MatchSpec.rule;
 import static util.ListUtils.list;
 
+import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
@@ -20,6 +24,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.junit.runners.MethodSorters;
+import grammar.Expression.Rule;
+import grammar.Grammar;
+import grammar.GrammarDSL;
+import parser.Match;
 import parser.Matcher;
 import source.Source;
 import source.SourceString;
@@ -114,4 +122,93 @@ public class RequiresParserTests
   {
 
   }
+
+  /****************************************************************************/
+  void verifyScan(String string) throws IOException
+  {
+    List<Require> reqs1 = new ArrayList<>(), reqs2 = new ArrayList<>();
+    List<String>  imps1 = new ArrayList<>(), imps2 = new ArrayList<>();
+    Result<String> pkg1 = new Result<>(), pkg2 = new Result<>();
+
+    Source source = new SourceString(string);
+    assertTrue(new PreludeScanner(source).scan());
+
+    RequiresParser reqp = new RequiresParser();
+    reqp.parseRequires(new Matcher(source), pkg1, reqs1, imps1);
+    reqp.parsePrelude(new Matcher(source), pkg2, reqs2, imps2);
+
+    assertEquals(pkg2.get(), pkg1.get());
+    assertEquals(imps2, imps1);
+    assertEquals(reqs2, reqs1);
+  }
+
+  /****************************************************************************/
+  @Test public void ac_scanner() throws IOException
+  {
+    verifyScan(sourceString);
+
+    verifyScan(" /* a */ package  pkg  // b\n;\t"
+      + sourceString.substring("package pkg;".length())
+        .replace(";", " /* c ; */ ; // d ;\r\n")
+        .replace(".", " . ")
+        .replace(":", "\f: ")
+      + "\n@ interface A {}");
+
+    verifyScan("package a.b; import static x.Y.*; require macro b.M::; pure");
+    verifyScan("package a; require macro.B; @A.B(1) class C {}");
+    verifyScan("package a; require short.B; public");
+
+    String[] rejected = {
+      "import a.B; class C {}",
+      "@A package a; class C {}",
+      "package a; import b.C",
+      "package a; import b.C; int x;",
+      "package a; require macro b.C:D:E; class F {}",
+      "package a; /* class C {}",
+      "package a; // class C {}",
+      "package a; import int.C; class D {}",
+    };
+
+    for (String string : rejected) {
+      assertFalse(new PreludeScanner(new SourceString(string)).scan());
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ad_memoize()
+  {
+    Source source = new SourceString("import a.B; class C {}");
+    Grammar grammar = Context.get().grammar();
+
+    Match prelude = new RequiresParser().parseRequires(new Matcher(source),
+      new Result<String>(), new ArrayList<Require>(), new ArrayList<String>());
+
+    assertSame(grammar.rule("prelude"), prelude.expr);
+
+    Matcher matcher = new Matcher(source);
+    matcher.memoize(prelude);
+    assertTrue(matcher.matches(grammar.rule("compilationUnit")));
+    assertSame(prelude, matcher.match().first(rule("prelude")));
+  }
+
+  /****************************************************************************/
+  @Test public void ae_extended()
+  {
+    // Macros extend the grammar in place: the prelude scanner must not be used
+    // once the rules differ.
+    Grammar grammar = Context.MACRO_GRAMMAR;
+    Rule extension = GrammarDSL.rule("aeExtension", GrammarDSL.str("x"));
+
+    assertTrue(Context.isUnextendedMacroGrammar(grammar));
+    grammar.registerRule(extension);
+
+    try {
+      assertFalse(Context.isUnextendedMacroGrammar(grammar));
+    }
+    finally {
+      grammar.unregisterRule(extension);
+    }
+
+    assertTrue(Context.isUnextendedMacroGrammar(grammar));
+  }
 }
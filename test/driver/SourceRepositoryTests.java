@@ -0,0 +1,286 @@
+package driver;
+
+import static org.junit.Assert.*;
+import static util.ListUtils.list;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+import compiler.Macro;
+import compiler.java.CompiledClass;
+import compiler.java.DynamicJavaCompiler;
+import compiler.java.MemoryClassLoader;
+import compiler.java.StringJavaFileObject;
+import files.RelativeSourcePath;
+import files.RootedSourcePath;
+import source.Source;
+import util.FileUtils;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SourceRepositoryTests
+{
+  /****************************************************************************/
+  final RelativeSourcePath pathA =
+    new RelativeSourcePath(Paths.get("pkg/A.java"));
+
+  /****************************************************************************/
+  final RelativeSourcePath pathB =
+    new RelativeSourcePath(Paths.get("pkg/B.java"));
+
+  /****************************************************************************/
+  final String codeA = "package pkg; public class A {}";
+
+  @Test public void aa_invalidate() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-repo");
+    Files.createDirectories(root.resolve("pkg"));
+    Files.write(root.resolve("pkg/A.java"), codeA.getBytes());
+    Files.write(root.resolve("pkg/B.java"),
+      "package pkg; require pkg.A; public class B {}".getBytes());
+
+    SourceRepository repo = Context.get().repo;
+    Config.get().roots.add(root);
+
+    try {
+      SourceFile b = repo.get(pathB);
+      SourceFile a = repo.get(pathA);
+      assertTrue(b.requires().dependencies().contains(a));
+
+      WeakReference<MemoryClassLoader> loader = load(a);
+      b.classLoader(); // refers to the loader of A
+
+      repo.invalidate(a);
+
+      // B depends on A, so both are recreated.
+      assertNotSame(a, repo.get(pathA));
+      assertNotSame(b, repo.get(pathB));
+
+      a = null;
+      b = null;
+
+      assertCollected(loader);
+    }
+    finally {
+      repo.invalidate(repo.get(pathA));
+      Config.get().roots.remove(root);
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  /****************************************************************************/
+  final RelativeSourcePath pathM =
+    new RelativeSourcePath(Paths.get("pkg/Neg.javam"));
+
+  /****************************************************************************/
+  final RelativeSourcePath pathU =
+    new RelativeSourcePath(Paths.get("pkg/UseNeg.java"));
+
+  @Test public void ab_invalidateMacro() throws IOException
+  {
+    Path root = Files.createTempDirectory("caxap-repo");
+    Files.createDirectories(root.resolve("pkg"));
+    Files.write(root.resolve("pkg/Neg.javam"), (
+        "package pkg;\n"
+      + "macro Negated as statement\n"
+      + ": \"negated\" expr:expression :block\n"
+      + "{\n"
+      + "  return `statement[ if (!(#expr[0])) #block[0] ]`;\n"
+      + "}\n").getBytes());
+    Files.write(root.resolve("pkg/UseNeg.java"), (
+        "package pkg;\n"
+      + "require macro pkg.Neg:Negated;\n"
+      + "class UseNeg { void f() { negated false { } } }\n").getBytes());
+
+    SourceRepository repo = Context.get().repo;
+    Config config = Config.get();
+    Path targetDir = config.targetDir, generatedSrcDir = config.generatedSrcDir;
+    config.roots.add(root);
+    config.targetDir = root.resolve("classes");
+    config.generatedSrcDir = root.resolve("generated");
+
+    try {
+      compile(root);
+
+      SourceFile file = repo.get(pathM);
+      Macro macro = file.macros().iterator().next();
+      WeakReference<ClassLoader> loader =
+        new WeakReference<>(macro.expanderLoader());
+      assertSame(file.classLoader(), loader.get());
+
+      // As if the file was invalidated while the macro was in use.
+      macro.enable();
+      repo.invalidate(file);
+
+      file = null;
+      macro = null;
+      assertCollected(loader);
+
+      // The macro can be defined again.
+      compile(root);
+      assertTrue(Files.isRegularFile(
+        config.generatedSrcDir.resolve("pkg/UseNeg.java")));
+    }
+    finally {
+      repo.invalidate(repo.get(pathM));
+      config.roots.remove(root);
+      config.targetDir = targetDir;
+      config.generatedSrcDir = generatedSrcDir;
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  /****************************************************************************/
+  final RelativeSourcePath pathP =
+    new RelativeSourcePath(Paths.get("pkg/P.java"));
+
+  @Test public void ac_prefetch() throws Exception
+  {
+    Path root = Files.createTempDirectory("caxap-repo");
+    Files.createDirectories(root.resolve("pkg"));
+    Path file = root.resolve("pkg/P.java");
+    Files.write(file, "package pkg; class P {}".getBytes());
+
+    SourceRepository repo = Context.get().repo;
+    Config config = Config.get();
+    int readerThreads = config.readerThreads;
+    config.readerThreads = 2;
+    config.roots.add(root);
+
+    try {
+      RootedSourcePath rpath = new RootedSourcePath(root, file, false);
+      repo.hint(list(rpath));
+
+      Future<Source> future = repo.prefetched(rpath);
+      assertNotNull(future);
+      future.get();
+
+      // The file was read before it was replaced.
+      replace(file, "package pkg; class P { }");
+      assertEquals("package pkg; class P {}", text(repo.get(pathP)));
+
+      // The read was consumed: the next SourceFile, found through the roots
+      // since the hint was forgotten along with the file, reads it anew.
+      assertNull(repo.prefetched(rpath));
+      repo.invalidate(repo.get(pathP));
+      assertEquals("package pkg; class P { }", text(repo.get(pathP)));
+    }
+    finally {
+      repo.invalidate(repo.get(pathP));
+      repo.endPrefetch();
+      config.readerThreads = readerThreads;
+      config.roots.remove(root);
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  @Test public void ad_endPrefetch() throws Exception
+  {
+    Path root = Files.createTempDirectory("caxap-repo");
+    Files.createDirectories(root.resolve("pkg"));
+    Path file = root.resolve("pkg/P.java");
+    Files.write(file, "package pkg; class P {}".getBytes());
+
+    SourceRepository repo = Context.get().repo;
+    Config config = Config.get();
+    int readerThreads = config.readerThreads;
+    config.readerThreads = 2;
+    config.roots.add(root);
+
+    try {
+      RootedSourcePath rpath = new RootedSourcePath(root, file, false);
+      repo.hint(list(rpath));
+
+      Future<Source> future = repo.prefetched(rpath);
+      assertNotNull(future);
+      future.get();
+
+      // The read was never consumed: it is dropped, and the file read anew.
+      repo.endPrefetch();
+      assertNull(repo.prefetched(rpath));
+
+      replace(file, "package pkg; class P { }");
+      assertEquals("package pkg; class P { }", text(repo.get(pathP)));
+    }
+    finally {
+      repo.invalidate(repo.get(pathP));
+      config.readerThreads = readerThreads;
+      config.roots.remove(root);
+      FileUtils.deleteDir(root.toFile());
+    }
+  }
+
+  /*****************************************************************************
+   * Replaces $file by a new file holding $text. Sources read from the old file
+   * may map it, so it isn't modified in place.
+   */
+  void replace(Path file, String text) throws IOException
+  {
+    Path temp = file.resolveSibling(file.getFileName() + ".new");
+    Files.write(temp, text.getBytes());
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /*****************************************************************************
+   * Returns the text of the source of $file.
+   */
+  String text(SourceFile file)
+  {
+    Source source = file.source();
+    return source.at(0, source.end());
+  }
+
+  /*****************************************************************************
+   * Compiles the files of the test under $root.
+   */
+  void compile(Path root)
+  {
+    List<SourceFile> files = DependencyResolver.resolve(
+      list(new RootedSourcePath(root, root.resolve("pkg/Neg.javam"), false)),
+      list(new RootedSourcePath(root, root.resolve("pkg/UseNeg.java"), false)));
+
+    CompilationDriver.drive(files);
+  }
+
+  /*****************************************************************************
+   * Runs the garbage collector until the object referenced by $ref is
+   * collected, or until giving up, and checks that it was collected.
+   */
+  void assertCollected(WeakReference<?> ref)
+  {
+    for (int i = 0 ; i < 50 && ref.get() != null ; ++i) {
+      System.gc();
+      Thread.yield();
+    }
+
+    assertNull(ref.get());
+  }
+
+  /*****************************************************************************
+   * Compiles $codeA, loads the class in the class loader of $file, and returns
+   * a weak reference to the loader.
+   */
+  WeakReference<MemoryClassLoader> load(SourceFile file)
+  {
+    StringJavaFileObject source = new StringJavaFileObject(file.path(), codeA);
+
+    for (CompiledClass klass : DynamicJavaCompiler.get().compile(source)) {
+      klass.load(file.classLoader());
+    }
+
+    assertEquals(1, file.classLoader().classNames().size());
+    return new WeakReference<>(file.classLoader());
+  }
+}
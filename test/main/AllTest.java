@@ -16,7 +16,13 @@ import org.junit.runners.Suite;
   trees.MatchFinderTests.class,
   driver.RequiresTests.class,
   driver.RequiresParserTests.class,
+  driver.OutputWriterTests.class,
+  driver.SourceRepositoryTests.class,
   compiler.QuoterTests.class,
+  parser.MatchTreeSerializerTests.class,
+  source.SourceComposedTests.class,
+  source.SourceFileBytesTests.class,
+  source.SourceStringTests.class,
   compiler.MacroExpanderTests.class,
   compiler.QuotationMacroTests.class,
   compiler.util.PEGCompilerTests.class,
@@ -0,0 +1,95 @@
+package parser;
+
+import static org.junit.Assert.*;
+import static trees.MatchSpec.rule;
+
+import java.util.Arrays;
+import java.util.List;
+
+import compiler.Macro;
+import compiler.util.Quoter;
+import driver.Context;
+import grammar.Expression;
+import grammar.Grammar;
+import grammar.GrammarDSL;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MatchTreeSerializerTests
+{
+  /****************************************************************************/
+  Grammar grammar = Context.get().grammar();
+
+  /****************************************************************************/
+  void assertSameTree(Match expected, Match actual)
+  {
+    assertSame  (expected.expr,   actual.expr);
+    assertSame  (expected.source, actual.source);
+    assertEquals(expected.begin,  actual.begin);
+    assertEquals(expected.end,    actual.end);
+    assertEquals(expected.children().size(), actual.children().size());
+
+    for (int i = 0 ; i < expected.children().size() ; ++i) {
+      assertSameTree(expected.children().get(i), actual.children().get(i));
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void aa_roundTrip()
+  {
+    Match match = Quoter.primitiveQuote("block",
+      "{ int[] a = new int[] { 1, 2 }; for (int x : a) { f(\"\\u00e9\" + x); } }");
+
+    byte[] bytes = MatchTreeSerializer.serialize(match, grammar);
+    byte[] padded = new byte[bytes.length + 3];
+    System.arraycopy(bytes, 0, padded, 3, bytes.length);
+
+    assertSameTree(match,
+      MatchTreeSerializer.deserialize(bytes, 0, grammar, match.source));
+    assertSameTree(match,
+      MatchTreeSerializer.deserialize(padded, 3, grammar, match.source));
+  }
+
+  /****************************************************************************/
+  @Test public void ab_fingerprint()
+  {
+    byte[] before = grammar.fingerprint();
+    List<Expression> numbered = grammar.numbered();
+
+    Macro macro = new Macro("fingerprintTestMacro", (String) null, grammar,
+      GrammarDSL.str("@@@"), null, Macro.Strategy.CALLED, false, false,
+      false);
+
+    macro.enable();
+    byte[] enabled = grammar.fingerprint();
+    macro.disable();
+
+    assertFalse(Arrays.equals(before, enabled));
+    assertArrayEquals(before, grammar.fingerprint());
+    assertEquals(numbered, grammar.numbered());
+  }
+
+  /****************************************************************************/
+  @Test public void ac_compact()
+  {
+    Match match = Quoter.primitiveQuote("block",
+      "{ int x = 1; if (x > 0) { f(x); } else { g(); } }");
+
+    CompactMatchTree tree = CompactMatchTree.of(match);
+    Match root = tree.root();
+
+    assertSame(root, tree.root());
+    assertSameTree(match, root);
+
+    // Views keep their identity.
+    assertSame(root.child(), root.children().get(0));
+    assertEquals(match.all(rule("identifier")).length,
+      root.all(rule("identifier")).length);
+    assertEquals(match.string(), root.string());
+  }
+}
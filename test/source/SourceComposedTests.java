@@ -0,0 +1,117 @@
+package source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import grammar.GrammarDSL;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+import parser.Match;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SourceComposedTests
+{
+  /****************************************************************************/
+  Match match(Source source, int begin, int end)
+  {
+    return new Match(GrammarDSL.str(""), source, begin, end);
+  }
+
+  /****************************************************************************/
+  void assertSameText(String expected, Source actual)
+  {
+    assertEquals(expected.length(), actual.end());
+    assertEquals(expected, actual.at(0, actual.end()));
+
+    for (int p = 0 ; p < expected.length() ; ++p) {
+      assertEquals(expected.charAt(p), actual.at(p));
+      assertEquals(expected.substring(p, Math.min(p + 7, expected.length())),
+        actual.at(p, Math.min(p + 7, expected.length())));
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void aa_compose()
+  {
+    Source text = new SourceString("abcdefghijklmnopqrstuvwxyz");
+    Random random = new Random(42);
+
+    Source source = new SourceComposed();
+    String expected = "";
+    assertSameText(expected, source);
+
+    for (int i = 0 ; i < 200 ; ++i)
+    {
+      // Sandwich a slice of the previous source between two slices of text.
+      int a = random.nextInt(27), b = a + random.nextInt(27 - a);
+      int c = random.nextInt(source.end() + 1);
+      int d = c + random.nextInt(source.end() - c + 1);
+      int e = random.nextInt(27);
+
+      Match[] matches = {
+        match(text, a, b), match(source, c, d), match(text, 0, e) };
+
+      expected = SourceComposed.strFromMatches(matches);
+      source = new SourceComposed(matches);
+      assertSameText(expected, source);
+
+      int p = random.nextInt(expected.length() + 1);
+      assertEquals(new SourceString(expected).where(p)
+        + " (in composed source)", source.where(p));
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void ab_lines()
+  {
+    Source text = new SourceString("ab\ncd\n\nefg");
+    Source source = new SourceComposed(match(text, 3, 10), match(text, 0, 3));
+
+    int[][] expected = { // line, column for each position of text
+      {1, 1}, {1, 2}, {1, 3}, {2, 1}, {2, 2}, {2, 3}, {3, 1}, {4, 1}, {4, 2},
+      {4, 3}, {4, 4} };
+
+    for (int p = 0 ; p <= text.end() ; ++p) {
+      assertEquals(expected[p][0], text.line(p));
+      assertEquals(expected[p][1], text.column(p));
+    }
+
+    // "cd\n\nefgab\n"
+    assertEquals(1, source.line(2));
+    assertEquals(3, source.column(2));
+    assertEquals(3, source.line(4));
+    assertEquals(5, source.column(8));
+    assertEquals(4, source.line(source.end()));
+    assertEquals(1, source.column(source.end()));
+  }
+
+  /****************************************************************************/
+  @Test public void ac_views()
+  {
+    Source text = new SourceString("  abc def \n");
+    Source source = new SourceComposed(match(text, 0, 6), match(text, 6, 11));
+
+    for (Source src : new Source[] { text, source })
+    {
+      Match match = match(src, 0, src.end());
+
+      assertEquals(match.string(), match.text().toString());
+      assertEquals(match.originalString(), match.originalText().toString());
+      assertTrue(match.text().contentEquals("abc def"));
+      assertFalse(match.text().contentEquals("abc de"));
+      assertTrue(match.text().startsWith("abc"));
+      assertFalse(match.text().startsWith("bc"));
+      assertTrue(match.text().endsWith("def"));
+      assertTrue(match.originalText().endsWith(" \n"));
+      assertTrue(match.text().subSequence(4, 7).contentEquals("def"));
+      assertEquals('d', match.text().charAt(4));
+    }
+  }
+}
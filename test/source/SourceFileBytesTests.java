@@ -0,0 +1,62 @@
+package source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SourceFileBytesTests
+{
+  /****************************************************************************/
+  Source open(String text, Charset charset) throws IOException
+  {
+    File file = File.createTempFile("source", ".java");
+    file.deleteOnExit();
+    Files.write(file.toPath(), text.getBytes(charset));
+
+    Source source = SourceFileBytes.open(file, charset);
+    Source expected = new SourceFileText(file, charset);
+
+    assertEquals(expected.end(), source.end());
+    assertEquals(expected.at(0, expected.end()), source.at(0, source.end()));
+
+    for (int p = 0 ; p < expected.end() ; ++p) {
+      assertEquals(expected.at(p), source.at(p));
+      assertEquals(expected.where(p), source.where(p));
+    }
+
+    return source;
+  }
+
+  /****************************************************************************/
+  @Test public void aa_open() throws IOException
+  {
+    Charset utf8 = StandardCharsets.UTF_8;
+    Charset latin1 = StandardCharsets.ISO_8859_1;
+
+    assertTrue(open("class A {\n  int x; }\n", utf8)
+      instanceof SourceFileBytes);
+    assertTrue(open("", utf8)
+      instanceof SourceFileBytes);
+    assertTrue(open("class é {}", latin1)
+      instanceof SourceFileBytes);
+
+    // Non-ASCII UTF-8, and unicode escapes.
+    assertTrue(open("class é {}", utf8)
+      instanceof SourceFileText);
+    assertTrue(open("class A { char c = '\\u0041'; }", utf8)
+      instanceof SourceFileText);
+  }
+}
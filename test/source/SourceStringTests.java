@@ -0,0 +1,64 @@
+package source;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SourceStringTests
+{
+  /****************************************************************************/
+  void assertUnescaped(String raw)
+  {
+    String expected = Source.unescaper.translate(raw);
+    Source source = new SourceString(raw);
+
+    assertEquals(expected.length(), source.end());
+    assertEquals(expected, source.at(0, source.end()));
+
+    for (int p = 0 ; p < expected.length() ; ++p)
+    {
+      assertEquals(expected.charAt(p), source.at(p));
+
+      for (int q = p ; q <= expected.length() ; ++q) {
+        assertEquals(expected.substring(p, q), source.at(p, q));
+      }
+    }
+  }
+
+  /****************************************************************************/
+  @Test public void aa_escapes()
+  {
+    assertUnescaped("");
+    assertUnescaped("abc");
+    assertUnescaped("\\u0041");
+    assertUnescaped("a\\u0041b\\uu+0042c");
+    assertUnescaped("a\\\\u0041b\\");
+    assertUnescaped("\\uzzzz\\u0041\\uXYZW");
+    assertUnescaped("\\x\\u0041\\\\\\u0042");
+
+    String[] pieces = { "a", "\\", "\\\\", "\\u0041", "\\uu0042", "\\uqqqq",
+      "\\u+0043", "bc", "u" };
+    Random random = new Random(1);
+
+    for (int i = 0 ; i < 200 ; ++i)
+    {
+      StringBuilder builder = new StringBuilder();
+
+      for (int j = random.nextInt(12) ; j > 0 ; --j) {
+        builder.append(pieces[random.nextInt(pieces.length)]);
+      }
+
+      // Avoid a truncated escape at the end, which is an error.
+      builder.append("!!!!");
+      assertUnescaped(builder.toString());
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package trees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import grammar.Expression.Rule;
+import parser.Match;
+import source.SourceString;
+import trees.MatchFinder.Finder;
+import util.ArrayIterator;
+
+/**
+ * Compares the finders of {@link MatchFinder} with a reference implementation
+ * which resolves the bounding specifications with two full traces, then walks
+ * the tree a third time with a {@link BoundedMatchIterator}, on large random
+ * match trees.
+ *
+ * Not part of the test suite: run the main method with the test classes on the
+ * class path. The optional arguments are the number of matches per tree (200
+ * 000 by default) and the number of runs (10 by default).
+ */
+class MatchFinderBenchmark
+{
+  /****************************************************************************/
+  static final SourceString source = new SourceString("");
+
+  /*****************************************************************************
+   * The same as {@link MatchFinder#find}, in three walks.
+   */
+  static Match[] reference(Match root, MatchSpec spec, Finder finder,
+    MatchSpec[] before, MatchSpec[] after, boolean inclusive)
+  {
+    List<Match> left = trace(root, before, true, !inclusive);
+    if (left == null) { return Match.EMPTY; }
+
+    List<Match> right = trace(root, after, false, !inclusive);
+    if (right == null) { return Match.EMPTY; }
+
+    BoundedMatchIterator iter = new BoundedMatchIterator(
+      root, left, right, finder.leftToRight, inclusive);
+
+    List<Match> matches = new ArrayList<>();
+
+    for (Match m : iter)
+    {
+      if (spec.matches(m))
+      {
+        matches.add(m);
+
+        if (finder != Finder.ALL) {
+          break;
+        }
+
+        iter.skipChilds();
+      }
+    }
+
+    return matches.toArray(Match.EMPTY);
+  }
+
+  /*****************************************************************************
+   * Returns the trace from $root to the match of the last (or, if $firstSpec,
+   * first) specification of $specs, or null if not all specifications are
+   * satisfied.
+   */
+  static List<Match> trace(Match root, MatchSpec[] Lspecs,
+    boolean leftToRight, boolean firstSpec)
+  {
+    ArrayIterator<MatchSpec> specs = new ArrayIterator<>(Lspecs, !leftToRight);
+    MatchIterator iter = new MatchIterator(root, leftToRight);
+
+    if (!specs.hasNext()) {
+      return Collections.emptyList();
+    }
+
+    List<Match> trace = null;
+    specs.forward();
+
+    while (iter.hasNext() && !specs.pastEdge())
+    {
+      if (specs.current().matches(iter.next()))
+      {
+        if (firstSpec && trace == null) {
+          trace = iter.trace();
+        }
+
+        specs.forward();
+      }
+    }
+
+    return specs.pastEdge()
+      ? trace != null ? trace : iter.trace()
+      : null;
+  }
+
+  /*****************************************************************************
+   * Returns a random tree of $size matches of rules named after the first
+   * $names letters. Less frequent names come later in the alphabet.
+   */
+  static Match tree(Random random, int size, int names)
+  {
+    Rule[] rules = new Rule[names];
+
+    for (int i = 0 ; i < names ; ++i) {
+      rules[i] = new Rule(String.valueOf((char) ('a' + i)), null);
+    }
+
+    return tree(random, rules, size);
+  }
+
+  /****************************************************************************/
+  private static Match tree(Random random, Rule[] rules, int size)
+  {
+    List<Match> children = new ArrayList<>();
+    int left = size - 1;
+
+    while (left > 0)
+    {
+      int childSize = left <= 2 ? left : 1 + random.nextInt(left / 2 + 1);
+      children.add(tree(random, rules, childSize));
+      left -= childSize;
+    }
+
+    int rule = 0;
+    while (rule < rules.length - 1 && random.nextInt(3) == 0) {
+      ++rule;
+    }
+
+    return new Match(rules[rule], source, 0, 0, children);
+  }
+
+  /****************************************************************************/
+  public static void main(String[] args)
+  {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    Match tree = tree(new Random(42), size, 8);
+
+    MatchSpec a = MatchSpec.rule("a"), e = MatchSpec.rule("e");
+    MatchSpec f = MatchSpec.rule("f"), g = MatchSpec.rule("g");
+
+    Object[][] queries = {
+      { "firstBetween", e, Finder.FIRST, arr(f), arr(g), true  },
+      { "lastBetween",  e, Finder.LAST,  arr(f), arr(g), true  },
+      { "allBetween",   a, Finder.ALL,   arr(f), arr(g), true  },
+      { "firstAfter",   e, Finder.FIRST, arr(f, g), arr(), true  },
+      { "lastBefore",   e, Finder.LAST,  arr(), arr(g, f), true  },
+      { "allOutside",   a, Finder.ALL,   arr(f), arr(g), false },
+    };
+
+    for (int run = 0 ; run < runs ; ++run)
+    {
+      System.out.println("run " + run);
+
+      for (Object[] q : queries)
+      {
+        MatchSpec spec = (MatchSpec) q[1];
+        Finder finder = (Finder) q[2];
+        MatchSpec[] before = (MatchSpec[]) q[3];
+        MatchSpec[] after = (MatchSpec[]) q[4];
+        boolean inclusive = (Boolean) q[5];
+
+        long start = System.nanoTime();
+        Match[] expected = reference(tree, spec, finder, before, after,
+          inclusive);
+        long middle = System.nanoTime();
+        Match[] actual = MatchFinder.find(tree, spec, finder, before, after,
+          inclusive);
+        long end = System.nanoTime();
+
+        System.out.printf("  %-12s reference %6.2f ms, finder %6.2f ms%s%n",
+          q[0], (middle - start) / 1e6, (end - middle) / 1e6,
+          Arrays.equals(expected, actual) ? "" : " (DIFFERENT)");
+      }
+    }
+  }
+
+  /****************************************************************************/
+  private static MatchSpec[] arr(MatchSpec... specs)
+  {
+    return specs;
+  }
+}
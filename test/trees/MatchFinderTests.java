@@ -1,6 +1,9 @@
 package trees;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static trees.MatchFinder.find;
 import static trees.MatchFinder.Finder.ALL;
 import static trees.MatchFinder.Finder.FIRST;
@@ -8,7 +11,10 @@ import static trees.MatchFinder.Finder.LAST;
 import static trees.MatchSpec.anySpec;
 import static util.ArrayUtils.arr;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import source.SourceString;
 
@@ -21,6 +27,7 @@ import org.junit.runners.JUnit4;
 import org.junit.runners.MethodSorters;
 
 import parser.Match;
+import trees.MatchFinder.Finder;
 
 @RunWith(JUnit4.class)
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -186,4 +193,132 @@ public class MatchFinderTests
     assertArrayEquals(arr(m7),
       find(m1, anySpec, LAST, arr(s5), arr(s6), false));
   }
+
+  Match[] opt(Match match)
+  {
+    return match == null ? new Match[0] : arr(match);
+  }
+
+  @Test public void ab_index()
+  {
+    // Nested matches of the same rules.
+    Match n5 = match("5");
+    Match n4 = match("4", n5);
+    Match n3 = match("3", match("2"), match("5", n4, m5));
+    Match n2 = match("2", match("4", match("2")), n3);
+    Match n1 = match("1", n2, m1, match("5"), m1);
+
+    MatchIndex index = new MatchIndex(n1);
+    MatchSpec[] specs = { s1, s2, s3, s4, s5, s8,
+      MatchSpec.or(s2, s5), MatchSpec.or(s4, s2, s4), anySpec };
+
+    for (MatchSpec spec : specs)
+    for (Match within : arr(n1, n2, n3, n4, n5, m1, m3))
+    {
+      assertArrayEquals(within.all(spec), index.all(spec, within));
+      assertArrayEquals(find(within, spec, ALL, new MatchSpec[0],
+        new MatchSpec[0], true), index.all(spec, within));
+
+      assertArrayEquals(find(within, spec, FIRST, new MatchSpec[0],
+        new MatchSpec[0], true), opt(index.first(spec, within)));
+
+      assertArrayEquals(find(within, spec, LAST, new MatchSpec[0],
+        new MatchSpec[0], true), opt(index.last(spec, within)));
+    }
+  }
+
+  @Test public void ac_interned()
+  {
+    // Names built at run time are interned, and still match.
+    Match n1 = match(new String("1"), m2);
+    MatchSpec spec = new MatchSpec.RuleSpec(new StringBuilder("1").toString());
+
+    assertTrue(spec.matches(n1));
+    assertTrue(spec.matches(m1));
+    assertFalse(spec.matches(m2));
+
+    MatchSpec or1 = MatchSpec.or(s2, spec);
+    MatchSpec or2 = MatchSpec.or(s2, MatchSpec.not(anySpec), spec);
+
+    for (Match match : arr(n1, m1, m2, m3, m4)) {
+      assertEquals(or2.matches(match), or1.matches(match));
+    }
+
+    assertTrue(or1.matches(n1));
+    assertTrue(or1.matches(m2));
+    assertFalse(or1.matches(m3));
+  }
+
+  /*****************************************************************************
+   * Compares the finders to the reference implementation, on random trees and
+   * queries. Queries whose bounds are not in order are skipped, as the
+   * reference fails on them.
+   */
+  @Test public void ad_reference()
+  {
+    Random random = new Random(1);
+    MatchSpec[] specs = { MatchSpec.rule("a"), MatchSpec.rule("b"),
+      MatchSpec.rule("c"), MatchSpec.rule("d") };
+
+    for (int i = 0 ; i < 300 ; ++i)
+    {
+      Match tree = MatchFinderBenchmark.tree(random, 1 + random.nextInt(60), 4);
+      MatchSpec spec = specs[random.nextInt(specs.length)];
+      MatchSpec[] before = new MatchSpec[random.nextInt(3)];
+      MatchSpec[] after = new MatchSpec[random.nextInt(3)];
+
+      for (int j = 0 ; j < before.length ; ++j) {
+        before[j] = specs[random.nextInt(specs.length)];
+      }
+      for (int j = 0 ; j < after.length ; ++j) {
+        after[j] = specs[random.nextInt(specs.length)];
+      }
+
+      for (Finder finder : Finder.values())
+      for (boolean inclusive : arr(true, false))
+      {
+        if (!ordered(tree, before, after, inclusive)) {
+          continue;
+        }
+
+        assertArrayEquals(
+          MatchFinderBenchmark.reference(tree, spec, finder, before, after,
+            inclusive),
+          find(tree, spec, finder, before, after, inclusive));
+      }
+    }
+  }
+
+  /*****************************************************************************
+   * Indicates if the bound of $after comes after the bound of $before and its
+   * descendants (or if either is missing).
+   */
+  boolean ordered(Match tree, MatchSpec[] before, MatchSpec[] after,
+    boolean inclusive)
+  {
+    List<Match> left = MatchFinderBenchmark.trace(tree, before, true,
+      !inclusive);
+    List<Match> right = MatchFinderBenchmark.trace(tree, after, false,
+      !inclusive);
+
+    if (left == null || right == null || left.isEmpty() || right.isEmpty()) {
+      return true;
+    }
+
+    List<Match> nodes = new ArrayList<>();
+    for (Match m : new MatchIterator(tree)) {
+      nodes.add(m);
+    }
+
+    Match l = left.get(left.size() - 1);
+    Match r = right.get(right.size() - 1);
+    MatchIterator subtree = new MatchIterator(l);
+    int size = 0;
+
+    for (Match m : subtree) {
+      ++size;
+    }
+
+    return nodes.indexOf(r) >= nodes.indexOf(l) + size;
+  }
 }
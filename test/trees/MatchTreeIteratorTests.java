@@ -85,4 +85,55 @@ public class MatchTreeIteratorTests
     }
     assertEquals(leftRight.length, j);
   }
+
+  @Test public void treeCursor()
+  {
+    Match a = match();
+    Match b = match();
+    Match c = match(a, b);
+    Match d = match();
+    Match e = match(c, d);
+
+    MatchCursor cursor = new MatchCursor(e, true);
+    assertTrue(cursor.firstChild());
+    assertTrue(cursor.firstChild());
+    assertTrue(cursor.match() == a);
+    assertTrue(cursor.nextSibling());
+    assertTrue(cursor.match() == b);
+    assertEquals(1, cursor.index(2));
+    assertTrue(!cursor.nextSibling());
+    assertTrue(!cursor.firstChild());
+    assertTrue(cursor.parent());
+    assertTrue(cursor.nextSibling());
+    assertTrue(cursor.match() == d);
+    assertTrue(cursor.parent());
+    assertTrue(!cursor.parent());
+    assertTrue(cursor.match() == e);
+
+    // Right-to-left walk, reusing the cursor.
+    Match[] rightLeft = arr(e, d, c, b, a);
+    cursor.reset(e, false);
+
+    for (Match m : rightLeft) {
+      assertTrue(cursor.hasNext());
+      assertTrue(cursor.next());
+      assertTrue(cursor.match() == m);
+      assertEquals(m == e ? 0 : m == d || m == c ? 1 : 2, cursor.depth());
+    }
+
+    assertTrue(!cursor.hasNext());
+    assertTrue(!cursor.next());
+
+    // Skipping childs.
+    Match[] skipping = arr(e, c, d);
+    cursor.reset(e, true);
+
+    for (Match m : skipping) {
+      assertTrue(cursor.next());
+      assertTrue(cursor.match() == m);
+      if (m == c) { cursor.skipChilds(); }
+    }
+
+    assertTrue(!cursor.next());
+  }
 }